@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How much work converting one file may take, for callers that convert input they can't
+ * vouch for. Work is counted in steps: a step is a token looked at or a line read, so a
+ * file of n tokens takes a small multiple of n steps. Once a conversion runs out of steps,
+ * or its time is up, it stops with a BudgetExceededException.
+ *
+ * A Budget is immutable; the same one can be used for any number of conversions, and the
+ * clock for a timeout starts again with each of them.
+ */
+public final class Budget {
+
+  /** No limits at all */
+  public static final Budget UNLIMITED = new Budget(Long.MAX_VALUE, Long.MAX_VALUE, false, 0);
+
+  private final long maxSteps;
+
+  /** Time allowed for each conversion, in nanoseconds */
+  private final long timeout;
+
+  /** Whether there is a deadline, and when it is, in System.nanoTime() terms */
+  private final boolean hasDeadline;
+  private final long deadline;
+
+  private Budget(long maxSteps, long timeout, boolean hasDeadline, long deadline) {
+    this.maxSteps = maxSteps;
+    this.timeout = timeout;
+    this.hasDeadline = hasDeadline;
+    this.deadline = deadline;
+  }
+
+  /**
+   * Returns a copy of this budget, allowing only maxSteps steps per conversion.
+   */
+  public Budget withMaxSteps(long maxSteps) {
+    Preconditions.checkArgument(maxSteps > 0, "maxSteps must be positive: %s", maxSteps);
+    return new Budget(maxSteps, timeout, hasDeadline, deadline);
+  }
+
+  /**
+   * Returns a copy of this budget, allowing each conversion to run for timeout at most.
+   */
+  public Budget withTimeout(long timeout, TimeUnit unit) {
+    Preconditions.checkArgument(timeout > 0, "timeout must be positive: %s", timeout);
+    return new Budget(maxSteps, unit.toNanos(timeout), hasDeadline, deadline);
+  }
+
+  /**
+   * Returns a copy of this budget, cancelling any conversion still running at deadline, a
+   * time as given by System.nanoTime(). This is for a caller with a deadline of its own,
+   * such as a request that converts several files.
+   */
+  public Budget withDeadline(long deadline) {
+    return new Budget(maxSteps, timeout, true, deadline);
+  }
+
+  long getMaxSteps() {
+    return maxSteps;
+  }
+
+  /**
+   * Returns whether a conversion has a time to stop by.
+   */
+  boolean hasDeadline() {
+    return hasDeadline || timeout != Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the time a conversion started at start (in System.nanoTime() terms) has to
+   * stop by, the earlier of its timeout and the deadline. Only meaningful if hasDeadline().
+   */
+  long getDeadline(long start) {
+    if (timeout == Long.MAX_VALUE) {
+      return deadline;
+    }
+    long end = start + timeout;
+    return hasDeadline && deadline - end < 0 ? deadline : end;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+/**
+ * Canonicalizes some lexical stuff, like Public, that will simplify subsequent processing.
+ * This does in one scan what used to be this chain of replaceAll calls:
+ *
+ * <pre>
+ *   "Property Get "                          -> "Function Get"
+ *   "Property Let "                          -> "Function Let"
+ *   "Property Set "                          -> "Function Set"
+ *   "End Property"                           -> "End Function"
+ *   "(Public|Private|Friend) +Sub"           -> "Sub"
+ *   "(Public|Private|Friend) +Function"      -> "Function"
+ *   "(Public|Private|Friend) +Dim"           -> "Dim"
+ *   "(Public|Private|Friend) +Global"        -> "Global"
+ *   "(Public|Private|Friend|Global) +Const"  -> "Const"
+ *   "(Public|Private|Friend) +Declare"       -> "Declare"
+ *   "(Public|Private|Static)"                -> "Dim"
+ * </pre>
+ *
+ * Each rule used to see the output of the ones before it, so "Public Property Get" became
+ * "Function Get" and "Public Global Const" became "Const"; those chains are matched
+ * directly here. As before, words are matched case sensitively and without checking for
+ * word boundaries.
+ */
+final class Canonicalizer {
+
+  private static final String[] MODIFIERS = { "Public", "Private", "Friend" };
+
+  /** Words that lose a preceding modifier, besides Property Get/Let/Set */
+  private static final String[] DECLARATIONS = {
+      "Sub", "Function", "Dim", "Global", "Const", "Declare" };
+
+  /** Words rewritten to Dim when no other rule applies */
+  private static final String[] DIMS = { "Public", "Private", "Static" };
+
+  private static final String[] PROPERTIES = { "Property Get ", "Property Let ", "Property Set " };
+
+  private static final String[] PROPERTY_FUNCTIONS = {
+      "Function Get", "Function Let", "Function Set" };
+
+  private Canonicalizer() {
+  }
+
+  /**
+   * Returns str canonicalized, or str itself if there is nothing to rewrite.
+   */
+  static String canonicalize(String str) {
+    StringBuilder canonical = null;
+    int copied = 0;
+    int i = 0;
+    while (i < str.length()) {
+      String replacement = null;
+      int end = i;
+      switch (str.charAt(i)) {
+        case 'P': case 'F': case 'G': case 'S': {
+          int property = findWord(str, i, PROPERTIES);
+          if (property >= 0) {
+            replacement = PROPERTY_FUNCTIONS[property];
+            end = i + PROPERTIES[property].length();
+            break;
+          }
+          // a modifier before a declaration is dropped; the declaration itself is
+          // scanned next, so that Global Const and Property Get are rewritten in turn
+          int modifier = findWord(str, i, MODIFIERS);
+          if (modifier >= 0) {
+            int next = skipSpaces(str, i + MODIFIERS[modifier].length());
+            if (next > i + MODIFIERS[modifier].length()
+                && (findWord(str, next, DECLARATIONS) >= 0 || findWord(str, next, PROPERTIES) >= 0)) {
+              replacement = "";
+              end = next;
+              break;
+            }
+          } else if (str.startsWith("Global", i)) {
+            int next = skipSpaces(str, i + 6);
+            if (next > i + 6 && str.startsWith("Const", next)) {
+              replacement = "";
+              end = next;
+              break;
+            }
+          }
+          int dim = findWord(str, i, DIMS);
+          if (dim >= 0) {
+            replacement = "Dim";
+            end = i + DIMS[dim].length();
+          }
+          break;
+        }
+        case 'E':
+          if (str.startsWith("End Property", i) && findWord(str, i + 4, PROPERTIES) < 0) {
+            replacement = "End Function";
+            end = i + 12;
+          }
+          break;
+        default:
+          break;
+      }
+      if (replacement == null) {
+        ++i;
+        continue;
+      }
+      if (canonical == null) {
+        canonical = new StringBuilder(str.length());
+      }
+      canonical.append(str, copied, i).append(replacement);
+      copied = end;
+      i = end;
+    }
+    if (canonical == null) {
+      return str;
+    }
+    return canonical.append(str, copied, str.length()).toString();
+  }
+
+  /**
+   * Returns the index of the word in words that str has at position, or -1 if none.
+   */
+  private static int findWord(String str, int position, String[] words) {
+    for (int i = 0; i < words.length; ++i) {
+      if (str.startsWith(words[i], position)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int skipSpaces(String str, int position) {
+    while (position < str.length() && str.charAt(position) == ' ') {
+      ++position;
+    }
+    return position;
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts VBA to JavaScript the way VbaJsConverter's static methods do, but keeps the
+ * state a conversion works in (the lines, the names declared, the lexer and its buffers)
+ * from one conversion to the next rather than making it anew each time. An engine is
+ * thread-safe and meant to be shared: each thread gets state of its own, which is reset
+ * after each conversion, all but the lines it has translated (see LineMemo), which are kept
+ * so that they are found again in later modules. What the converter only reads, such as the
+ * keyword tables, is static and shared by all threads. The static methods of VbaJsConverter
+ * all use one engine.
+ */
+public final class ConverterEngine {
+
+  /**
+   * The state of each thread, while the thread is not converting. A conversion takes it out,
+   * so one started from inside another (by a StatementHandler, say) gets new state.
+   */
+  private final ThreadLocal<TranslationUnit> idleUnits = new ThreadLocal<TranslationUnit>();
+
+  /** Arrays and Types declared in the other modules of the project */
+  private final SymbolIndex symbols;
+
+  /** Counts of the LineMemos of all threads, added up as each conversion ends */
+  private final AtomicLong memoLookups = new AtomicLong();
+  private final AtomicLong memoHits = new AtomicLong();
+
+  /** Counts of the token buffers of all threads, added up likewise */
+  private final AtomicLong tokensLexed = new AtomicLong();
+  private final AtomicLong tokensReused = new AtomicLong();
+
+  public ConverterEngine() {
+    this(SymbolIndex.EMPTY);
+  }
+
+  /**
+   * Makes an engine for converting the modules of a project, which sees the arrays and Types
+   * in symbols as if each module had declared them itself.
+   */
+  public ConverterEngine(SymbolIndex symbols) {
+    this.symbols = Preconditions.checkNotNull(symbols);
+  }
+
+  public String convert(List<String> vbaCode) {
+    return convertLines(vbaCode, null, Budget.UNLIMITED);
+  }
+
+  /**
+   * Converts a VB file, carrying on past errors, as VbaJsConverter.convert(vbaCode,
+   * diagnostics) does.
+   */
+  public String convert(List<String> vbaCode, List<Diagnostic> diagnostics) {
+    return convertLines(vbaCode, diagnostics, Budget.UNLIMITED);
+  }
+
+  /**
+   * Converts a VB file within budget, as VbaJsConverter.convert(vbaCode, budget) does.
+   */
+  public String convert(List<String> vbaCode, Budget budget) {
+    return convertLines(vbaCode, null, budget);
+  }
+
+  /**
+   * Converts a VB file within budget, carrying on past errors, as
+   * VbaJsConverter.convert(vbaCode, diagnostics, budget) does.
+   */
+  public String convert(List<String> vbaCode, List<Diagnostic> diagnostics, Budget budget) {
+    return convertLines(vbaCode, diagnostics, budget);
+  }
+
+  /**
+   * Converts a VB file with its Subs and Functions converted side by side on executor, as
+   * VbaJsConverter.convert(vbaCode, executor) does. The result is the same as from
+   * convert(vbaCode).
+   */
+  public String convert(List<String> vbaCode, Executor executor) {
+    if (vbaCode == null || vbaCode.isEmpty()) {
+      return "";
+    }
+    String jsCode;
+    TranslationUnit unit = acquire();
+    try {
+      jsCode = new ParallelConversion(this, executor, unit).convert(vbaCode);
+    } finally {
+      release(unit);
+    }
+    return jsCode != null ? jsCode : convert(vbaCode);
+  }
+
+  public String convert(String vbaCode) {
+    if (Strings.isNullOrEmpty(vbaCode)) {
+      return "";
+    }
+    return convert(Arrays.asList(vbaCode.split(ConverterUtil.LINE_SEPARATOR)));
+  }
+
+  /**
+   * Converts a VB file in place, as VbaJsConverter.convert(vbaFile, charset) does.
+   */
+  public String convert(Path vbaFile, Charset charset) throws IOException {
+    return convertLines(SourceText.lines(SourceText.map(vbaFile, charset)), null,
+        Budget.UNLIMITED);
+  }
+
+  /**
+   * Converts VB code held in a buffer, or returned by VbaJsConverter.read(). Lines end at \n,
+   * \r or \r\n.
+   */
+  public String convert(CharSequence vbaCode) {
+    return convertLines(SourceText.lines(vbaCode), null, Budget.UNLIMITED);
+  }
+
+  /**
+   * Converts a VB file a statement at a time, as VbaJsConverter.convert(in, out) does.
+   * Neither in nor out is closed.
+   */
+  public void convert(Reader in, Writer out) throws IOException {
+    BufferedReader reader = in instanceof BufferedReader
+        ? (BufferedReader) in : new BufferedReader(in);
+    TranslationUnit unit = acquire();
+    try {
+      new VbaJsConverter(unit, null, Budget.UNLIMITED).streamingHelper(
+          SourceText.lines(reader), out);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      release(unit);
+    }
+  }
+
+  /**
+   * Indexes the Subs and Functions of a VB file, to convert them one at a time by name, as
+   * VbaJsConverter.index(vbaCode) does.
+   */
+  public ModuleIndex index(List<String> vbaCode) {
+    return new ModuleIndex(this, vbaCode);
+  }
+
+  private String convertLines(Iterable<String> vbaCode, List<Diagnostic> diagnostics,
+      Budget budget) {
+    if (vbaCode == null || Iterables.isEmpty(vbaCode)) {
+      return "";
+    }
+    TranslationUnit unit = acquire();
+    try {
+      return new VbaJsConverter(unit, diagnostics, budget).conversionHelper(vbaCode);
+    } finally {
+      release(unit);
+    }
+  }
+
+  /**
+   * Converts lines that an IncrementalConverter has already cleaned up and parsed, each
+   * starting on the line of the module given in physicalLineNumbers (see
+   * TranslationUnit.setLines()).
+   */
+  String convertLexed(List<String> cleanedCode, List<LexedLine> lexedCode,
+      int[] physicalLineNumbers) {
+    TranslationUnit unit = acquire();
+    try {
+      return new VbaJsConverter(unit, null, Budget.UNLIMITED).lexedHelper(
+          cleanedCode, lexedCode, physicalLineNumbers);
+    } finally {
+      release(unit);
+    }
+  }
+
+  /**
+   * Returns how many assignments and calls, each on a line of its own, the conversions so
+   * far have looked up among the lines they translated before.
+   */
+  public long getMemoLookups() {
+    return memoLookups.get();
+  }
+
+  /**
+   * Returns how many of the lines looked up were found, and so were not parsed again.
+   */
+  public long getMemoHits() {
+    return memoHits.get();
+  }
+
+  /**
+   * Returns how many tokens the conversions so far have lexed.
+   */
+  public long getTokensLexed() {
+    return tokensLexed.get();
+  }
+
+  /**
+   * Returns how many times the conversions so far have looked at a token, by peeking or
+   * taking it, that was already lexed, and so was not lexed again.
+   */
+  public long getTokensReused() {
+    return tokensReused.get();
+  }
+
+  /**
+   * Converts lines that an IncrementalConverter has already cleaned up and parsed, taking
+   * the Subs and Functions that have not changed from cache. The result is the same as from
+   * convertLexed(cleanedCode, lexedCode, physicalLineNumbers).
+   */
+  String convertLexed(List<String> cleanedCode, List<LexedLine> lexedCode,
+      int[] physicalLineNumbers, ProcedureCache cache) {
+    String jsCode;
+    cache.start();
+    TranslationUnit unit = acquire();
+    try {
+      jsCode = new ParallelConversion(this, null, cache, unit).convertLexed(
+          cleanedCode, lexedCode, physicalLineNumbers);
+    } finally {
+      release(unit);
+    }
+    cache.finish(jsCode != null);
+    return jsCode != null ? jsCode : convertLexed(cleanedCode, lexedCode, physicalLineNumbers);
+  }
+
+  TranslationUnit acquire() {
+    TranslationUnit unit = idleUnits.get();
+    if (unit == null) {
+      return new TranslationUnit(symbols);
+    }
+    idleUnits.set(null);
+    return unit;
+  }
+
+  void release(TranslationUnit unit) {
+    LineMemo memo = unit.getLineMemo();
+    memoLookups.addAndGet(memo.getLookups());
+    memoHits.addAndGet(memo.getHits());
+    memo.clearCounts();
+    Line line = unit.getCurrentLine();
+    tokensLexed.addAndGet(line.getLexCount());
+    tokensReused.addAndGet(line.getReuseCount());
+    line.clearCounts();
+    unit.reset();
+    idleUnits.set(unit);
+  }
+}
@@ -56,9 +56,6 @@ final class ConverterUtil {
       .put("\\bNot\\b", "!")
       .build();
 
-  private static final String ONE_LINE_IF_THEN_ELSE = "(?i).*Then .+ Else .*";
-  private static final String ONE_LINE_IF_THEN = "(?i).*Then .+";
-
   /** Marker for after last line */
   static final String EOF = "(EOF)";
 
@@ -86,12 +83,4 @@ final class ConverterUtil {
     }
     return token;
   }
-
-  /**
-   * Test whether line is one-line: If ... Then ... [Else ...].
-   */
-  static boolean isOneLineIf(String line) {
-    return (line.matches(ONE_LINE_IF_THEN_ELSE) ||
-        new Line().parseLine(line).getLine().matches(ONE_LINE_IF_THEN));
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+/**
+ * A problem found while converting with VbaJsConverter.convert(vbaCode, diagnostics). The
+ * lines it affects are written out as comments, and conversion carries on after them.
+ */
+public final class Diagnostic {
+
+  /** Line number, from 1, in the file as given; the first line of a continued line */
+  private final int lineNumber;
+
+  private final String message;
+
+  /** Contents of line where the problem was found */
+  private final String line;
+
+  Diagnostic(int lineNumber, String message, String line) {
+    this.lineNumber = lineNumber;
+    this.message = message;
+    this.line = line;
+  }
+
+  public int getLineNumber() {
+    return lineNumber;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public String getLine() {
+    return line;
+  }
+
+  @Override
+  public String toString() {
+    return "line " + lineNumber + ": " + message + " (" + line + ")";
+  }
+}
@@ -0,0 +1,742 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the JavaScript for a parsed Module. Everything that depends on the declarations
+ * seen so far was settled by the parser, so this only has to lay out the text and keep
+ * track of indentation.
+ */
+final class Emitter implements Statement.Visitor<Void> {
+
+  /**
+   * Indent spacing (2 at the moment)
+   */
+  private static final String INDENT_SPACES = "  ";
+
+  private static final Renderer RENDERER = new Renderer();
+
+  private static final Joiner CONCATENATOR = Joiner.on("");
+
+  private static final Pattern WORD_PATTERN = Pattern.compile("^\\w+$");
+  private static final Pattern STRING_PATTERN = Pattern.compile("^\"[^\"]*\"$");
+  private static final Pattern RANGE_PATTERN = Pattern.compile(".*To.*");
+  private static final Pattern TO_PATTERN = Pattern.compile("To");
+  private static final Pattern CALL_PATTERN = Pattern.compile(".*\\(.*\\)$");
+
+  /**
+   * Stores the generated output. Using a StringBuilder for efficient
+   * concatenation of lines
+   */
+  private final StringBuilder output;
+
+  /** Depth of nested constructs */
+  private int depth;
+
+  /** Leave out comments, for emitCode() */
+  private boolean isBare;
+
+  Emitter() {
+    this.output = new StringBuilder();
+    this.depth = 0;
+  }
+
+  /**
+   * Returns the JavaScript for module.
+   */
+  String emit(Module module) {
+    emitAll(module.getStatements());
+    return output.toString();
+  }
+
+  /**
+   * Writes the JavaScript for a statement at the top level to out.
+   */
+  void emit(Statement statement, Appendable out) throws IOException {
+    statement.accept(this);
+    out.append(output);
+    output.setLength(0);
+  }
+
+  /**
+   * Returns the JavaScript for a statement that comes out as one line, without indentation
+   * or comment, or null if it comes out as more or fewer lines.
+   */
+  String emitCode(Statement statement) {
+    isBare = true;
+    try {
+      statement.accept(this);
+    } finally {
+      isBare = false;
+    }
+    String code = output.toString();
+    output.setLength(0);
+    if (!code.endsWith(ConverterUtil.LINE_SEPARATOR)) {
+      return null;
+    }
+    code = code.substring(0, code.length() - ConverterUtil.LINE_SEPARATOR.length());
+    // Statement.Handled splits its code at \n
+    return code.contains(ConverterUtil.LINE_SEPARATOR) || code.indexOf('\n') >= 0 ? null : code;
+  }
+
+  /**
+   * Returns the JavaScript for an expression.
+   */
+  static String render(Expression expression) {
+    return expression.accept(RENDERER);
+  }
+
+  private void emitAll(List<Statement> statements) {
+    for (Statement statement : statements) {
+      statement.accept(this);
+    }
+  }
+
+  /**
+   * Generates a single line of output, with comment (if any) at proper
+   * indentation level.
+   */
+  private void line(String comment, String... linePieces) {
+    String jsLine = CONCATENATOR.join(linePieces);
+
+    String trailer = "";
+    if (!comment.isEmpty() && !isBare) {
+      trailer = " // " + comment.trim();
+    }
+
+    if (jsLine.isEmpty()) {
+      trailer = trailer.trim();
+    }
+
+    output.append(Strings.repeat(INDENT_SPACES, depth));
+    output.append(jsLine);
+    output.append(trailer);
+    output.append(ConverterUtil.LINE_SEPARATOR);
+  }
+
+  /**
+   * Lines that the translator doesn't know how to handle are commented out for
+   * now; this behavior might change in the future.
+   */
+  private static String markLineAsUntouched(String... linePieces) {
+    return "// " + CONCATENATOR.join(linePieces) + "; // UNTOUCHED";
+  }
+
+  /**
+   * Put parens around a string if it has any non-alphanumerics.
+   */
+  private static String parenthesize(String str) {
+    if (WORD_PATTERN.matcher(str).matches() || STRING_PATTERN.matcher(str).matches()) {
+      return str;
+    } else {
+      return "(" + str + ")";
+    }
+  }
+
+  /**
+   * Arguments separated by , as written.
+   */
+  private static String renderArguments(List<Expression> arguments) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < arguments.size(); ++i) {
+      if (i > 0) {
+        text.append(", ");
+      }
+      text.append(render(arguments.get(i)));
+    }
+    return text.toString();
+  }
+
+  /**
+   * A type after //, unless it is the name of a Type.
+   */
+  private static String renderType(String type, boolean isTypeName) {
+    return type.isEmpty() || isTypeName ? type : "// " + type;
+  }
+
+  /**
+   * Generate and properly initialize a multi-dimensional JavaScript array.
+   * Multi-dimensional arrays in JS are arrays of arrays, each new dimension
+   * needs to be initialized separately. We use the fact the variable names in
+   * VB cannot start with an underscore, but they can in JS. This is used to
+   * make sure that our loop variables have no scoping clashes with the user's
+   * VB variables.
+   *
+   * @param var The name of the array
+   * @param vtype The array type
+   * @param indices The indices of the multi-dimensional array. eg: Dim x(1,
+   * 2, 3) => [1, 2, 3]
+   * @param comment The comment for each line
+   */
+  private void generateMultiDimArray(String var, String vtype, List<String> indices,
+      String comment) {
+    // Array declaration for first dimension
+    line(comment, "var ", var, " = new Array(", indices.get(0), "); ", vtype);
+    // TODO(nikhil): Handle the wrap-around case (> 26 dimensions)
+    char idx = 'a';
+    String subscript = "";
+    // Generate the nested for-loops to initialize the remaining n-1 dimensions.
+    for (int i = 1, len = indices.size(); i < len; ++i) {
+      // Use the fact that VB variables cannot start with an _ to prevent scoping clashes.
+      String internalIdx = "_" + idx;
+      line(comment, "for (var ", internalIdx, " = 0; ", internalIdx, " < ", indices.get(i - 1),
+          "; ++", internalIdx + ") {");
+      ++depth;
+      subscript += "[" + internalIdx + "]";
+      ++idx;
+      line(comment, var, subscript, " = new Array(", indices.get(i), ");");
+    }
+
+    // Back out of the nested for loops
+    for (int i = 1, len = indices.size(); i < len; ++i) {
+      --depth;
+      line(comment, "}");
+    }
+  }
+
+  @Override
+  public Void visitBlank(Statement.Blank blank) {
+    line(blank.comment, "");
+    return null;
+  }
+
+  @Override
+  public Void visitUntouched(Statement.Untouched untouched) {
+    line(untouched.comment, markLineAsUntouched(render(untouched.code)));
+    return null;
+  }
+
+  @Override
+  public Void visitLabel(Statement.Label label) {
+    line(label.comment, markLineAsUntouched(render(label.name), " ", render(label.rest).trim()));
+    return null;
+  }
+
+  @Override
+  public Void visitDim(Statement.Dim dim) {
+    for (Statement.Declarator declarator : dim.declarators) {
+      String var = declarator.name;
+      String vtype = renderType(declarator.type, declarator.isTypeName);
+      String expr = render(declarator.initializer);
+      switch (declarator.form) {
+        case SCALAR:
+          line(dim.comment, "var ", var, expr.isEmpty() ? "" : " = " + expr, "; ", vtype);
+          break;
+        case OBJECT:
+          line(dim.comment, "var ", var, expr.isEmpty() ? "" : " = " + expr, " = new ", vtype,
+              "();");
+          break;
+        case REDIM_DECLARATION:
+          String bounds = render(declarator.bounds);
+          if (RANGE_PATTERN.matcher(bounds).matches()) {
+            bounds = "(/* " + TO_PATTERN.matcher(bounds).replaceAll(" To ") + " */)";
+          }
+          line(dim.comment, "var ", var, " = new Array", bounds, "; ", vtype, " // ReDim decl");
+          break;
+        case REDIM_MULTI_DIM:
+          generateMultiDimArray(var, vtype, declarator.dimensions, dim.comment);
+          break;
+        case REDIM:
+          break;
+        case ARRAY:
+          if (!expr.isEmpty()) {
+            line(dim.comment, "var ", var, " = new Array(", expr, "); ", vtype);
+          } else if (declarator.dimensions.size() > 1) {
+            generateMultiDimArray(var, vtype + " // multi-dim", declarator.dimensions,
+                dim.comment);
+          } else {
+            line(dim.comment, "var ", var, " = new Array(", declarator.dimensions.get(0), ");");
+          }
+          break;
+        default:
+          throw new AssertionError(declarator.form);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitAssignment(Statement.Assignment assignment) {
+    String expr = (assignment.isReturnValue ? "_" : "") + render(assignment.target) + " = "
+        + (assignment.isNew ? "new " : "") + render(assignment.value);
+    line(assignment.comment, expr.trim(), ";");
+    return null;
+  }
+
+  @Override
+  public Void visitCall(Statement.CallStatement call) {
+    String name = render(call.name);
+    String arguments = renderArguments(call.arguments);
+    switch (call.form) {
+      case BARE:
+        line(call.comment, name, CALL_PATTERN.matcher(name).matches() ? ";" : "();");
+        break;
+      case PARENTHESIZED:
+        line(call.comment, name, arguments, ";");
+        break;
+      case EXPLICIT:
+        line(call.comment, name, "(", arguments, ");");
+        break;
+      case IMPLICIT:
+        line(call.comment, (name + "(" + arguments + ")").trim(), ";");
+        break;
+      default:
+        throw new AssertionError(call.form);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpression(Statement.ExpressionStatement statement) {
+    String name = render(statement.name);
+    String rest = render(statement.rest).trim();
+    String expr;
+    if (rest.isEmpty() && !CALL_PATTERN.matcher(name).matches()) {
+      expr = name + "()"; // guess it's a function call
+    } else {
+      expr = name + " " + rest;
+    }
+    line(statement.comment, expr.trim(), ";");
+    return null;
+  }
+
+  @Override
+  public Void visitIf(Statement.If statement) {
+    boolean isFirst = true;
+    for (Statement.Block branch : statement.branches) {
+      if (isFirst) {
+        line(branch.comment, "if (", render(branch.condition), ") {");
+        isFirst = false;
+      } else {
+        --depth;
+        line(branch.comment, "} else if (", render(branch.condition), ") {");
+      }
+      ++depth;
+      emitAll(branch.body);
+    }
+
+    if (statement.otherwise != null) {
+      --depth;
+      line(statement.otherwise.comment, "} else {");
+      ++depth;
+      emitAll(statement.otherwise.body);
+    }
+
+    --depth;
+    line(statement.endComment, "}");
+    return null;
+  }
+
+  @Override
+  public Void visitFor(Statement.For statement) {
+    String var = statement.variable;
+    String rel;
+    String incr;
+    if (statement.isTo) {
+      rel = "<=";
+      incr = "+=";
+    } else { // Downto
+      rel = ">=";
+      incr = "-=";
+    }
+
+    String stepExpr = "1";
+    if (statement.step != null) {
+      stepExpr = render(statement.step);
+      if (statement.isNegativeStep) {
+        rel = ">=";
+        incr = "+=";
+      }
+    }
+
+    // Convert increments/decrements of 1 to ++/--
+    String reincr;
+    if (stepExpr.equals("1") && incr.equals("+=")) {
+      reincr = "++" + var;
+    } else if (stepExpr.equals("-1") && incr.equals("-=")) {
+      reincr = "++" + var;
+    } else if (stepExpr.equals("1") && incr.equals("-=")) {
+      reincr = "--" + var;
+    } else if (stepExpr.equals("-1") && incr.equals("+=")) {
+      reincr = "--" + var;
+    } else {
+      reincr = var + " " + incr + " " + stepExpr;
+    }
+
+    // JS hoists all variables to function scope
+    line(statement.comment, "for (var ", var, " = ", render(statement.start), "; ", var, " ", rel,
+        " ", render(statement.stop), "; ", reincr, ") {");
+    ++depth;
+    emitAll(statement.body);
+    --depth;
+    line(statement.endComment, "}");
+    return null;
+  }
+
+  @Override
+  public Void visitForEach(Statement.ForEach statement) {
+    line(statement.comment, "for (var ", statement.variable, " in ",
+        render(statement.collection), ") {");
+    ++depth;
+    emitAll(statement.body);
+    --depth;
+    line(statement.endComment, "}");
+    return null;
+  }
+
+  @Override
+  public Void visitDo(Statement.Do statement) {
+    switch (statement.test) {
+      case WHILE:
+        line(statement.comment, "while (", render(statement.condition), ") {");
+        break;
+      case UNTIL:
+        line(statement.comment, "while (!(", render(statement.condition), ")) {");
+        break;
+      default:
+        line(statement.comment, "while (1) {");
+        break;
+    }
+
+    ++depth;
+    emitAll(statement.body);
+
+    if (statement.loopTest == Statement.Do.Test.WHILE) {
+      line(statement.loopComment, "if (!(", render(statement.loopCondition), "))");
+      ++depth;
+      line(statement.loopComment, "break;");
+      --depth;
+    } else if (statement.loopTest == Statement.Do.Test.UNTIL) {
+      line(statement.loopComment, "if (", render(statement.loopCondition), ")");
+      ++depth;
+      line(statement.loopComment, "break;");
+      --depth;
+    }
+
+    --depth;
+    line(statement.loopComment, "}");
+    return null;
+  }
+
+  @Override
+  public Void visitWhile(Statement.While statement) {
+    line(statement.loop.comment, "while (", render(statement.loop.condition), ") {");
+    ++depth;
+    emitAll(statement.loop.body);
+    --depth;
+    line(statement.endComment, "}");
+    return null;
+  }
+
+  @Override
+  public Void visitProcedure(Statement.Procedure procedure) {
+    StringBuilder argList = new StringBuilder();
+    for (Statement.Parameter parameter : procedure.parameters) {
+      argList.append(parameter.prefix).append(parameter.name);
+      if (parameter.defaultValue != null) {
+        argList.append(" /*= ").append(render(parameter.defaultValue)).append("*/");
+      }
+      if (parameter.isSeparated) {
+        argList.append(", ");
+      }
+    }
+
+    if (!procedure.isFunction) {
+      line(procedure.comment, "function ", procedure.name, "(", argList.toString(), ") {");
+      ++depth;
+      emitAll(procedure.body);
+      --depth;
+      line(procedure.endComment, "}");
+      return null;
+    }
+
+    String ret = procedure.returnType.isEmpty() ? "" : " // " + procedure.returnType;
+    String returnVariable = "_" + procedure.name;
+    line(procedure.comment, "function ", procedure.name, "(", argList.toString(), ") {", ret);
+    ++depth;
+    line(procedure.comment, "var ", returnVariable, " = \"\"; // Stores return value");
+    emitAll(procedure.body);
+    line(procedure.endComment, "return ", returnVariable, ";");
+    --depth;
+    line(procedure.endComment, "}");
+    return null;
+  }
+
+  @Override
+  public Void visitSelect(Statement.Select select) {
+    emitAll(select.blanks);
+    String expr = render(select.selector);
+    boolean isFirst = true;
+    for (Statement.Case selectCase : select.cases) {
+      if (selectCase.conditions == null) {
+        line(selectCase.comment, "} else {");
+      } else {
+        StringBuilder ifExpr = new StringBuilder();
+        for (Statement.CaseCondition condition : selectCase.conditions) {
+          String value = render(condition.value);
+          if (condition.upper != null) {
+            ifExpr.append(expr).append(" >= ").append(value).append(" && ").append(expr)
+                .append(" <= ").append(render(condition.upper));
+          } else {
+            ifExpr.append(expr).append(" ").append(condition.operator).append(" ")
+                .append(parenthesize(value));
+          }
+          if (condition.isSeparated) {
+            ifExpr.append(" || ");
+          }
+        }
+        line(selectCase.comment, isFirst ? "" : "} else ", "if (", ifExpr.toString(), ") {");
+      }
+      isFirst = false;
+      ++depth;
+      emitAll(selectCase.body);
+      --depth;
+    }
+    line(select.endComment, "}");
+    return null;
+  }
+
+  @Override
+  public Void visitExit(Statement.Exit exit) {
+    switch (exit.kind) {
+      case LOOP:
+        line(exit.comment, "break;");
+        break;
+      case SUB:
+        line(exit.comment, "return;");
+        break;
+      case FUNCTION:
+        line(exit.comment, "return _", render(exit.target), ";");
+        break;
+      default:
+        line(exit.comment, render(exit.target), "; // BUG");
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitWith(Statement.With with) {
+    line(with.comment, "// With ", with.name);
+    emitAll(with.body);
+    return null;
+  }
+
+  @Override
+  public Void visitType(Statement.TypeDeclaration type) {
+    // JS class constructor
+    line(type.comment, type.name, " = function() {};  // Creates an empty class");
+
+    for (Statement.TypeMember member : type.members) {
+      String vtype = member.isTypeName ? member.type : "// " + member.type;
+      if (member.name.isEmpty()) {
+        // Only a comment
+        line(member.comment, render(member.rest));
+      } else if (member.isUserDefinedType) {
+        // Attach the variable prototype
+        line(member.comment, type.name, ".prototype.", member.name, " = new ", vtype, "();");
+      } else {
+        line(member.comment, type.name, ".prototype.", member.name, "; ", vtype);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitOnError(Statement.OnError onError) {
+    switch (onError.kind) {
+      case RESUME:
+        line(onError.comment, "// On Error Resume ", render(onError.target), "; // UNTOUCHED");
+        break;
+      case GOTO_ZERO:
+        line(onError.comment, "// On Error GoTo 0; // UNTOUCHED");
+        break;
+      case GOTO:
+        line(onError.comment, "try {");
+        ++depth;
+        emitAll(onError.tryBody);
+        --depth;
+        line(onError.catchComment, "} catch(e) { // ", render(onError.target));
+        ++depth;
+        emitAll(onError.catchBody);
+        --depth;
+        line(onError.endComment, "}");
+        break;
+      default: // nothing to show for it
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSkipped(Statement.Skipped skipped) {
+    line("", "// CAN'T CONVERT: ", skipped.message);
+    for (String text : skipped.lines) {
+      line("", "// ", text);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitHandled(Statement.Handled handled) {
+    String comment = handled.comment;
+    for (String code : Splitter.on('\n').split(handled.code)) {
+      line(comment, code);
+      comment = "";
+    }
+    return null;
+  }
+
+  /**
+   * Turns an expression back into text, with VB constructs written the JS way.
+   */
+  private static final class Renderer implements Expression.Visitor<String> {
+
+    private static final Pattern OPERATOR_PATTERN = Pattern.compile(".*[-+*/%^<>=!&|].*");
+    private static final Pattern COMMA_PATTERN = Pattern.compile(", *");
+
+    /**
+     * Add outer parens if !s appears to need them.
+     */
+    private static String addParen(String str) {
+      if (OPERATOR_PATTERN.matcher(str).matches()) { // watch out: needs unanchored
+        return "(" + str + ")";
+      } else {
+        return str;
+      }
+    }
+
+    /**
+     * Set brackets in s to convert from (...) to [...]""".
+     */
+    // Note: This is probably too aggressive: won't work if there are nested
+    // commas. e.g., in function calls in subscripts, or in strings.
+    private static String setBrackets(String str) {
+      String input = str.substring(1, str.length() - 1);
+      if (input.indexOf('(') == -1) {
+        input = COMMA_PATTERN.matcher(input).replaceAll("][");
+      }
+      return "[" + input + "]";
+    }
+
+    private String renderAll(List<Expression> parts) {
+      StringBuilder text = new StringBuilder();
+      for (Expression part : parts) {
+        text.append(part.accept(this));
+      }
+      return text.toString();
+    }
+
+    @Override
+    public String visitLiteral(Expression.Literal literal) {
+      return literal.text;
+    }
+
+    @Override
+    public String visitMissing(Expression.Missing missing) {
+      return ConverterUtil.EMPTY;
+    }
+
+    @Override
+    public String visitSequence(Expression.Sequence sequence) {
+      return renderAll(sequence.parts);
+    }
+
+    /**
+     * Operators of the same precedence group to the left, so a chain of them is a tree as
+     * deep as the chain is long: it is rendered down its left side in a loop, rather than
+     * recursing and copying the text so far at each operator.
+     */
+    @Override
+    public String visitBinary(Expression.Binary binary) {
+      List<Expression.Binary> chain = Lists.newArrayList();
+      Expression left = binary;
+      while (left instanceof Expression.Binary) {
+        chain.add((Expression.Binary) left);
+        left = ((Expression.Binary) left).left;
+      }
+      StringBuilder text = new StringBuilder(left.accept(this));
+      for (int i = chain.size() - 1; i >= 0; --i) {
+        text.append(chain.get(i).operator).append(chain.get(i).right.accept(this));
+      }
+      return text.toString();
+    }
+
+    @Override
+    public String visitUnary(Expression.Unary unary) {
+      return unary.operators + unary.operand.accept(this);
+    }
+
+    @Override
+    public String visitNot(Expression.Not not) {
+      return "!" + addParen(not.operand.accept(this));
+    }
+
+    @Override
+    public String visitLike(Expression.Like like) {
+      return "Like(" + like.left.accept(this) + "," + like.right.accept(this) + ")";
+    }
+
+    @Override
+    public String visitPower(Expression.Power power) {
+      return "exp(" + power.base.accept(this) + ", " + power.exponent.accept(this) + ")";
+    }
+
+    @Override
+    public String visitNamedArgument(Expression.NamedArgument argument) {
+      return "\"" + argument.name.accept(this) + " :=\", " + argument.value.accept(this);
+    }
+
+    @Override
+    public String visitParenthesized(Expression.Parenthesized parenthesized) {
+      return "(" + parenthesized.inner.accept(this) + parenthesized.close;
+    }
+
+    @Override
+    public String visitMember(Expression.Member member) {
+      return member.target.accept(this) + "." + member.member.accept(this);
+    }
+
+    @Override
+    public String visitWithMember(Expression.WithMember member) {
+      return member.withName + "." + member.member.accept(this);
+    }
+
+    @Override
+    public String visitCall(Expression.Call call) {
+      String text = "(" + renderArguments(call.arguments) + call.close;
+      return call.target.accept(this) + (call.isSubscript ? setBrackets(text) : text);
+    }
+
+    @Override
+    public String visitBalanced(Expression.Balanced balanced) {
+      return "(" + renderAll(balanced.parts) + balanced.close;
+    }
+
+    @Override
+    public String visitSubscript(Expression.Subscript subscript) {
+      return subscript.target.accept(this) + setBrackets(subscript.subscripts.accept(this));
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Expression nodes built by Line. Operators are kept as the JS text they become (see
+ * ConverterUtil.fixOperators()), and names from With blocks and arrays are resolved when the
+ * node is built, since they depend on the declarations seen so far. Emitter turns a node
+ * back into text.
+ */
+abstract class Expression {
+
+  interface Visitor<R> {
+    R visitLiteral(Literal literal);
+    R visitMissing(Missing missing);
+    R visitSequence(Sequence sequence);
+    R visitBinary(Binary binary);
+    R visitUnary(Unary unary);
+    R visitNot(Not not);
+    R visitLike(Like like);
+    R visitPower(Power power);
+    R visitNamedArgument(NamedArgument argument);
+    R visitParenthesized(Parenthesized parenthesized);
+    R visitMember(Member member);
+    R visitWithMember(WithMember member);
+    R visitCall(Call call);
+    R visitBalanced(Balanced balanced);
+    R visitSubscript(Subscript subscript);
+  }
+
+  /** The empty expression, e.g. from a missing name */
+  static final Literal EMPTY = new Literal(Lexer.NONE, "");
+
+  abstract <R> R accept(Visitor<R> visitor);
+
+  /**
+   * Returns parts as one expression: EMPTY if there are none, the only one if there is one.
+   */
+  static Expression sequence(List<Expression> parts) {
+    if (parts.isEmpty()) {
+      return EMPTY;
+    }
+    return parts.size() == 1 ? parts.get(0) : new Sequence(parts);
+  }
+
+  /**
+   * A single token: a number, string, name, operator or anything else.
+   */
+  static final class Literal extends Expression {
+    final int kind;
+    final String text;
+
+    Literal(int kind, String text) {
+      this.kind = kind;
+      this.text = text;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLiteral(this);
+    }
+  }
+
+  /**
+   * An argument left out of a list, as in foo(a, , b).
+   */
+  static final class Missing extends Expression {
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitMissing(this);
+    }
+  }
+
+  /**
+   * Expressions that follow each other with nothing in between, as in a line that isn't
+   * understood, or foo(a b).
+   */
+  static final class Sequence extends Expression {
+    final ImmutableList<Expression> parts;
+
+    Sequence(List<Expression> parts) {
+      this.parts = ImmutableList.copyOf(parts);
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSequence(this);
+    }
+  }
+
+  /**
+   * left op right, for logical, relational and arithmetic operators.
+   */
+  static final class Binary extends Expression {
+    final Expression left;
+    final String operator;
+    final Expression right;
+
+    Binary(Expression left, String operator, Expression right) {
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBinary(this);
+    }
+  }
+
+  /**
+   * Leading + and - signs, e.g. "-" or "+-".
+   */
+  static final class Unary extends Expression {
+    final String operators;
+    final Expression operand;
+
+    Unary(String operators, Expression operand) {
+      this.operators = operators;
+      this.operand = operand;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitUnary(this);
+    }
+  }
+
+  static final class Not extends Expression {
+    final Expression operand;
+
+    Not(Expression operand) {
+      this.operand = operand;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitNot(this);
+    }
+  }
+
+  static final class Like extends Expression {
+    final Expression left;
+    final Expression right;
+
+    Like(Expression left, Expression right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLike(this);
+    }
+  }
+
+  /**
+   * base ^ exponent
+   */
+  static final class Power extends Expression {
+    final Expression base;
+    final Expression exponent;
+
+    Power(Expression base, Expression exponent) {
+      this.base = base;
+      this.exponent = exponent;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitPower(this);
+    }
+  }
+
+  /**
+   * name := value
+   */
+  static final class NamedArgument extends Expression {
+    final Expression name;
+    final Expression value;
+
+    NamedArgument(Expression name, Expression value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitNamedArgument(this);
+    }
+  }
+
+  /**
+   * (inner), where the closing token may turn out to be something else.
+   */
+  static final class Parenthesized extends Expression {
+    final Expression inner;
+    final String close;
+
+    Parenthesized(Expression inner, String close) {
+      this.inner = inner;
+      this.close = close;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitParenthesized(this);
+    }
+  }
+
+  /**
+   * target.member
+   */
+  static final class Member extends Expression {
+    final Expression target;
+    final Expression member;
+
+    Member(Expression target, Expression member) {
+      this.target = target;
+      this.member = member;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitMember(this);
+    }
+  }
+
+  /**
+   * .member inside With, with the With name filled in.
+   */
+  static final class WithMember extends Expression {
+    final String withName;
+    final Expression member;
+
+    WithMember(String withName, Expression member) {
+      this.withName = withName;
+      this.member = member;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWithMember(this);
+    }
+  }
+
+  /**
+   * target(arguments), or target[arguments] if target is an array.
+   */
+  static final class Call extends Expression {
+    final Expression target;
+    final ImmutableList<Expression> arguments;
+    final String close;
+    final boolean isSubscript;
+
+    Call(Expression target, List<Expression> arguments, String close, boolean isSubscript) {
+      this.target = target;
+      this.arguments = ImmutableList.copyOf(arguments);
+      this.close = close;
+      this.isSubscript = isSubscript;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCall(this);
+    }
+  }
+
+  /**
+   * A balanced-paren sequence of tokens, as in Dim x(1 To 10).
+   */
+  static final class Balanced extends Expression {
+    final ImmutableList<Expression> parts;
+    final String close;
+
+    Balanced(List<Expression> parts, String close) {
+      this.parts = ImmutableList.copyOf(parts);
+      this.close = close;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBalanced(this);
+    }
+  }
+
+  /**
+   * array(...) in a balanced-paren sequence, written as array[...].
+   */
+  static final class Subscript extends Expression {
+    final Expression target;
+    final Balanced subscripts;
+
+    Subscript(Expression target, Balanced subscripts) {
+      this.target = target;
+      this.subscripts = subscripts;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSubscript(this);
+    }
+  }
+}
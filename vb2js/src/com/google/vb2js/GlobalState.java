@@ -16,6 +16,7 @@
 
 package com.google.vb2js;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
 import java.util.Set;
@@ -39,7 +40,14 @@ final class GlobalState {
   /** Names of local vars */
   private final Set<String> localNames;
 
-  GlobalState() {
+  /** Names of arrays declared in other modules of the project */
+  private final SymbolIndex symbols;
+
+  /** Where the names looked up go while a LineMemo records a line, else null */
+  private LineMemo recorder;
+
+  GlobalState(SymbolIndex symbols) {
+    this.symbols = symbols;
     this.withNames = new Stack<String>();
 
     this.globalNames = Sets.newHashSet();
@@ -50,6 +58,18 @@ final class GlobalState {
     globalNames.add(name);
   }
 
+  void addGlobalNames(Set<String> names) {
+    globalNames.addAll(names);
+  }
+
+  ImmutableSet<String> getGlobalNames() {
+    return ImmutableSet.copyOf(globalNames);
+  }
+
+  int getGlobalNameCount() {
+    return globalNames.size();
+  }
+
   void addLocalName(String name) {
     localNames.add(name);
   }
@@ -59,13 +79,37 @@ final class GlobalState {
     withNames.push(name);
   }
 
+  /** Forgets all names, for another file */
+  void reset() {
+    recorder = null;
+    withNames.clear();
+    globalNames.clear();
+    localNames.clear();
+  }
+
   void clearLocalNames() {
     localNames.clear();
   }
 
   /** Get the current With name (ie, the top of the stack) */
   String getWithName() {
-    return withNames.peek();
+    if (withNames.isEmpty()) {
+      throw new ParseException("Member of a With outside any With, can't parse");
+    }
+    String name = withNames.peek();
+    if (recorder != null) {
+      recorder.recordWithName(name);
+    }
+    return name;
+  }
+
+  int getWithDepth() {
+    return withNames.size();
+  }
+
+  /** Pops With names until there are only depth left */
+  void popWithNames(int depth) {
+    withNames.setSize(depth);
   }
 
   /** Remove the latest With name from the stack (ie, pop) */
@@ -74,6 +118,15 @@ final class GlobalState {
   }
 
   boolean isArrayName(String name) {
-    return (localNames.contains(name) || globalNames.contains(name));
+    boolean isArrayName = localNames.contains(name) || globalNames.contains(name)
+        || symbols.isArrayName(name);
+    if (recorder != null) {
+      recorder.recordArrayName(name, isArrayName);
+    }
+    return isArrayName;
+  }
+
+  void setRecorder(LineMemo recorder) {
+    this.recorder = recorder;
   }
 }
\ No newline at end of file
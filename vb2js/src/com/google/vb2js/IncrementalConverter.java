@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A VB module that is edited and converted again and again, as in an editor. The module is
+ * kept as lines that have already been cleaned up (continuations merged, one-line If's
+ * rewritten) and parsed, and the tokens lexed while converting stay with their lines. An
+ * edit only redoes this for the lines it touches and for the rest of the continuation
+ * groups they belong to; every other line is converted from what was kept.
+ *
+ * Converting still reads the whole module, since what a line becomes depends on the
+ * declarations before it, but a Sub or Function is only translated again if its lines or
+ * the names declared before it have changed; the JavaScript of the others is kept in a
+ * ProcedureCache. It is NOT thread-safe.
+ */
+public final class IncrementalConverter {
+
+  /** A continuation group after cleanup, and its lines parsed */
+  private static final class Group {
+    private final List<String> cleaned;
+    private final List<LexedLine> lexed;
+
+    private Group(List<String> cleaned, List<LexedLine> lexed) {
+      this.cleaned = cleaned;
+      this.lexed = lexed;
+    }
+  }
+
+  /** Input lines, trimmed */
+  private final List<String> lines;
+
+  /**
+   * For the last line of each continuation group, the group cleaned up; null for the other
+   * lines, and for groups that could not be cleaned up yet
+   */
+  private final List<Group> groups;
+
+  /** Used to parse lines for keeping */
+  private final Line parser;
+
+  /** The JavaScript of the Subs and Functions as last converted */
+  private final ProcedureCache procedures;
+
+  /**
+   * Starts with text split into lines at \n, \r or \r\n.
+   */
+  public IncrementalConverter(String vbaCode) {
+    this(Lists.newArrayList(SourceText.lines(vbaCode)));
+  }
+
+  public IncrementalConverter(List<String> vbaCode) {
+    this.lines = Lists.newArrayList();
+    this.groups = Lists.newArrayList();
+    this.parser = new Line();
+    this.procedures = new ProcedureCache();
+    for (String line : vbaCode) {
+      if (line != null) {
+        lines.add(line.trim());
+      }
+    }
+    groups.addAll(Collections.<Group>nCopies(lines.size(), null));
+    update(0, lines.size());
+  }
+
+  public int getLineCount() {
+    return lines.size();
+  }
+
+  /**
+   * Replaces lines firstLine (inclusive) to lastLine (exclusive) by the lines of newText,
+   * split at \n, \r or \r\n. An empty newText deletes the lines, and firstLine == lastLine
+   * inserts before firstLine.
+   */
+  public void edit(int firstLine, int lastLine, String newText) {
+    Preconditions.checkPositionIndexes(firstLine, lastLine, lines.size());
+    List<String> newLines = Lists.newArrayList(SourceText.lines(newText));
+    lines.subList(firstLine, lastLine).clear();
+    lines.addAll(firstLine, newLines);
+    groups.subList(firstLine, lastLine).clear();
+    groups.addAll(firstLine, Collections.<Group>nCopies(newLines.size(), null));
+    update(firstLine, firstLine + newLines.size());
+  }
+
+  /**
+   * Converts the module as it is now. Gives the same result as VbaJsConverter.convert() on
+   * the same lines, errors at the same line numbers included.
+   */
+  public String convert() {
+    if (lines.isEmpty()) {
+      return "";
+    }
+    List<String> cleaned = Lists.newArrayList();
+    List<LexedLine> lexed = Lists.newArrayList();
+    int[] lineNumbers = new int[lines.size() + 1];
+    int groupStart = 0;
+    for (int i = 0; i < lines.size(); ++i) {
+      if (i < lines.size() - 1 && TranslationUnit.isContinued(lines.get(i))) {
+        continue;
+      }
+      Group group = groups.get(i);
+      if (group == null) { // continued past the last line
+        group = cleanGroup(groupStart, i + 1);
+      }
+      // Each line of the group, the pieces of a one-line If too, starts where the group does.
+      if (cleaned.size() + group.cleaned.size() >= lineNumbers.length) {
+        lineNumbers = Arrays.copyOf(lineNumbers,
+            Math.max(2 * lineNumbers.length, cleaned.size() + group.cleaned.size() + 1));
+      }
+      Arrays.fill(lineNumbers, cleaned.size(), cleaned.size() + group.cleaned.size(),
+          groupStart);
+      cleaned.addAll(group.cleaned);
+      lexed.addAll(group.lexed);
+      groupStart = i + 1;
+    }
+    lineNumbers[cleaned.size()] = lines.size();
+    return VbaJsConverter.convertLexed(cleaned, lexed, lineNumbers, procedures);
+  }
+
+  /** Number of Subs and Functions whose JavaScript convert() took from the cache */
+  long getProcedureHits() {
+    return procedures.getHits();
+  }
+
+  /** Number of Subs and Functions convert() looked for in the cache and translated */
+  long getProcedureMisses() {
+    return procedures.getMisses();
+  }
+
+  /**
+   * Cleans up again the groups that lines from to to (exclusive) belong to, after they
+   * were put there, and the group of line to, which may have lost lines continued into it.
+   */
+  private void update(int from, int to) {
+    int start = from;
+    while (start > 0 && TranslationUnit.isContinued(lines.get(start - 1))) {
+      --start;
+    }
+    while (start <= to && start < lines.size()) {
+      int end = start;
+      while (end < lines.size() && TranslationUnit.isContinued(lines.get(end))) {
+        groups.set(end, null);
+        ++end;
+      }
+      if (end == lines.size()) { // continued past the last line; left for convert()
+        break;
+      }
+      try {
+        groups.set(end, cleanGroup(start, end + 1));
+      } catch (ParseException e) {
+        groups.set(end, null); // left for convert() to report
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Cleans up lines start to end (exclusive), which make one continuation group, the way
+   * TranslationUnit.cleanup() does, and parses the lines that come out.
+   */
+  private Group cleanGroup(int start, int end) {
+    String line = TranslationUnit.mergeContinuations(lines.subList(start, end).iterator());
+    List<String> cleaned = Collections.singletonList(line);
+    try {
+      if (!parser.parseLine(line).isOneLineIf()) {
+        return new Group(cleaned, Collections.singletonList(parser.detach()));
+      }
+      cleaned = TranslationUnit.rewriteOneLineIf(line);
+    } catch (ParseException e) {
+      return new Group(cleaned, Collections.<LexedLine>singletonList(null));
+    }
+    List<LexedLine> lexed = Lists.newArrayListWithCapacity(cleaned.size());
+    for (String piece : cleaned) {
+      try {
+        lexed.add(parser.parseLine(piece).detach());
+      } catch (ParseException e) {
+        lexed.add(null); // parsed again, and reported, when converted
+      }
+    }
+    return new Group(cleaned, lexed);
+  }
+}
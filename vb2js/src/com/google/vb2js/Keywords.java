@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+
+/**
+ * Table of the keywords whose case is canonicalized, e.g. "end if" => "End If". A keyword
+ * is identified by its index in the table. Lookups hash the source characters directly,
+ * ignoring ASCII case, so finding a keyword (or finding that a token isn't one) doesn't
+ * allocate.
+ */
+final class Keywords {
+
+  /** ID of anything that is not a keyword */
+  static final int NONE = -1;
+
+  private static final ImmutableList<String> NAMES = ImmutableList.of(
+      "And",
+      "As",
+      "ByRef",
+      "ByVal",
+      "Case",
+      "Const",
+      "Dim",
+      "Do",
+      "Double",
+      "Downto",
+      "Each",
+      "Else",
+      "ElseIf",
+      "End",
+      "End Function",
+      "End If",
+      "End Sub",
+      "End Select",
+      "End While",
+      "End With",
+      "Error",
+      "Exit",
+      "False",
+      "For",
+      "Function",
+      "Global",
+      "GoTo",
+      "If",
+      "Integer",
+      "Is",
+      "Like",
+      "Loop",
+      "Mod",
+      "New",
+      "Next",
+      "Not",
+      "Nothing",
+      "Null",
+      "On",
+      "Or",
+      "Private",
+      "Public",
+      "Resume",
+      "Select",
+      "Single",
+      "Static",
+      "Step",
+      "Sub",
+      "Then",
+      "To",
+      "True",
+      "Type",
+      "Until",
+      "While",
+      "With",
+      "Xor");
+
+  /** Open-addressing hash table of keyword IDs, NONE in empty slots */
+  private static final int[] TABLE = new int[128];
+
+  private static final int MASK = TABLE.length - 1;
+
+  private static final int MAX_LENGTH;
+
+  static {
+    Arrays.fill(TABLE, NONE);
+    int maxLength = 0;
+    for (int i = 0; i < NAMES.size(); ++i) {
+      String name = NAMES.get(i);
+      int slot = hash(name, 0, name.length()) & MASK;
+      while (TABLE[slot] != NONE) {
+        slot = (slot + 1) & MASK;
+      }
+      TABLE[slot] = i;
+      maxLength = Math.max(maxLength, name.length());
+    }
+    MAX_LENGTH = maxLength;
+  }
+
+  private Keywords() {
+  }
+
+  /**
+   * Returns the ID of the keyword spelled by text[start, end) in any case, or NONE.
+   */
+  static int find(CharSequence text, int start, int end) {
+    int length = end - start;
+    if (length > MAX_LENGTH) {
+      return NONE;
+    }
+    for (int slot = hash(text, start, end) & MASK; TABLE[slot] != NONE; slot = (slot + 1) & MASK) {
+      String name = NAMES.get(TABLE[slot]);
+      if (name.length() == length && equalsIgnoreCase(text, start, name)) {
+        return TABLE[slot];
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Returns the number of keywords; IDs run from 0 to one less.
+   */
+  static int count() {
+    return NAMES.size();
+  }
+
+  /**
+   * Returns the canonical spelling of a keyword.
+   */
+  static String getName(int id) {
+    return NAMES.get(id);
+  }
+
+  private static int hash(CharSequence text, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; ++i) {
+      hash = 31 * hash + toLowerCase(text.charAt(i));
+    }
+    return hash ^ (hash >>> 7);
+  }
+
+  private static boolean equalsIgnoreCase(CharSequence text, int start, String name) {
+    for (int i = 0, len = name.length(); i < len; ++i) {
+      if (toLowerCase(text.charAt(start + i)) != toLowerCase(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static char toLowerCase(char c) {
+    return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+/**
+ * A line as Line.parseLine() leaves it, kept so it can be converted again without being
+ * parsed and lexed again. The tokens are lexed lazily the first time the line is converted
+ * and stay in the buffer after that.
+ */
+final class LexedLine {
+
+  private final String original;
+
+  /** Line without strings, comment and [...], canonicalized */
+  private final String converted;
+
+  private final String comment;
+
+  private final TokenBuffer tokens;
+
+  LexedLine(String original, String converted, String comment, TokenBuffer tokens) {
+    this.original = original;
+    this.converted = converted;
+    this.comment = comment;
+    this.tokens = tokens;
+  }
+
+  String getOriginal() {
+    return original;
+  }
+
+  String getConverted() {
+    return converted;
+  }
+
+  String getComment() {
+    return comment;
+  }
+
+  TokenBuffer getTokens() {
+    return tokens;
+  }
+}
@@ -0,0 +1,431 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+/**
+ * Hand-written scanner that recognizes one token at a time. It dispatches on the first
+ * character and then on the word that starts there, so each token is found in a single
+ * left-to-right pass instead of trying a cascade of regular expressions.
+ * The token kinds and their priority follow the old regex table exactly:
+ * <pre>
+ *   OP      Mod Is Not AndAlso And OrElse Or Xor Eqv Like New
+ *   ENDXX   End +(If|Sub|Function|While|With|Select)
+ *   EXIT    Exit
+ *   TOSS    Private Public Static Let Set
+ *   PUNT    Attribute Option Declare, Open .* For , Close #\w+, Print #, Line Input #,
+ *           On Error Resume Next, On Error GoTo 0, Resume, GoTo
+ *   ONERROR On Error
+ *   KEY     Then Else To Downto Step As ByVal ByRef
+ *   TYPE    Type, End Type
+ *   ID      [a-zA-Z]\w*\$?
+ *   DATE    #\d+/\d+/\d+#
+ *   NUM     ((\d+\.?\d*)|(\.\d+))([eE][-+]?\d+)?[&#]?
+ *   HEX     &H[a-fA-F0-9]+
+ *   OP      <> <= >= := * ^ / \ + - &amp; = &gt; &lt;
+ *   STR     "[^"]*"
+ *   COMMENT ".*
+ *   CHR     any other character
+ *   END     empty input
+ * </pre>
+ * All keyword matching is ASCII case-insensitive, and keywords must end on a word boundary
+ * in the java.util.regex sense.
+ */
+final class Lexer {
+
+  /** Token kinds; see the table above */
+  static final int NONE = 0;
+  static final int OP = 1;
+  static final int ENDXX = 2;
+  static final int EXIT = 3;
+  static final int TOSS = 4;
+  static final int PUNT = 5;
+  static final int ONERROR = 6;
+  static final int KEY = 7;
+  static final int TYPE = 8;
+  static final int ID = 9;
+  static final int DATE = 10;
+  static final int NUM = 11;
+  static final int HEX = 12;
+  static final int STR = 13;
+  static final int COMMENT = 14;
+  static final int CHR = 15;
+  static final int END = 16;
+
+  private static final String[] OPERATOR_WORDS =
+      {"Mod", "Is", "Not", "AndAlso", "And", "OrElse", "Or", "Xor", "Eqv", "Like", "New"};
+
+  private static final String[] END_WORDS = {"If", "Sub", "Function", "While", "With", "Select"};
+
+  private static final String[] TOSS_WORDS = {"Private", "Public", "Static", "Let", "Set"};
+
+  private static final String[] PUNT_WORDS = {"Attribute", "Option", "Declare"};
+
+  private static final String[] KEY_WORDS =
+      {"Then", "Else", "To", "Downto", "Step", "As", "ByVal", "ByRef"};
+
+  /** Kind of the last scanned token */
+  private int kind;
+
+  /** Length of the last scanned token */
+  private int length;
+
+  /**
+   * Returns the kind of the token found by the last successful scan().
+   */
+  int getKind() {
+    return kind;
+  }
+
+  /**
+   * Returns the length of the token found by the last successful scan().
+   */
+  int getLength() {
+    return length;
+  }
+
+  /**
+   * Scans the token that starts at text[start]. Returns false if nothing matches, which
+   * only happens for a line terminator in the middle of the text.
+   */
+  boolean scan(CharSequence text, int start) {
+    int end = text.length();
+    if (start >= end) {
+      return found(END, 0);
+    }
+
+    char first = text.charAt(start);
+    if (isWordChar(first)) {
+      int wordEnd = skipWord(text, start, end);
+      if (scanWord(text, start, wordEnd, end)) {
+        return true;
+      }
+      if (isLetter(first)) {
+        if (wordEnd < end && text.charAt(wordEnd) == '$') {
+          ++wordEnd;
+        }
+        return found(ID, wordEnd - start);
+      }
+    }
+
+    switch (first) {
+      case '#': {
+        int dateEnd = scanDate(text, start, end);
+        if (dateEnd > 0) {
+          return found(DATE, dateEnd - start);
+        }
+        break;
+      }
+      case '&':
+        if (start + 2 < end && text.charAt(start + 1) == 'H' && isHexDigit(text.charAt(start + 2))) {
+          int hexEnd = start + 3;
+          while (hexEnd < end && isHexDigit(text.charAt(hexEnd))) {
+            ++hexEnd;
+          }
+          return found(HEX, hexEnd - start);
+        }
+        return found(OP, 1);
+      case '<':
+        if (start + 1 < end && (text.charAt(start + 1) == '>' || text.charAt(start + 1) == '=')) {
+          return found(OP, 2);
+        }
+        return found(OP, 1);
+      case '>':
+        return found(OP, start + 1 < end && text.charAt(start + 1) == '=' ? 2 : 1);
+      case ':':
+        if (start + 1 < end && text.charAt(start + 1) == '=') {
+          return found(OP, 2);
+        }
+        return found(CHR, 1);
+      case '*':
+      case '^':
+      case '/':
+      case '\\':
+      case '+':
+      case '-':
+      case '=':
+        return found(OP, 1);
+      case '"': {
+        for (int i = start + 1; i < end; ++i) {
+          if (text.charAt(i) == '"') {
+            return found(STR, i + 1 - start);
+          }
+        }
+        int commentEnd = start + 1;
+        while (commentEnd < end && !isLineTerminator(text.charAt(commentEnd))) {
+          ++commentEnd;
+        }
+        return found(COMMENT, commentEnd - start);
+      }
+      default:
+        break;
+    }
+
+    if (isDigit(first) || (first == '.' && start + 1 < end && isDigit(text.charAt(start + 1)))) {
+      return found(NUM, scanNumber(text, start, end) - start);
+    }
+    if (isLineTerminator(first)) {
+      // $ also matches in front of a line terminator that ends the input
+      boolean last = start + 1 == end
+          || (start + 2 == end && first == '\r' && text.charAt(start + 1) == '\n');
+      return last ? found(END, 0) : false;
+    }
+    if (Character.isHighSurrogate(first) && start + 1 < end
+        && Character.isLowSurrogate(text.charAt(start + 1))) {
+      return found(CHR, 2);
+    }
+    return found(CHR, 1);
+  }
+
+  private boolean found(int kind, int length) {
+    this.kind = kind;
+    this.length = length;
+    return true;
+  }
+
+  /**
+   * Tries the keyword kinds for the word text[start, wordEnd), in the order of the old
+   * regex table. Returns false if the word should be scanned as a plain ID or NUM.
+   */
+  private boolean scanWord(CharSequence text, int start, int wordEnd, int end) {
+    int wordLength = wordEnd - start;
+    // A word directly followed by a non-ASCII letter is not a keyword, but still an ID
+    boolean bounded = isBoundary(text, wordEnd, end);
+
+    if (bounded && isOneOf(text, start, wordLength, OPERATOR_WORDS)) {
+      return found(OP, wordLength);
+    }
+    if (wordLength == 3 && equalsIgnoreCase(text, start, "End")) {
+      int next = wordEnd;
+      while (next < end && text.charAt(next) == ' ') {
+        ++next;
+      }
+      if (next > wordEnd) {
+        int nextEnd = skipWord(text, next, end);
+        if (isBoundary(text, nextEnd, end) && isOneOf(text, next, nextEnd - next, END_WORDS)) {
+          return found(ENDXX, nextEnd - start);
+        }
+      }
+    }
+    if (bounded && wordLength == 4 && equalsIgnoreCase(text, start, "Exit")) {
+      return found(EXIT, wordLength);
+    }
+    if (bounded && isOneOf(text, start, wordLength, TOSS_WORDS)) {
+      return found(TOSS, wordLength);
+    }
+    if (bounded && isOneOf(text, start, wordLength, PUNT_WORDS)) {
+      return found(PUNT, wordLength);
+    }
+    if (startsWithIgnoreCase(text, start, end, "Open ")) {
+      int openEnd = scanOpen(text, start + 5, end);
+      if (openEnd > 0) {
+        return found(PUNT, openEnd - start);
+      }
+    }
+    if (startsWithIgnoreCase(text, start, end, "Close #") && start + 7 < end
+        && isWordChar(text.charAt(start + 7))) {
+      int closeEnd = skipWord(text, start + 7, end);
+      if (isBoundary(text, closeEnd, end)) {
+        return found(PUNT, closeEnd - start);
+      }
+    }
+    if (startsWithIgnoreCase(text, start, end, "Print #") && isWordAt(text, start + 7, end)) {
+      return found(PUNT, 7);
+    }
+    if (startsWithIgnoreCase(text, start, end, "Line Input #") && isWordAt(text, start + 12, end)) {
+      return found(PUNT, 12);
+    }
+    if (startsWithWord(text, start, end, "On Error Resume Next")) {
+      return found(PUNT, 20);
+    }
+    if (startsWithWord(text, start, end, "On Error GoTo 0")) {
+      return found(PUNT, 15);
+    }
+    if (bounded && ((wordLength == 6 && equalsIgnoreCase(text, start, "Resume"))
+        || (wordLength == 4 && equalsIgnoreCase(text, start, "GoTo")))) {
+      return found(PUNT, wordLength);
+    }
+    if (startsWithWord(text, start, end, "On Error")) {
+      return found(ONERROR, 8);
+    }
+    if (bounded && isOneOf(text, start, wordLength, KEY_WORDS)) {
+      return found(KEY, wordLength);
+    }
+    if (bounded && wordLength == 4 && equalsIgnoreCase(text, start, "Type")) {
+      return found(TYPE, wordLength);
+    }
+    if (startsWithWord(text, start, end, "End Type")) {
+      return found(TYPE, 8);
+    }
+    return false;
+  }
+
+  /**
+   * Open .* For : finds the last " For " that is followed by a word character and
+   * that is not preceded by a line terminator. Returns its end, or -1.
+   */
+  private static int scanOpen(CharSequence text, int from, int end) {
+    int limit = from;
+    while (limit < end && !isLineTerminator(text.charAt(limit))) {
+      ++limit;
+    }
+    for (int i = Math.min(limit - 1, end - 6); i >= from; --i) {
+      if (startsWithIgnoreCase(text, i, end, " For ") && isWordChar(text.charAt(i + 5))) {
+        return i + 5;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * #\d+/\d+/\d+# : returns the end of the date, or -1.
+   */
+  private static int scanDate(CharSequence text, int start, int end) {
+    int i = start + 1;
+    for (int part = 0; part < 3; ++part) {
+      int digits = skipDigits(text, i, end);
+      if (digits == i) {
+        return -1;
+      }
+      i = digits;
+      char expected = part < 2 ? '/' : '#';
+      if (i >= end || text.charAt(i) != expected) {
+        return -1;
+      }
+      ++i;
+    }
+    return i;
+  }
+
+  /**
+   * ((\d+\.?\d*)|(\.\d+))([eE][-+]?\d+)?[&#]? : returns the end of the number.
+   */
+  private static int scanNumber(CharSequence text, int start, int end) {
+    int i = skipDigits(text, start, end);
+    if (i < end && text.charAt(i) == '.') {
+      i = skipDigits(text, i + 1, end);
+    }
+    if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+      int exponent = i + 1;
+      if (exponent < end && (text.charAt(exponent) == '-' || text.charAt(exponent) == '+')) {
+        ++exponent;
+      }
+      int exponentEnd = skipDigits(text, exponent, end);
+      if (exponentEnd > exponent) {
+        i = exponentEnd;
+      }
+    }
+    if (i < end && (text.charAt(i) == '&' || text.charAt(i) == '#')) {
+      ++i;
+    }
+    return i;
+  }
+
+  private static int skipDigits(CharSequence text, int from, int end) {
+    while (from < end && isDigit(text.charAt(from))) {
+      ++from;
+    }
+    return from;
+  }
+
+  private static int skipWord(CharSequence text, int from, int end) {
+    while (from < end && isWordChar(text.charAt(from))) {
+      ++from;
+    }
+    return from;
+  }
+
+  private static boolean isOneOf(CharSequence text, int start, int length, String[] words) {
+    for (String word : words) {
+      if (word.length() == length && equalsIgnoreCase(text, start, word)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tests whether text[start] begins with the given phrase followed by a word boundary.
+   */
+  private static boolean startsWithWord(CharSequence text, int start, int end, String phrase) {
+    return startsWithIgnoreCase(text, start, end, phrase)
+        && isBoundary(text, start + phrase.length(), end);
+  }
+
+  private static boolean startsWithIgnoreCase(CharSequence text, int start, int end,
+      String prefix) {
+    return start + prefix.length() <= end && equalsIgnoreCase(text, start, prefix);
+  }
+
+  /**
+   * ASCII case-insensitive comparison of text[start, start + word.length()) with word.
+   * The caller guarantees that the range is inside text.
+   */
+  private static boolean equalsIgnoreCase(CharSequence text, int start, String word) {
+    for (int i = 0, len = word.length(); i < len; ++i) {
+      if (toLowerCase(text.charAt(start + i)) != toLowerCase(word.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tests for a word character the way \\b sees it, after a non-word character.
+   */
+  private static boolean isWordAt(CharSequence text, int index, int end) {
+    if (index >= end) {
+      return false;
+    }
+    int codePoint = Character.codePointAt(text, index);
+    return codePoint == '_' || Character.isLetterOrDigit(codePoint);
+  }
+
+  /**
+   * Tests for \\b at text[index], after a word character. Like java.util.regex this
+   * treats any Unicode letter or digit, or a combining mark, as part of the word.
+   */
+  private static boolean isBoundary(CharSequence text, int index, int end) {
+    return !isWordAt(text, index, end)
+        && (index >= end
+            || Character.getType(Character.codePointAt(text, index)) != Character.NON_SPACING_MARK);
+  }
+
+  private static char toLowerCase(char c) {
+    return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isHexDigit(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isWordChar(char c) {
+    return isLetter(c) || isDigit(c) || c == '_';
+  }
+
+  /**
+   * Characters that "." does not match in a regular expression.
+   */
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+}
@@ -16,11 +16,11 @@
 
 package com.google.vb2js;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 /**
  * This localizes most of the processing for tokenizing a single line of input. Constructor
@@ -56,135 +56,98 @@ final class Line {
   // and logical if they are booleans (e.g., relational tests).
   // AndAlso, OrElse are short-circuit (really && and ||)
 
-  // We're using an ImmutableMap here since the order in which the elements are
-  // accessed matters.
-  private static final ImmutableMap<Pattern, String> TYPES =
-        new ImmutableMap.Builder<Pattern, String>()
-      .put(Pattern.compile("(?i)\\b(Mod|Is|Not|AndAlso|And|OrElse|Or|Xor|Eqv|Like|New)\\b"),
-          "OP")
-      .put(Pattern.compile("(?i)\\b(End +(If|Sub|Function|While|With|Select))\\b"), "ENDXX")
-      .put(Pattern.compile("(?i)\\b(Exit)\\b"), "EXIT")
-      .put(Pattern.compile("(?i)\\b(Private|Public|Static|Let|Set)\\b"), "TOSS")
-      .put(Pattern.compile("(?i)\\b(Attribute|Option|Declare)\\b"), "PUNT")
-      .put(Pattern.compile("(?i)\\b(Open .* For |Close #\\w+)\\b"), "PUNT")
-      .put(Pattern.compile("(?i)\\b(Print #|Line Input #)\\b"), "PUNT")
-      .put(Pattern.compile("(?i)\\b(On Error (Resume Next|GoTo 0)|Resume|GoTo)\\b"), "PUNT")
-      .put(Pattern.compile("(?i)\\b(On Error)\\b"), "ONERROR")
-      .put(Pattern.compile("(?i)\\b(Then|Else|To|Downto|Step|As|ByVal|ByRef)\\b"), "KEY")
-      .put(Pattern.compile("(?i)\\b(Type|End Type)\\b"), "TYPE")
-      .put(Pattern.compile("[a-zA-Z](\\w)*\\$?"), "ID")
-      .put(Pattern.compile("#\\d+/\\d+/\\d+#"), "DATE")
-      .put(Pattern.compile("((\\d+\\.?\\d*)|(\\.\\d+))([eE][-+]?\\d+)?[&#]?"), "NUM")
-      .put(Pattern.compile("&H[a-fA-F0-9]+"), "HEX")
-      .put(Pattern.compile("<>|<=|>=|:="), "OP")
-      .put(Pattern.compile("[*^/\\\\+\\-&=><]"), "OP")
-      .put(Pattern.compile("\"[^\"]*\""), "STR")
-      .put(Pattern.compile("\".*"), "COMMENT")
-      .put(Pattern.compile("."), "CHR")
-      .put(Pattern.compile("^$"), "END")
-      .build();
-
-  private static final ImmutableMap<String, String> KEYWORDS =
-        new ImmutableMap.Builder<String, String>()
-      .put("and", "And")
-      .put("as", "As")
-      .put("byref", "ByRef")
-      .put("byval", "ByVal")
-      .put("case", "Case")
-      .put("const", "Const")
-      .put("dim", "Dim")
-      .put("do", "Do")
-      .put("double", "Double")
-      .put("downto", "Downto")
-      .put("each", "Each")
-      .put("else", "Else")
-      .put("elseif", "ElseIf")
-      .put("end", "End")
-      .put("end function", "End Function")
-      .put("end if", "End If")
-      .put("end sub", "End Sub")
-      .put("end select", "End Select")
-      .put("end while", "End While")
-      .put("end with", "End With")
-      .put("error", "Error")
-      .put("exit", "Exit")
-      .put("false", "False")
-      .put("for", "For")
-      .put("function", "Function")
-      .put("global", "Global")
-      .put("goto", "GoTo")
-      .put("if", "If")
-      .put("integer", "Integer")
-      .put("is", "Is")
-      .put("like", "Like")
-      .put("loop", "Loop")
-      .put("mod", "Mod")
-      .put("new", "New")
-      .put("next", "Next")
-      .put("not", "Not")
-      .put("nothing", "Nothing")
-      .put("null", "Null")
-      .put("on", "On")
-      .put("or", "Or")
-      .put("private", "Private")
-      .put("public", "Public")
-      .put("resume", "Resume")
-      .put("select", "Select")
-      .put("single", "Single")
-      .put("static", "Static")
-      .put("step", "Step")
-      .put("sub", "Sub")
-      .put("then", "Then")
-      .put("to", "To")
-      .put("true", "True")
-      .put("type", "Type")
-      .put("until", "Until")
-      .put("while", "While")
-      .put("with", "With")
-      .put("xor", "Xor")
-      .build();
-
-  private static final ImmutableSet<String> LOGICAL_OPS = ImmutableSet.of(
-      "And",
-      "Or",
-      "Xor");
-
-  private static final ImmutableSet<String> RELATIONAL_OPS = ImmutableSet.of(
-      "<",
-      ">",
-      "=",
-      "<=",
-      ">=",
-      "<>",
-      "Is",
-      "IsNot",
-      "Like");
-
-  private static final ImmutableSet<String> ARITHMETIC_OPS = ImmutableSet.of(
-      "+",
-      "-",
-      "*",
-      "/",
-      "\\",
-      "Mod",
-      "&",
-      ">>",
-      "<<");
-
-  private static final int MAX_PEEK_LIMIT = 1000;
+  // Binding power of the binary operators, loosest first, following the table above.
+  // Not between two operands just puts them side by side (a Not b => a!b).
+  private static final int LOGICAL = 1;
+  private static final int NEGATION = 2;
+  private static final int RELATIONAL = 3;
+  private static final int ARITHMETIC = 4;
+
+  /** Binary operators, with their JS text */
+  private static final ImmutableMap<String, Operator> BINARY_OPS;
+
+  static {
+    ImmutableMap.Builder<String, Operator> ops = ImmutableMap.builder();
+    addOperators(ops, LOGICAL, "And", "Or", "Xor");
+    addOperators(ops, NEGATION, "Not");
+    addOperators(ops, RELATIONAL, "<", ">", "=", "<=", ">=", "<>", "Is", "IsNot", "Like");
+    addOperators(ops, ARITHMETIC, "+", "-", "*", "/", "\\", "Mod", "&", ">>", "<<");
+    BINARY_OPS = ops.build();
+  }
+
+  /** Keywords ID of Then, which makes a line a one-line If if more follows it */
+  private static final int THEN = Keywords.find("Then", 0, 4);
+
+  /** Steps between looks at the clock, less one; a power of 2 less one */
+  private static final int CLOCK_MASK = 1023;
 
   private final GlobalState globalState;
 
-  private String original;
+  private final Lexer lexer;
+
+  /** Tokens of the current line, each lexed once; ownTokens unless a LexedLine was loaded */
+  private TokenBuffer tokens;
+  private TokenBuffer ownTokens;
+
+  /** Line text with strings and [...] rewritten, before trimming and canonicalize() */
+  private final StringBuilder parsed;
+
+  /** The line as given; may be a view of the TranslationUnit's text */
+  private CharSequence original;
+  private boolean isEof;
   private String converted;
-  private int peekCount;
   private String comment;
 
-  private String tokenType;
+  /** Start of what is left of converted */
+  private int position;
+
+  /** Kind and index in tokens of the last token returned by getToken() */
+  private int tokenType;
+  private int tokenIndex;
+
+  /** Last token of the previous line, until getToken() is called on this one */
   private String token;
 
+  /** Number of tokens lexed, and number of lookups answered from the token buffer */
+  private long lexCount;
+  private long reuseCount;
+
+  /** Goes up whenever the parse moves on in the line, or to another line */
+  private long progress;
+
+  /** Steps taken so far, out of those the budget allows, and when time is up */
+  private long steps;
+  private long maxSteps;
+  private boolean hasDeadline;
+  private long deadline;
+
   Line(GlobalState globalState) {
     this.globalState = globalState;
+    this.lexer = new Lexer();
+    this.ownTokens = new TokenBuffer();
+    this.tokens = ownTokens;
+    this.parsed = new StringBuilder();
+    this.tokenIndex = -1;
+    this.maxSteps = Long.MAX_VALUE;
+  }
+
+  /**
+   * Puts the line back as it was when made, but for the buffers it has grown, so it can be
+   * used for another file.
+   */
+  void reset() {
+    tokens = ownTokens;
+    original = null;
+    isEof = false;
+    converted = null;
+    comment = null;
+    position = 0;
+    tokenType = Lexer.NONE;
+    tokenIndex = -1;
+    token = null;
+    steps = 0;
+    maxSteps = Long.MAX_VALUE;
+    hasDeadline = false;
   }
 
   Line() {
@@ -210,25 +173,29 @@ final class Line {
    */
   // Why is this different from exprlist?
   // These items don't have to be expressions. Not clear the separation is necessary, however.
-  String getBalancedParentheses()  {
-    StringBuilder balanced = new StringBuilder(getToken(true));
+  Expression.Balanced getBalancedParentheses()  {
+    getToken(true); // (
+    List<Expression> parts = Lists.newArrayList();
+    long mark = progress;
     while (!peek().equals(")") && !peek().isEmpty()) {
       if (peek().equals("(")) {
-        balanced.append(getBalancedParentheses());
+        parts.add(getBalancedParentheses());
       } else if (peek().equals(".")) {
-        balanced.append(globalState.getWithName()).append(getToken(true)).append(getName());
-      } else if (tokenType.equals("ID")) {
-        String name = getName();
-        balanced.append(name);
-        if (globalState.isArrayName(name) && peek().equals("(")) {
-          balanced.append(setBrackets(getBalancedParentheses()));
+        String withName = globalState.getWithName();
+        getToken(true);
+        parts.add(new Expression.WithMember(withName, getName()));
+      } else if (tokenType == Lexer.ID) {
+        Expression name = getName();
+        if (globalState.isArrayName(Emitter.render(name)) && peek().equals("(")) {
+          name = getSubscript(name);
         }
+        parts.add(name);
       } else {
-        balanced.append(ConverterUtil.fixOperators(getToken(true)));
+        parts.add(getOperator());
       }
+      mark = checkProgress(mark);
     }
-    balanced.append(getToken(true)); // adds terminating )
-    return balanced.toString();
+    return new Expression.Balanced(parts, getToken(true)); // adds terminating )
   }
 
   /**
@@ -242,7 +209,7 @@ final class Line {
    * Returns current token.
    */
   String getCurrentToken() {
-    return token;
+    return tokenIndex < 0 ? token : tokens.getText(tokenIndex);
   }
 
   /**
@@ -253,67 +220,95 @@ final class Line {
    * This isn't complete but it's simpler; assumes that the input is already
    * sensibly parenthesized so it doesn't generate spurious parens.
    */
-  String getExpression()  {
-    String expression = getArg();
+  Expression getExpression()  {
+    Expression expression = getOperation(LOGICAL);
     if (peek().equals(":=")) { // named argument
       getToken(true);
-      expression = "\"" + expression + " :=\", " + getLogic();
+      expression = new Expression.NamedArgument(expression, getOperation(NEGATION));
     }
     return expression;
   }
 
+  /**
+   * Returns the line as lexed: trimmed and canonicalized, with the comment left out.
+   */
+  String getConverted() {
+    return converted;
+  }
+
+  /**
+   * Returns whether no token of the line has been taken yet, i.e. a statement starting now
+   * is the first on its line.
+   */
+  boolean isAtLineStart() {
+    return position == 0;
+  }
+
   /**
    * Returns whatever is left of the line.
    */
   String getLine() {
-    return converted.trim();
+    return converted.substring(position).trim();
+  }
+
+  /**
+   * Returns the next token.
+   */
+  Expression.Literal getLiteral() {
+    String text = getToken(true);
+    return new Expression.Literal(tokenType, text);
   }
 
   /**
    * Returns next name from input, with . expanded, () => [], etc.
    */
-  String getName()  {
+  Expression getName()  {
     if (peek().equals(".")) {
-      return globalState.getWithName() + getToken(true) + getName();
+      String withName = globalState.getWithName();
+      getToken(true);
+      return new Expression.WithMember(withName, getName());
     }
-    if (!tokenType.equals("ID")) {
-      return "";
+    if (tokenType != Lexer.ID) {
+      return Expression.EMPTY;
     }
-    StringBuilder name = new StringBuilder(getToken(true));
+    Expression name = getLiteral();
     if (peek().equals("(")) { // e.g., Range("A3")
-      String expressions = getExpressionList();
-      if (globalState.isArrayName(name.toString())) {
-        expressions = setBrackets(expressions);
+      Expression.Call call = getExpressionList(name);
+      if (globalState.isArrayName(Emitter.render(name))) {
+        checkSubscript(call.arguments.isEmpty() && call.close.isEmpty());
+        call = new Expression.Call(name, call.arguments, call.close, true);
       }
-      name.append(expressions);
+      name = call;
     }
     if (peek().equals("(")) { // e.g., Range("A1")(cnt)...
-      name.append(getExpressionList());
+      name = getExpressionList(name);
     }
     while (peek().equals(".")) { // e.g., Range("A3").Selection.Cells(1,j)
-      name.append(getToken(true));
-      name.append(getName());
+      getToken(true);
+      name = new Expression.Member(name, getName());
     }
-    return name.toString();
+    return name;
   }
 
   /**
    * Returns the trimmed original input.
    */
   String getOriginal() {
-    return original.trim();
+    return original.toString().trim();
   }
 
   /**
    * Returns whatever remains of the current input line.
    */
   // Perhaps should do get_expr or the like to handle array subscripting?
-  String getRest()  {
-    StringBuilder rest = new StringBuilder();
+  Expression getRest()  {
+    List<Expression> rest = Lists.newArrayList();
+    long mark = progress;
     while (!peek().isEmpty() && !peek().equals(ConverterUtil.EOF)) {
-      rest.append(ConverterUtil.fixOperators(getToken(true)));
+      rest.add(getOperator());
+      mark = checkProgress(mark);
     }
-    return rest.toString();
+    return Expression.sequence(rest);
   }
 
   /**
@@ -323,45 +318,142 @@ final class Line {
   // canonicalized by constructor but found here by a simple RE that doesn't
   // handle \" within a string.
   String getToken(boolean advance)  {
-    if (original.trim().equals(ConverterUtil.EOF)) {
+    if (isEof) {
       return ConverterUtil.EOF;
     }
+    step();
 
-    converted = converted.trim();
-    for (Pattern type : TYPES.keySet()) {
-      Matcher m = type.matcher(converted);
-      if (m.lookingAt()) {
-        tokenType = TYPES.get(type);
-        token = converted.substring(m.start(), m.end()); // the matching part
+    int index = tokens.find(position);
+    if (index < 0) {
+      index = lex(position);
+      ++lexCount;
+    } else {
+      ++reuseCount;
+    }
 
-        if (tokenType.equals("TOSS")) {
-          converted = converted.substring(token.length()); // left for next time
-          continue;
-        }
-        if (tokenType.equals("STR")) { // re for strings isn't right so clean up
-          token = getStr(converted);
-        }
-        if (tokenType.equals("DATE")) { // replace # by "
-          token = "\"" + token.substring(1, token.length() - 1) + "\"";
-        }
-        if (tokenType.equals("HEX")) {
-          token = token.replaceFirst("&H", "0x");
-        }
-        if (token.equals("!")) { // maybe too exuberant?
-          token = ".";
+    tokenType = tokens.getKind(index);
+    tokenIndex = index;
+    // left for next time
+    int next = advance ? tokens.getEnd(index) : tokens.getStart(index);
+    if (next > position) {
+      ++progress;
+    }
+    position = next;
+    return tokens.getValue(index);
+  }
+
+  /**
+   * Returns the number of tokens lexed since clearCounts(), over all lines.
+   */
+  long getLexCount() {
+    return lexCount;
+  }
+
+  /**
+   * Returns the number of peek() and getToken() calls since clearCounts() that found their
+   * token already lexed, and so did not lex it again.
+   */
+  long getReuseCount() {
+    return reuseCount;
+  }
+
+  void clearCounts() {
+    lexCount = 0;
+    reuseCount = 0;
+  }
+
+  /**
+   * Returns a mark for checkProgress().
+   */
+  long getProgress() {
+    return progress;
+  }
+
+  /**
+   * Complains unless the parse has moved on in the line, or to another line, since mark
+   * was taken; else returns a new mark. Each loop in the parser that reads tokens checks
+   * this every time round, so that input it doesn't understand can't keep it going
+   * without getting anywhere.
+   */
+  long checkProgress(long mark) {
+    if (progress == mark) {
+      throw new ParseException("Looping because of illegal input: " + original);
+    }
+    return progress;
+  }
+
+  /**
+   * Starts counting steps against budget, from none.
+   */
+  void startBudget(Budget budget) {
+    steps = 0;
+    maxSteps = budget.getMaxSteps();
+    hasDeadline = budget.hasDeadline();
+    if (hasDeadline) {
+      deadline = budget.getDeadline(System.nanoTime());
+    }
+  }
+
+  /** Steps taken since startBudget() */
+  long getSteps() {
+    return steps;
+  }
+
+  /**
+   * Counts count steps against the budget, as if that many tokens were looked at; for work
+   * done before and taken from a cache.
+   */
+  void takeSteps(long count) {
+    for (long i = 0; i < count; ++i) {
+      step();
+    }
+  }
+
+  /**
+   * Counts a token looked at or a line read against the budget.
+   */
+  private void step() {
+    ++steps;
+    if (steps > maxSteps) {
+      throw new BudgetExceededException(
+          "Gave up after " + maxSteps + " steps, at: " + getOriginal());
+    }
+    if (hasDeadline && (steps & CLOCK_MASK) == 0 && System.nanoTime() - deadline > 0) {
+      throw new BudgetExceededException("Ran out of time, at: " + getOriginal());
+    }
+  }
+
+  /**
+   * Tests whether the line just parsed is a one-line If ... Then ... [Else ...], that is,
+   * whether a Then is followed by a blank and more on the line. The tokens lexed to find
+   * out are kept for the parse. A token that can't be lexed ends the search; the parse
+   * complains about it if it gets that far.
+   */
+  boolean isOneLineIf() {
+    boolean isAfterThen = false;
+    try {
+      int from = 0;
+      while (true) {
+        int index = tokens.find(from);
+        if (index < 0) {
+          index = lex(from);
+          ++lexCount;
         }
-        if (advance) {
-          converted = converted.substring(token.length()); // left for next time
+        if (tokens.getKind(index) == Lexer.END) {
+          return false;
         }
-        if (tokenType.equals("NUM")) { // get rid of vb type indicator
-          token = token.replaceFirst("[&#]$", "");
+        if (isAfterThen) {
+          return true;
         }
-
-        return toUpperCase(token);
+        from = tokens.getEnd(index);
+        isAfterThen = tokens.getKeyword(index) == THEN
+            && from < converted.length() && converted.charAt(from) == ' ';
       }
+    } catch (ParseException e) {
+      return false;
+    } finally {
+      tokens.rewind();
     }
-
-    throw new ParseException("Unknown token, can't parse: " + converted);
   }
 
   boolean hasComment() {
@@ -374,149 +466,180 @@ final class Line {
 
   /**
    * Tries to isolate a comment if any, while partially coping with horrors like
-   * single quotes inside double, quotes in comments, etc.
+   * single quotes inside double, quotes in comments, etc. line is only read here, and by
+   * getOriginal() until the next line is parsed.
    */
-  Line parseLine(String line) {
-    this.original = line;
-    this.peekCount = 0;
+  Line parseLine(CharSequence line) {
+    startLine(line);
     this.comment = "";
-    this.converted = "";
-    this.tokenType = "";
 
-    while (!line.isEmpty()) {
-      char first = line.charAt(0);
+    parsed.setLength(0);
+    int length = line.length();
+    int i = 0;
+    while (i < length) {
+      char first = line.charAt(i);
       if (first == '\'') {
-        comment = line.substring(1);
+        comment = line.subSequence(i + 1, length).toString();
         break;
       } else if (first == '"') {
-        // getstring returns the quoted string and the residue as a tuple
-        // in java, getstring can append to _str and return residue
-        line = getString(line);
+        i = getString(line, i);
       } else if (first == '[') {
-        // getbrack returns the quoted string and the residue as a tuple
-        // in java, getbrack can append to _str and return residue
-        line = getBracketed(line);
+        i = getBracketed(line, i);
       } else {
-        converted += first;
-        line = line.substring(1);
+        int plain = i + 1;
+        while (plain < length && !isSpecial(line.charAt(plain))) {
+          ++plain;
+        }
+        parsed.append(line, i, plain);
+        i = plain;
       }
     }
-    converted = canonicalize(converted.trim());
+
+    int start = 0;
+    int end = parsed.length();
+    while (start < end && parsed.charAt(start) <= ' ') {
+      ++start;
+    }
+    while (end > start && parsed.charAt(end - 1) <= ' ') {
+      --end;
+    }
+    converted = Canonicalizer.canonicalize(parsed.substring(start, end));
+    tokens = ownTokens;
+    tokens.reset(converted);
 
     return this;
   }
 
   /**
-   * Returns next token without consuming it.
+   * Makes a line saved by detach() the current line, with the tokens already lexed for it.
    */
-  String peek() {
-    if (original.trim().equals(ConverterUtil.EOF)) {
-      return ConverterUtil.EOF;
+  Line load(LexedLine lexed) {
+    startLine(lexed.getOriginal());
+    this.comment = lexed.getComment();
+    this.converted = lexed.getConverted();
+    tokens = lexed.getTokens();
+    tokens.rewind();
+    return this;
+  }
+
+  /**
+   * Returns the line just parsed, for load() to bring back later. The token buffer goes
+   * with it, so tokens lexed afterwards are kept too.
+   */
+  LexedLine detach() {
+    LexedLine lexed = new LexedLine(original.toString(), converted, comment, tokens);
+    if (tokens == ownTokens) {
+      ownTokens = new TokenBuffer();
     }
+    return lexed;
+  }
 
-    // kludge to detect potential bad input
-    // alternative is to decorate all calls with "and cur.peek() != EOF"
-    ++peekCount;
-    if (peekCount > MAX_PEEK_LIMIT) {
-      throw new ParseException("Looping because of illegal input: " + original);
+  /**
+   * Resets the per-line state, keeping the last token of the previous line.
+   */
+  private void startLine(CharSequence line) {
+    this.original = line;
+    this.isEof = isEof(line);
+    step();
+    ++progress;
+    this.position = 0;
+    this.tokenType = Lexer.NONE;
+    if (tokenIndex >= 0) {
+      this.token = tokens.getText(tokenIndex);
+      this.tokenIndex = -1;
     }
+  }
 
-    return getToken(false);
+  /**
+   * Tests whether line is the EOF marker, give or take blanks around it.
+   */
+  private static boolean isEof(CharSequence line) {
+    int start = 0;
+    int end = line.length();
+    while (start < end && line.charAt(start) <= ' ') {
+      ++start;
+    }
+    while (end > start && line.charAt(end - 1) <= ' ') {
+      --end;
+    }
+    if (end - start != ConverterUtil.EOF.length()) {
+      return false;
+    }
+    for (int i = start; i < end; ++i) {
+      if (line.charAt(i) != ConverterUtil.EOF.charAt(i - start)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
-   * Returns the type of the next token. (Assumes that peek() has just been
-   * called).
+   * Characters that parseLine() can't just copy.
    */
-  String peekTokenType() {
-    return tokenType;
+  private static boolean isSpecial(char c) {
+    return c == '\'' || c == '"' || c == '[';
   }
 
   /**
-   * Add outer parens if !s appears to need them.
+   * Returns next token without consuming it.
    */
-  private String addParen(String str) {
-    if (str.matches(".*[-+*/%^<>=!&|].*")) { // watch out: needs unanchored
-      return "(" + str + ")";
-    } else {
-      return str;
+  String peek() {
+    if (isEof) {
+      return ConverterUtil.EOF;
     }
+    return getToken(false);
   }
 
   /**
-   * Canonicalize some lexical stuff, like Public, that will simplify
-   * subsequent processing.
+   * Returns the Lexer kind of the next token. (Assumes that peek() has just been
+   * called).
    */
-  private String canonicalize(String str) {
-    return str.replaceAll("Property Get ", "Function Get")
-              .replaceAll("Property Let ", "Function Let")
-              .replaceAll("Property Set ", "Function Set")
-              .replaceAll("End Property", "End Function")
-              .replaceAll("(Public|Private|Friend) +Sub", "Sub")
-              .replaceAll("(Public|Private|Friend) +Function", "Function")
-              .replaceAll("(Public|Private|Friend) +Dim", "Dim")
-              .replaceAll("(Public|Private|Friend) +Global", "Global")
-              .replaceAll("(Public|Private|Friend|Global) +Const", "Const")
-              .replaceAll("(Public|Private|Friend) +Declare", "Declare")
-              .replaceAll("(Public|Private|Static)", "Dim");
+  int peekTokenType() {
+    return tokenType;
   }
 
   /**
-   * Returns next expression from input. Handles .names, nested constructs etc.
-   * Drops whitespace after ,. This has about 6 levels of precedence, from the
-   * bottom:
-   * logical operators, negation, comparison, arith, unary, expon.
-   * This isn't complete but it's simpler; assumes that the input is already
-   * sensibly parenthesized.
+   * Returns the Keywords ID of the next token, or Keywords.NONE. (Assumes that peek()
+   * has just been called).
+   */
+  int peekKeyword() {
+    return tokenIndex < 0 ? Keywords.NONE : tokens.getKeyword(tokenIndex);
+  }
+
+  /**
+   * Complains about a subscript that is only a (, at the end of the line.
    */
-  private String getArg()  {
-    StringBuilder arg = new StringBuilder(getLogic());
-    while (LOGICAL_OPS.contains(peek())) {
-      String op = ConverterUtil.fixOperators(getToken(true));
-      arg.append(op).append(getLogic());
+  private void checkSubscript(boolean isOnlyParen) {
+    if (isOnlyParen) {
+      throw new ParseException("Unterminated subscript, can't parse: " + converted);
     }
-    return arg.toString();
   }
 
-  private String getArithmeticOp()  {
-    String op = getFactor();
-    while ("^".equals(peek())) {
+  private Expression getArithmeticOp()  {
+    Expression op = getFactor();
+    if ("^".equals(peek())) { // right to left: a^b^c is a^(b^c)
       getToken(true);
-      op = "exp(" + op + ", " + getArithmeticOp() + ")";
+      op = new Expression.Power(op, getArithmeticOp());
     }
     return op;
   }
 
   /**
-   * Collect [...]
+   * Collect [...] that starts at line[start] as Range("..."). Returns the position after
+   * the closing ].
    */
-  private String getBracketed(String str) {
-    StringBuilder inside = new StringBuilder();
-    String bracketed = str.substring(1);
-    while (true) {
-      char first = bracketed.charAt(0);
-      if (first == ']') {  // the end
-        bracketed = bracketed.substring(1);
-        break;
-      } else if (first == '!') {
-        inside.append(".");
-        bracketed = bracketed.substring(1);
-      } else {
-        inside.append(first);
-        bracketed = bracketed.substring(1);
+  private int getBracketed(CharSequence line, int start) {
+    parsed.append("Range(\"");
+    for (int i = start + 1; i < line.length(); ++i) {
+      char next = line.charAt(i);
+      if (next == ']') {  // the end
+        parsed.append("\")");
+        return i + 1;
       }
+      parsed.append(next == '!' ? '.' : next);
     }
-    converted += "Range(\"" + inside.toString() + "\")";
-    return bracketed;
-  }
-
-  private String getCompare()  {
-    StringBuilder expr = new StringBuilder(getUnary());
-    while (ARITHMETIC_OPS.contains(peek())) {
-      String op = ConverterUtil.fixOperators(getToken(true));
-      expr.append(op).append(getUnary());
-    }
-    return expr.toString();
+    throw new ParseException(
+        "Unterminated [, can't parse: " + line.subSequence(start, line.length()));
   }
 
   /**
@@ -525,163 +648,227 @@ final class Line {
    * exprs.
    */
   // Note: Logic is too convoluted: getFactor() should be smarter.
-  private String getExpressionList()  {
-    StringBuilder expressions = new StringBuilder(getToken(true)); // "("
+  private Expression.Call getExpressionList(Expression target)  {
+    getToken(true); // (
+    List<Expression> expressions = Lists.newArrayList();
+    List<Expression> expression = Lists.newArrayList(); // more than one if not separated by ,
+    boolean isSeparated = false; // a , with nothing after it yet
+    long mark = progress;
     while (!peek().equals(")") && !peek().isEmpty()) {
       if (peek().equals(",")) { // empty expr
-        expressions.append(ConverterUtil.EMPTY).append(getToken(true)).append(" ");
+        getToken(true);
+        expressions.add(new Expression.Missing());
+        isSeparated = true;
         if (peek().equals(")")) { // empty expr
-          expressions.append(ConverterUtil.EMPTY);
+          expressions.add(new Expression.Missing());
+          isSeparated = false;
         }
         continue;
       }
-      expressions.append(getExpression());
+      expression.add(getExpression());
+      isSeparated = false;
       if (peek().equals(",")) {
-        expressions.append(getToken(true)).append(" ");
+        getToken(true);
+        expressions.add(Expression.sequence(expression));
+        expression.clear();
+        isSeparated = true;
         if (peek().equals(")")) { // empty expr
-          expressions.append(ConverterUtil.EMPTY);
+          expressions.add(new Expression.Missing());
+          isSeparated = false;
         }
       }
+      mark = checkProgress(mark);
+    }
+    if (!expression.isEmpty()) {
+      expressions.add(Expression.sequence(expression));
+    } else if (isSeparated) {
+      expressions.add(Expression.EMPTY);
     }
-    expressions.append(getToken(true)); // adds terminating )
-    return expressions.toString();
+    return new Expression.Call(target, expressions, getToken(true), false); // adds terminating )
   }
 
   /**
    * Returns single entity -- number, name, or (expr). This also returns things
    * like comma, which is a botch.
    */
-  private String getFactor()  {
-    StringBuilder expr = new StringBuilder();
+  private Expression getFactor()  {
     String peek = peek();
-    if (tokenType.equals("ID")) {
-      String name = getName();
-      expr.append(name);
-      if (globalState.isArrayName(name) && peek().equals("(")) {
-        String bp = getBalancedParentheses();
-        expr.append(setBrackets(bp));
+    if (tokenType == Lexer.ID) {
+      Expression name = getName();
+      if (globalState.isArrayName(Emitter.render(name)) && peek().equals("(")) {
+        name = getSubscript(name);
       }
-    } else if (tokenType.equals("NUM")) {
-      expr.append(getToken(true));
-    } else if (tokenType.equals("STR")) {
-      expr.append(getToken(true));
+      return name;
+    } else if (tokenType == Lexer.NUM) {
+      return getLiteral();
+    } else if (tokenType == Lexer.STR) {
+      return getLiteral();
     } else if (peek.equals(".")) { // .name
-      expr.append(globalState.getWithName()).append(getToken(true)).append(getName());
+      String withName = globalState.getWithName();
+      getToken(true);
+      return new Expression.WithMember(withName, getName());
     } else if (peek.equals("Not")) { // BUG?
-      expr.append(getLogic());
+      getToken(true);
+      return new Expression.Not(getOperation(NEGATION));
     } else if (peek.equals("(")) {
-      expr.append(getToken(true)).append(getExpression()).append(getToken(true));
-    } else {
-      expr.append(getToken(true));
-    }
-    return expr.toString();
-  }
-
-  private String getLogic()  {
-    StringBuilder expr;
-    if (!peek().equals("Not")) {
-      expr = new StringBuilder(getNotOp());
+      getToken(true);
+      Expression inner = getExpression();
+      return new Expression.Parenthesized(inner, getToken(true));
     } else {
-      expr = new StringBuilder();
-    }
-    while (peek().equals("Not")) {
-      String op = ConverterUtil.fixOperators(getToken(true));
-      expr.append(op).append(addParen(getLogic()));
+      return getLiteral();
     }
-    return expr.toString();
   }
 
-  private String getNotOp()  {
-    String expr = getCompare();
-    while (RELATIONAL_OPS.contains(peek())) {
-      String op = ConverterUtil.fixOperators(getToken(true));
-      if (op.equals("Like")) {
-        expr = "Like(" + expr + "," + getCompare() + ")";
+  /**
+   * Returns next expression from input, for as long as its binary operators bind at
+   * least as tightly as precedence. Operators are looked up in BINARY_OPS, so each token
+   * is peeked at once; operators of the same precedence group left to right.
+   */
+  private Expression getOperation(int precedence)  {
+    Expression expr = getUnary();
+    while (true) {
+      Operator op = BINARY_OPS.get(peek());
+      if (op == null || op.precedence < precedence) {
+        return expr;
+      }
+      getToken(true);
+      if (op.precedence == NEGATION) {
+        expr = new Expression.Sequence(
+            ImmutableList.of(expr, new Expression.Not(getOperation(NEGATION))));
+      } else if (op.js.equals("Like")) {
+        expr = new Expression.Like(expr, getOperation(op.precedence + 1));
       } else {
-        expr += op + getCompare();
+        expr = new Expression.Binary(expr, op.js, getOperation(op.precedence + 1));
       }
     }
-    return expr;
+  }
+
+  /**
+   * Returns the next token, with VB operators replaced by JS.
+   */
+  private Expression.Literal getOperator() {
+    String text = ConverterUtil.fixOperators(getToken(true));
+    return new Expression.Literal(tokenType, text);
   }
 
   // TODO(nikhil): Rename getStr() and getString()
   /**
-   * Returns the real string, skipping embedded \"'s.
+   * Returns the end of the real string that starts at converted[start], skipping
+   * embedded \"'s.
    */
-  private String getStr(String str) {
-    int i = 1;
-    while (i < str.length()) {
-      if (str.substring(i, i + 1).equals("\"")) {
+  private int getStr(int start) {
+    int i = start + 1;
+    while (i < converted.length()) {
+      if (converted.charAt(i) == '"') {
         break;
       }
-      if (str.substring(i, i + 1).equals("\\")) {
+      if (converted.charAt(i) == '\\') {
         ++i;
       }
       ++i;
     }
-    return str.substring(0, i + 1);
+    if (i >= converted.length()) {
+      throw new ParseException("Unterminated string, can't parse: " + converted.substring(start));
+    }
+    return i + 1;
   }
 
   /**
-   * Collect quoted string, handle "" and \.
+   * Collect quoted string that starts at line[start], handle "" and \. Returns the
+   * position after the closing ".
    */
-  private String getString(String str) {
-    StringBuilder parsed = new StringBuilder(str.substring(0, 1)); // the " at the front
-    String input = str.substring(1);
-    while (true) {
-      if (input.substring(0, 1).equals("\\")) {
-        parsed.append("\\").append(input.substring(0, 1));
-        input = input.substring(1);
-      } else if (input.substring(0, 1).equals("\"") &&
-          (input.length() > 1) &&
-          input.substring(1, 2).equals("\"")) {
+  private int getString(CharSequence line, int start) {
+    parsed.append('"'); // the " at the front
+    int i = start + 1;
+    while (i < line.length()) {
+      char next = line.charAt(i);
+      if (next == '\\') {
+        parsed.append("\\\\");
+        ++i;
+      } else if (next == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
         parsed.append("\\\"");
-        input = input.substring(2);
-      } else if (input.substring(0, 1).equals("\"")) {
-        parsed.append("\"");
-        input = input.substring(1);
-        break;
+        i += 2;
+      } else if (next == '"') {
+        parsed.append('"');
+        return i + 1;
       } else {
-        parsed.append(input.substring(0, 1));
-        input = input.substring(1);
+        parsed.append(next);
+        ++i;
       }
     }
-    converted += parsed.toString();
-    return input;
+    throw new ParseException(
+        "Unterminated string, can't parse: " + line.subSequence(start, line.length()));
   }
 
-  private String getUnary()  {
+  /**
+   * Returns array followed by a balanced-paren sequence, as array[...].
+   */
+  private Expression.Subscript getSubscript(Expression array) {
+    Expression.Balanced subscripts = getBalancedParentheses();
+    checkSubscript(subscripts.parts.isEmpty() && subscripts.close.isEmpty());
+    return new Expression.Subscript(array, subscripts);
+  }
+
+  private Expression getUnary()  {
     String op = "";
-    while (peek().equals("+") || peek().equals("-")) {
+    for (String peek = peek(); peek.equals("+") || peek.equals("-"); peek = peek()) {
       op += getToken(true);
     }
-    String expr = getArithmeticOp();
-    expr = op + expr;
-    return expr;
+    Expression expr = getArithmeticOp();
+    return op.isEmpty() ? expr : new Expression.Unary(op, expr);
   }
 
   /**
-   * Set brackets in s to convert from (...) to [...]""".
+   * Lexes the token at converted[from], after blanks and a Private/Public/..., and adds
+   * it to the token buffer. Returns its index there.
    */
-  // Note: This is probably too aggressive: won't work if there are nested
-  // commas. e.g., in function calls in subscripts, or in strings.
-  private String setBrackets(String str) {
-    String input = str.substring(1, str.length() - 1);
-    if (input.indexOf('(') == -1) {
-      input = input.replaceAll(", *", "][");
+  private int lex(int from) {
+    int start = from;
+    while (start < converted.length() && converted.charAt(start) <= ' ') {
+      ++start;
+    }
+    scan(start);
+    if (lexer.getKind() == Lexer.TOSS) {
+      start += lexer.getLength();
+      scan(start);
+    }
+
+    int kind = lexer.getKind();
+    int end = start + lexer.getLength();
+    if (kind == Lexer.STR) { // re for strings isn't right so clean up
+      end = getStr(start);
+    }
+    int keyword = Keywords.NONE;
+    if (end > start && converted.charAt(start) < 128 && Character.isLetter(converted.charAt(start))) {
+      keyword = Keywords.find(converted, start, end);
+    }
+
+    return tokens.add(from, start, end, kind, keyword);
+  }
+
+  private void scan(int start) {
+    if (!lexer.scan(converted, start)) {
+      throw new ParseException("Unknown token, can't parse: " + converted.substring(start));
+    }
+  }
+
+  private static void addOperators(ImmutableMap.Builder<String, Operator> ops, int precedence,
+      String... names) {
+    for (String name : names) {
+      ops.put(name, new Operator(precedence, ConverterUtil.fixOperators(name)));
     }
-    return "[" + input + "]";
   }
 
   /**
-   * Canonicalizes the case of a likely keyword.
+   * A binary operator: how tightly it binds, and what it becomes in JS.
    */
-  private String toUpperCase(String str) {
-    String lowerCase = str.toLowerCase();
-    if (KEYWORDS.containsKey(lowerCase)) {
-      return KEYWORDS.get(lowerCase);
-    } else {
-      return str;
+  private static final class Operator {
+    private final int precedence;
+    private final String js;
+
+    private Operator(int precedence, String js) {
+      this.precedence = precedence;
+      this.js = js;
     }
   }
-}
\ No newline at end of file
+}
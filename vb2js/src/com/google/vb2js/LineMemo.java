@@ -0,0 +1,239 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JavaScript of assignments and calls translated before, by the text of their line, so
+ * that the same line seen again (recorded macros are full of Selection.Copy and
+ * Range("A1").Select) is neither lexed nor parsed again. A line reads differently as the
+ * declarations change, so each entry also keeps what the line depended on: whether each
+ * name looked up was an array, the With name if the line has a .member, and whether the
+ * target of an assignment was the current Function. An entry is only used while all of
+ * these are still the same; a Dim that makes a name an array, say, turns it into a miss.
+ *
+ * A memo belongs to a TranslationUnit and outlives its conversions, holding the lines used
+ * most recently. So it is always on, and shared by all the conversions a ConverterEngine
+ * runs on one thread, rather than kept for each conversion with sharing as an option: as an
+ * entry is only used while what it depended on is the same, a module converts as it would
+ * with an empty memo whatever came before it (see LineMemoCheck). A ConverterEngine made
+ * for one conversion gives that conversion a memo of its own.
+ */
+final class LineMemo {
+
+  /** Most lines kept */
+  private static final int CAPACITY = 4096;
+
+  /** Longest line kept; longer ones are seldom repeated */
+  private static final int MAX_LENGTH = 256;
+
+  /** Size of seen[]; a power of 2 */
+  private static final int SEEN_SIZE = 8192;
+
+  /** A line's JavaScript and what it depended on */
+  private static final class Translation {
+    final String code;
+    final String[] names;
+    final boolean[] isArrayName;
+
+    /** With name used, or null if the line has no .member */
+    final String withName;
+
+    /** Target of an assignment, or null if the line is not one */
+    final String target;
+    final boolean isReturnValue;
+
+    /** Steps against the budget that parsing the line took */
+    final long steps;
+
+    Translation(String code, String[] names, boolean[] isArrayName, String withName,
+        String target, boolean isReturnValue, long steps) {
+      this.code = code;
+      this.names = names;
+      this.isArrayName = isArrayName;
+      this.withName = withName;
+      this.target = target;
+      this.isReturnValue = isReturnValue;
+      this.steps = steps;
+    }
+  }
+
+  private final GlobalState globalState;
+
+  private final Map<String, Translation> entries =
+      new LinkedHashMap<String, Translation>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Translation> eldest) {
+          return size() > CAPACITY;
+        }
+      };
+
+  /**
+   * Hashes of the lines looked up, each in the slot picked by its low bits. A line is only
+   * kept when it is seen again, so that a file with few repeated lines costs little more
+   * than a probe of this per line.
+   */
+  private final int[] seen = new int[SEEN_SIZE];
+
+  /** Whether the line looked up last is worth keeping, if it parses */
+  private boolean isWorthKeeping;
+
+  /** What the line being translated has looked up so far, while recording */
+  private final List<String> names = Lists.newArrayList();
+  private final List<Boolean> isArrayName = Lists.newArrayList();
+  private String withName;
+
+  /** Steps the line found last took to parse */
+  private long hitSteps;
+
+  private long lookups;
+  private long hits;
+
+  LineMemo(GlobalState globalState) {
+    this.globalState = globalState;
+  }
+
+  /**
+   * Tests whether the line, as Line.parseLine() converted it, is kept. Such a line is an
+   * assignment or a call, so it is not a one-line If.
+   */
+  boolean contains(String converted) {
+    int hash = converted.hashCode();
+    return seen[hash & (SEEN_SIZE - 1)] == hash && entries.containsKey(converted);
+  }
+
+  /**
+   * Returns the JavaScript for the line, without its comment, if it is kept and still reads
+   * the same in the current state; else null.
+   */
+  String lookup(String converted, String functionName) {
+    isWorthKeeping = false;
+    if (converted.length() > MAX_LENGTH) {
+      return null;
+    }
+    ++lookups;
+    int hash = converted.hashCode();
+    int slot = hash & (SEEN_SIZE - 1);
+    if (seen[slot] != hash) {
+      seen[slot] = hash;
+      return null;
+    }
+    isWorthKeeping = true;
+    Translation entry = entries.get(converted);
+    if (entry == null || !isCurrent(entry, functionName)) {
+      return null;
+    }
+    ++hits;
+    hitSteps = entry.steps;
+    return entry.code;
+  }
+
+  /**
+   * Returns the steps the line that lookup() just found took to parse, which it still
+   * counts against the budget.
+   */
+  long getHitSteps() {
+    return hitSteps;
+  }
+
+  /**
+   * Returns whether the line that lookup() just missed has been seen before, and so should
+   * be recorded and kept.
+   */
+  boolean isWorthKeeping() {
+    return isWorthKeeping;
+  }
+
+  private boolean isCurrent(Translation entry, String functionName) {
+    for (int i = 0; i < entry.names.length; ++i) {
+      if (globalState.isArrayName(entry.names[i]) != entry.isArrayName[i]) {
+        return false;
+      }
+    }
+    if (entry.withName != null && (globalState.getWithDepth() == 0
+        || !globalState.getWithName().equals(entry.withName))) {
+      return false;
+    }
+    return entry.target == null || entry.target.equals(functionName) == entry.isReturnValue;
+  }
+
+  /**
+   * Starts noting what the state tells the line about to be translated, for put().
+   */
+  void startRecording() {
+    names.clear();
+    isArrayName.clear();
+    withName = null;
+    globalState.setRecorder(this);
+  }
+
+  void stopRecording() {
+    globalState.setRecorder(null);
+  }
+
+  /** Called by GlobalState while recording */
+  void recordArrayName(String name, boolean isArray) {
+    names.add(name);
+    isArrayName.add(isArray);
+  }
+
+  /** Called by GlobalState while recording */
+  void recordWithName(String name) {
+    withName = name;
+  }
+
+  /**
+   * Keeps code as the JavaScript for the line last recorded, which is statement, and took
+   * steps to parse.
+   */
+  void put(String converted, String code, Statement statement, long steps) {
+    if (converted.length() > MAX_LENGTH) {
+      return;
+    }
+    String target = null;
+    boolean isReturnValue = false;
+    if (statement instanceof Statement.Assignment) {
+      Statement.Assignment assignment = (Statement.Assignment) statement;
+      target = Emitter.render(assignment.target);
+      isReturnValue = assignment.isReturnValue;
+    }
+    boolean[] isArray = new boolean[isArrayName.size()];
+    for (int i = 0; i < isArray.length; ++i) {
+      isArray[i] = isArrayName.get(i);
+    }
+    entries.put(converted, new Translation(code, names.toArray(new String[names.size()]),
+        isArray, withName, target, isReturnValue, steps));
+  }
+
+  /** Number of assignments and calls looked up since clearCounts() */
+  long getLookups() {
+    return lookups;
+  }
+
+  /** Number of those found, and still good */
+  long getHits() {
+    return hits;
+  }
+
+  void clearCounts() {
+    lookups = 0;
+    hits = 0;
+  }
+}
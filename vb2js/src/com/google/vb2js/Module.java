@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A VB module as parsed: its top-level statements, in order.
+ */
+final class Module {
+
+  private final ImmutableList<Statement> statements;
+
+  Module(List<Statement> statements) {
+    this.statements = ImmutableList.copyOf(statements);
+  }
+
+  ImmutableList<Statement> getStatements() {
+    return statements;
+  }
+}
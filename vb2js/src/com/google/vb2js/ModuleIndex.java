@@ -0,0 +1,377 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A VB module whose Subs and Functions are converted one at a time, when asked for by name,
+ * as in a browser that shows one of them at a time. Making the index only looks at the
+ * first word or two of each line, to find where each Sub, Function and Property starts and
+ * ends; a line that looks like it might is lexed to make sure, the way converting would.
+ * Nothing else is parsed until a procedure is converted.
+ *
+ * A procedure is converted on its own lines, after the names that the statements outside
+ * the procedures before it declare, which are parsed the first time one is converted. This
+ * gives what converting the module gives for it, as long as it stands alone (see
+ * ParallelConversion). It is NOT thread-safe.
+ */
+public final class ModuleIndex {
+
+  /** Words that may come before Sub, Function or Property */
+  private static final String[] MODIFIERS = { "Public", "Private", "Friend", "Static", "Global" };
+
+  private static final String[] PROCEDURES = { "Sub", "Function", "Property" };
+
+  private static final String[] PROPERTY_KINDS = { "Get", "Let", "Set" };
+
+  /** Lines firstLine to lastLine (inclusive) of the module */
+  private static final class Procedure {
+    private final int firstLine;
+    private final int lastLine;
+
+    /** Names declared before it; null until declare() has run */
+    private ImmutableSet<String> typeNames;
+    private ImmutableSet<String> globalNames;
+
+    private Procedure(int firstLine, int lastLine) {
+      this.firstLine = firstLine;
+      this.lastLine = lastLine;
+    }
+  }
+
+  private final ConverterEngine engine;
+
+  /** Input lines, as given */
+  private final List<String> lines;
+
+  /** The Subs and Functions in the order of the module */
+  private final List<Procedure> procedures;
+
+  /** The same, by name in lower case: names are looked up ignoring case, as in VB */
+  private final Map<String, List<Procedure>> byName;
+
+  /** Names in the order of the module, each once */
+  private final List<String> names;
+
+  /** Used to lex the lines that may start or end a procedure */
+  private final Line parser;
+
+  /** Whether declare() has run */
+  private boolean isDeclared;
+
+  ModuleIndex(ConverterEngine engine, List<String> vbaCode) {
+    this.engine = engine;
+    this.lines = Lists.newArrayListWithCapacity(vbaCode.size());
+    this.procedures = Lists.newArrayList();
+    this.byName = Maps.newHashMap();
+    this.names = Lists.newArrayList();
+    this.parser = new Line();
+    for (String line : vbaCode) {
+      if (line != null) {
+        lines.add(line);
+      }
+    }
+    index();
+  }
+
+  /**
+   * Returns the names of the Subs, Functions and Properties, in the order of the module. A
+   * Property with both a Get and a Let is named once.
+   */
+  public List<String> getProcedureNames() {
+    return ImmutableList.copyOf(names);
+  }
+
+  public boolean hasProcedure(String name) {
+    return byName.containsKey(Ascii.toLowerCase(name));
+  }
+
+  /**
+   * Converts the Sub, Function or Property called name (the Get, Let and Set of a Property
+   * all together) and returns its JavaScript. Errors in the procedure are thrown as when
+   * converting the module; errors in the statements outside the procedures are passed
+   * over, declaring what they can.
+   *
+   * @throws IllegalArgumentException if the module has no procedure called name
+   */
+  public String convertProcedure(String name) {
+    List<Procedure> found = byName.get(Ascii.toLowerCase(name));
+    Preconditions.checkArgument(found != null, "No Sub or Function called %s", name);
+    if (!isDeclared) {
+      declare();
+    }
+    StringBuilder jsCode = new StringBuilder();
+    for (Procedure procedure : found) {
+      jsCode.append(convert(procedure));
+    }
+    return jsCode.toString();
+  }
+
+  /**
+   * Finds the procedures: a procedure starts on a line that lexes as Sub or Function, and
+   * ends on the first End Sub or End Function after it, as ParallelConversion has them. One
+   * that another starts inside of, or that is not ended, stops on the line before the next
+   * one, or on the last line; converting it then complains about the missing End.
+   *
+   * A Property is found the same way, since the line is lexed after Canonicalizer has
+   * rewritten Property Get, Let and Set to Function, and End Property to End Function; it
+   * is converted as that Function. The scan only has to let Property lines through to be
+   * lexed, and take the name from after the Get, Let or Set.
+   */
+  private void index() {
+    String name = null;
+    String end = null;
+    int firstLine = 0;
+    int i = 0;
+    while (i < lines.size()) {
+      int lineNumber = i;
+      String line = lines.get(i);
+      int start = skipSpaces(line, 0);
+      boolean isCandidate =
+          findProcedureStart(line, start) >= 0 || (name != null && isEnd(line, start));
+      StringBuilder merged = null;
+      while (isContinued(line) && i + 1 < lines.size()) {
+        if (isCandidate) {
+          String trimmed = line.trim();
+          merged = merged != null ? merged : new StringBuilder();
+          merged.append(trimmed, 0, trimmed.length() - 1);
+        }
+        line = lines.get(++i);
+      }
+      int lastLine = i++;
+      if (!isCandidate) {
+        continue;
+      }
+      line = merged != null ? merged.append(line.trim()).toString() : line.trim();
+      String peek = peek(line);
+      if (end != null && peek.equals(end)) {
+        add(name, firstLine, lastLine);
+        name = null;
+        end = null;
+      } else if (peek.equals("Sub") || peek.equals("Function")) {
+        if (name != null) {
+          add(name, firstLine, lineNumber - 1);
+        }
+        name = getName(line, findProcedureStart(line, 0));
+        end = "End " + peek;
+        firstLine = lineNumber;
+      }
+    }
+    if (name != null) {
+      add(name, firstLine, lines.size() - 1);
+    }
+  }
+
+  private void add(String name, int firstLine, int lastLine) {
+    Procedure procedure = new Procedure(firstLine, lastLine);
+    procedures.add(procedure);
+    String key = Ascii.toLowerCase(name);
+    List<Procedure> same = byName.get(key);
+    if (same == null) {
+      same = Lists.newArrayListWithCapacity(1);
+      byName.put(key, same);
+      names.add(name);
+    }
+    same.add(procedure);
+  }
+
+  /**
+   * Returns what converting would take to be the first word of line, or "" if it can't be
+   * lexed.
+   */
+  private String peek(String line) {
+    try {
+      return parser.parseLine(line).peek();
+    } catch (ParseException e) {
+      return "";
+    }
+  }
+
+  /**
+   * Returns where Sub, Function or Property starts in line, from start on after any Public,
+   * Private and so on, or -1 if it does not start that way. Words are matched ignoring
+   * case, as the lexer matches them.
+   */
+  private static int findProcedureStart(String line, int start) {
+    int i = start;
+    while (true) {
+      int word = findWord(line, i, MODIFIERS);
+      if (word < 0) {
+        break;
+      }
+      i = skipSpaces(line, i + MODIFIERS[word].length());
+    }
+    return findWord(line, i, PROCEDURES) >= 0 ? i : -1;
+  }
+
+  /**
+   * Tests whether line has End Sub, End Function or End Property at start, ignoring case.
+   */
+  private static boolean isEnd(String line, int start) {
+    return isWord(line, start, "End")
+        && findWord(line, skipSpaces(line, start + 3), PROCEDURES) >= 0;
+  }
+
+  /**
+   * Tests whether line is continued on the next one, as TranslationUnit.isContinued() does
+   * once it is trimmed.
+   */
+  private static boolean isContinued(String line) {
+    int end = line.length();
+    while (end > 0 && line.charAt(end - 1) <= ' ') {
+      --end;
+    }
+    return end > 0 && line.charAt(end - 1) == '_';
+  }
+
+  /**
+   * Returns the name of the procedure declared by line, whose Sub, Function or Property
+   * starts at start.
+   */
+  private static String getName(String line, int start) {
+    int i = skipSpaces(line, skipWord(line, start));
+    if (isWord(line, start, "Property")) {
+      int kind = findWord(line, i, PROPERTY_KINDS);
+      if (kind >= 0) {
+        i = skipSpaces(line, i + PROPERTY_KINDS[kind].length());
+      }
+    }
+    return line.substring(i, skipWord(line, i));
+  }
+
+  /**
+   * Returns the index of the word in words that line has at position, as a whole word, or
+   * -1 if none.
+   */
+  private static int findWord(String line, int position, String[] words) {
+    for (int i = 0; i < words.length; ++i) {
+      if (isWord(line, position, words[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Tests whether line has word at position, as a whole word, ignoring case. The first
+   * letter is compared first, as most lines differ there.
+   */
+  private static boolean isWord(String line, int position, String word) {
+    int end = position + word.length();
+    return position < line.length()
+        && (line.charAt(position) | 0x20) == (word.charAt(0) | 0x20) // word starts with a letter
+        && line.regionMatches(true, position, word, 0, word.length())
+        && (end == line.length() || !isWordChar(line.charAt(end)));
+  }
+
+  private static int skipWord(String line, int i) {
+    while (i < line.length() && isWordChar(line.charAt(i))) {
+      ++i;
+    }
+    return i;
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  private static int skipSpaces(String line, int i) {
+    while (i < line.length() && line.charAt(i) <= ' ') {
+      ++i;
+    }
+    return i;
+  }
+
+  /**
+   * Parses the statements outside the procedures, all together, and notes for each
+   * procedure the names declared before it. The line each statement starts on tells which
+   * procedures it comes after.
+   */
+  private void declare() {
+    List<String> outside = Lists.newArrayList();
+    int[] ends = new int[procedures.size()];
+    int next = 0;
+    for (int i = 0; i < procedures.size(); ++i) {
+      Procedure procedure = procedures.get(i);
+      outside.addAll(lines.subList(next, procedure.firstLine));
+      ends[i] = outside.size();
+      next = procedure.lastLine + 1;
+    }
+    outside.addAll(lines.subList(next, lines.size()));
+
+    TranslationUnit unit = engine.acquire();
+    int declared = 0;
+    try {
+      unit.cleanup(outside);
+      Parser parser = new Parser(unit, Lists.<Diagnostic>newArrayList());
+      parser.startModule();
+      while (parser.hasNextStatement()) {
+        int lineNumber = unit.getPhysicalLineNumber(unit.getCurrentLineNumber()) - 1;
+        declared = setNames(unit, declared, ends, lineNumber);
+        parser.parseModuleStatement();
+      }
+    } catch (ParseException e) {
+      // declared as far as it got
+    } finally {
+      setNames(unit, declared, ends, Integer.MAX_VALUE);
+      engine.release(unit);
+    }
+    isDeclared = true;
+  }
+
+  /**
+   * Gives the names declared in unit so far to the procedures from first on that come
+   * before line lineNumber of the statements outside them. Returns the first one left.
+   * Names are never taken back, so the same number of them are the same names, and the
+   * procedures share them.
+   */
+  private int setNames(TranslationUnit unit, int first, int[] ends, int lineNumber) {
+    int i = first;
+    for (; i < ends.length && ends[i] <= lineNumber; ++i) {
+      Procedure procedure = procedures.get(i);
+      Procedure previous = i > 0 ? procedures.get(i - 1) : null;
+      if (previous != null && unit.getTopLevelNameCount()
+          == previous.typeNames.size() + previous.globalNames.size()) {
+        procedure.typeNames = previous.typeNames;
+        procedure.globalNames = previous.globalNames;
+      } else {
+        procedure.typeNames = unit.getTypeNames();
+        procedure.globalNames = unit.getGlobalNames();
+      }
+    }
+    return i;
+  }
+
+  private String convert(Procedure procedure) {
+    TranslationUnit unit = engine.acquire();
+    try {
+      unit.cleanup(lines.subList(procedure.firstLine, procedure.lastLine + 1),
+          procedure.firstLine);
+      unit.addTopLevelNames(procedure.typeNames, procedure.globalNames);
+      return new Emitter().emit(new Parser(unit).parseModule());
+    } finally {
+      engine.release(unit);
+    }
+  }
+}
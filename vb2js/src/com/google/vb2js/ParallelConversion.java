@@ -0,0 +1,325 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Converts one VB file with its Subs and Functions converted side by side. The lines are
+ * first cleaned up and read in order, which finds where each Sub and Function starts and
+ * ends. The statements outside them are then converted in order, by the calling thread;
+ * on reaching a Sub or Function, it is handed to the executor with the names declared so
+ * far, and passed over. The pieces of JavaScript are put together in the order of the file.
+ *
+ * This only gives what converting in order gives when each Sub or Function stands alone:
+ * it ends at the first End Sub or End Function after it, has no Sub or Function inside it,
+ * declares no Type, and converts without error. When that is not so, convert() returns
+ * null, and the file is to be converted in order.
+ *
+ * Since a Sub or Function that stands alone only depends on its lines and the names
+ * declared before it, its JavaScript can also be taken from a ProcedureCache, when given
+ * one, instead of being converted again.
+ */
+final class ParallelConversion {
+
+  /** A Sub or Function, lines firstLine to lastLine (inclusive), converted on its own */
+  private final class ProcedureTask implements Callable<String> {
+    private final int firstLine;
+    private final int lastLine;
+    private final List<String> cleaned;
+    private final List<LexedLine> lexed;
+    /** Where each line starts in the file, as setLines() takes them */
+    private final int[] lineNumbers;
+    private final ImmutableSet<String> typeNames;
+    private final ImmutableSet<String> globalNames;
+
+    private ProcedureTask(int firstLine, int lastLine, ImmutableSet<String> typeNames,
+        ImmutableSet<String> globalNames) {
+      this.firstLine = firstLine;
+      this.lastLine = lastLine;
+      if (cleanedCode != null) {
+        this.cleaned = cleanedCode.subList(firstLine, lastLine + 1);
+        this.lexed = lexedCode.subList(firstLine, lastLine + 1);
+        this.lineNumbers = Arrays.copyOfRange(physicalLineNumbers, firstLine, lastLine + 2);
+      } else {
+        this.cleaned = Lists.newArrayListWithCapacity(lastLine - firstLine + 1);
+        this.lineNumbers = new int[lastLine - firstLine + 2];
+        for (int i = firstLine; i <= lastLine; ++i) {
+          cleaned.add(unit.getLine(i));
+          lineNumbers[i - firstLine] = unit.getPhysicalLineNumber(i) - 1;
+        }
+        lineNumbers[lastLine + 1 - firstLine] = unit.getPhysicalLineNumber(lastLine + 1) - 1;
+        this.lexed = null;
+      }
+      this.typeNames = typeNames;
+      this.globalNames = globalNames;
+    }
+
+    /**
+     * Returns the JavaScript for the Sub or Function, or null if it did not convert the way
+     * it would in order.
+     */
+    @Override
+    public String call() {
+      TranslationUnit procedureUnit = engine.acquire();
+      try {
+        procedureUnit.setLines(cleaned, lexed, firstLine, lineNumbers);
+        procedureUnit.addTopLevelNames(typeNames, globalNames);
+        int nameCount = procedureUnit.getTopLevelNameCount();
+        Parser parser = new Parser(procedureUnit);
+        parser.startModule();
+        Statement statement = parser.parseModuleStatement();
+        if (!(statement instanceof Statement.Procedure) || parser.hasNextStatement()
+            || procedureUnit.getTopLevelNameCount() != nameCount
+            || !isEnded((Statement.Procedure) statement)) {
+          return null;
+        }
+        return emit(Collections.singletonList(statement));
+      } catch (RuntimeException e) {
+        return null; // thrown again, from where it belongs, when converted in order
+      } finally {
+        engine.release(procedureUnit);
+      }
+    }
+
+    /**
+     * Tests whether the body of procedure stops before lastLine, so that lastLine ended it.
+     * A block left open in the body takes in lastLine and runs on to the end of the lines
+     * given, where in order it would run on into the rest of the file.
+     */
+    private boolean isEnded(Statement.Procedure procedure) {
+      List<Statement> body = procedure.body;
+      return body.isEmpty() || body.get(body.size() - 1).getEndLine() <= lastLine;
+    }
+  }
+
+  private final ConverterEngine engine;
+
+  /** Runs the ProcedureTasks; if null, join() runs them in order */
+  private final Executor executor;
+
+  /** Where procedures converted before are looked up, or null */
+  private final ProcedureCache cache;
+
+  /** The unit the lines are read into, and the statements outside procedures parsed in */
+  private final TranslationUnit unit;
+
+  /** The first word of each line of the unit */
+  private final List<String> firstWords;
+
+  /** The lines as cleaned up and parsed ahead of time, if given so; else null */
+  private List<String> cleanedCode;
+  private List<LexedLine> lexedCode;
+  private int[] physicalLineNumbers;
+
+  ParallelConversion(ConverterEngine engine, Executor executor, TranslationUnit unit) {
+    this(engine, executor, null, unit);
+  }
+
+  ParallelConversion(ConverterEngine engine, Executor executor, ProcedureCache cache,
+      TranslationUnit unit) {
+    this.engine = engine;
+    this.executor = executor;
+    this.cache = cache;
+    this.unit = unit;
+    this.firstWords = Lists.newArrayList();
+  }
+
+  /**
+   * Returns the JavaScript for vbaCode, or null if it has to be converted in order.
+   */
+  String convert(Iterable<String> vbaCode) {
+    unit.cleanup(vbaCode);
+    return convert();
+  }
+
+  /**
+   * Returns the JavaScript for lines that an IncrementalConverter has already cleaned up and
+   * parsed, or null if they have to be converted in order.
+   */
+  String convertLexed(List<String> cleanedCode, List<LexedLine> lexedCode,
+      int[] physicalLineNumbers) {
+    this.cleanedCode = cleanedCode;
+    this.lexedCode = lexedCode;
+    this.physicalLineNumbers = physicalLineNumbers;
+    unit.setLines(cleanedCode, lexedCode, 0, physicalLineNumbers);
+    return convert();
+  }
+
+  private String convert() {
+    List<Future<String>> pieces = Lists.newArrayList();
+    List<ProcedureCache.Key> keys = Lists.newArrayList();
+    try {
+      read();
+      unit.rewind();
+      Parser parser = new Parser(unit);
+      List<Statement> statements = Lists.newArrayList();
+      ImmutableSet<String> typeNames = ImmutableSet.of();
+      ImmutableSet<String> globalNames = ImmutableSet.of();
+      int nameCount = 0;
+      parser.startModule();
+      while (parser.hasNextStatement()) {
+        int lineNumber = unit.getCurrentLineNumber();
+        if (!isProcedureStart(lineNumber)) {
+          statements.add(parser.parseModuleStatement());
+          if (hasProcedureStart(lineNumber + 1, unit.getCurrentLineNumber())) {
+            return null; // the statement takes in a Sub or Function
+          }
+          continue;
+        }
+        int lastLine = findProcedureEnd(lineNumber);
+        if (lastLine < 0) {
+          return null;
+        }
+        if (!statements.isEmpty()) {
+          pieces.add(Futures.immediateFuture(emit(statements)));
+          keys.add(null);
+          statements.clear();
+        }
+        if (unit.getTopLevelNameCount() != nameCount) {
+          typeNames = unit.getTypeNames();
+          globalNames = unit.getGlobalNames();
+          nameCount = unit.getTopLevelNameCount();
+        }
+        ProcedureTask procedure = new ProcedureTask(lineNumber, lastLine, typeNames, globalNames);
+        ProcedureCache.Key key = null;
+        String jsCode = null;
+        if (cache != null) {
+          key = cache.key(procedure.cleaned, typeNames, globalNames);
+          jsCode = cache.get(key);
+        }
+        if (jsCode != null) {
+          pieces.add(Futures.immediateFuture(jsCode));
+          keys.add(null);
+        } else {
+          FutureTask<String> task = new FutureTask<String>(procedure);
+          pieces.add(task);
+          keys.add(key);
+          if (executor != null) {
+            executor.execute(task);
+          }
+        }
+        unit.skipTo(lastLine + 1);
+      }
+      pieces.add(Futures.immediateFuture(emit(statements)));
+      keys.add(null);
+      String jsCode = join(pieces);
+      if (jsCode != null && cache != null) {
+        for (int i = 0; i < pieces.size(); ++i) {
+          if (keys.get(i) != null) {
+            cache.put(keys.get(i), Futures.getUnchecked(pieces.get(i)));
+          }
+        }
+      }
+      return jsCode;
+    } catch (RuntimeException e) {
+      return null; // thrown again, from where it belongs, when converted in order
+    } finally {
+      for (Future<String> piece : pieces) {
+        piece.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Reads the lines of the unit up to the end of the module, keeping the first word of each.
+   * Lines read from text are parsed again when converted: keeping them as parsed would take
+   * more time than that saves.
+   */
+  private void read() {
+    unit.advance();
+    Line line = unit.getCurrentLine();
+    while (!line.peek().equals(ConverterUtil.EOF)) {
+      firstWords.add(line.peek());
+      unit.advance();
+    }
+  }
+
+  private boolean isProcedureStart(int lineNumber) {
+    String firstWord = firstWords.get(lineNumber);
+    return firstWord.equals("Sub") || firstWord.equals("Function");
+  }
+
+  /**
+   * Tests whether a Sub or Function starts on one of lines from to to (exclusive).
+   */
+  private boolean hasProcedureStart(int from, int to) {
+    for (int i = from; i < to; ++i) {
+      if (isProcedureStart(i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the line of the End Sub or End Function that ends the Sub or Function starting on
+   * firstLine, or -1 if there is none before the end of the module or another Sub or
+   * Function starts first.
+   */
+  private int findProcedureEnd(int firstLine) {
+    String end = "End " + firstWords.get(firstLine);
+    for (int i = firstLine + 1; i < firstWords.size(); ++i) {
+      if (firstWords.get(i).equals(end)) {
+        return i;
+      }
+      if (isProcedureStart(i)) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Puts the pieces together in order. A piece the executor has not started yet is converted
+   * by the calling thread, so the pieces get done even if the executor's threads are all
+   * busy waiting on conversions of their own.
+   */
+  private static String join(List<Future<String>> pieces) {
+    StringBuilder jsCode = new StringBuilder();
+    for (Future<String> piece : pieces) {
+      if (piece instanceof FutureTask) {
+        ((FutureTask<String>) piece).run();
+      }
+      String js;
+      try {
+        js = Uninterruptibles.getUninterruptibly(piece);
+      } catch (ExecutionException e) {
+        return null;
+      }
+      if (js == null) {
+        return null;
+      }
+      jsCode.append(js);
+    }
+    return jsCode.toString();
+  }
+
+  private static String emit(List<Statement> statements) {
+    return new Emitter().emit(new Module(statements));
+  }
+}
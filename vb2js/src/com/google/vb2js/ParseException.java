@@ -17,7 +17,9 @@
 package com.google.vb2js;
 
 /**
- * Custom class for exceptions thrown by VbaJsConverter
+ * Custom class for exceptions thrown by VbaJsConverter. These report bad input, not bugs,
+ * so no stack trace is filled in; that keeps them cheap when conversion carries on after
+ * them (see Diagnostic).
  *
  * @author Brian Kernighan
  * @author Nikhil Singhal
@@ -32,7 +34,7 @@ final class ParseException extends RuntimeException {
   private final String line;
 
   ParseException(String message, int lineNumber, String line) {
-    super(message);
+    super(message, null, false, false);
     this.lineNumber = lineNumber;
     this.line = line;
   }
@@ -41,6 +43,16 @@ final class ParseException extends RuntimeException {
     this(message, -1, null);
   }
 
+  /**
+   * Returns this exception with the line it was found on filled in, unless it has one.
+   */
+  ParseException atLine(int lineNumber, String line) {
+    if (this.lineNumber != -1) {
+      return this;
+    }
+    return new ParseException(super.getMessage(), lineNumber, line);
+  }
+
   int getLineNumber() {
     return lineNumber;
   }
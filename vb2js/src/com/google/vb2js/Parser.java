@@ -0,0 +1,1346 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the Module for a translation unit that has been cleaned up. It is a recursive
+ * descent parser, one method per kind of statement. Declarations are recorded as they are
+ * parsed (arrays, Type names, the current Function and With), since they decide how later
+ * lines are read; the nodes keep what they decided, for the Emitter.
+ *
+ * Each node keeps the comment of the line it comes out on (see Statement), so comments are
+ * picked up at the same point in each method that the output would have been written.
+ *
+ * Errors are thrown as ParseExceptions, unless a list of diagnostics is given. Then each
+ * error is added to the list and parsing carries on: a statement that fails on its first
+ * line is skipped up to the next line, and one that fails further on (a block missing its
+ * end, say) is skipped along with the rest of the Sub or Function it is in. What is skipped
+ * becomes a Statement.Skipped.
+ */
+final class Parser {
+
+  private static final Pattern RANGE_PATTERN = Pattern.compile("(.*)To(.*)");
+
+  private static final Pattern PARENTHESIS_PATTERN = Pattern.compile("[()]");
+
+  /** Statements the parser handles itself, other than assignments and calls */
+  private enum Keyword {
+    DIM, IF, FOR, DO, WHILE, SUB, FUNCTION, CALL, SELECT, EXIT, WITH, TYPE, ON_ERROR
+  }
+
+  /**
+   * The Keyword for each word that starts a statement, as peek() returns it: keywords come
+   * back in their canonical case, other words as written.
+   */
+  private static final ImmutableMap<String, Keyword> KEYWORDS =
+      ImmutableMap.<String, Keyword>builder()
+          .put("Dim", Keyword.DIM)
+          .put("ReDim", Keyword.DIM)
+          .put("Global", Keyword.DIM)
+          .put("Const", Keyword.DIM)
+          .put("If", Keyword.IF)
+          .put("For", Keyword.FOR)
+          .put("Do", Keyword.DO)
+          .put("While", Keyword.WHILE)
+          .put("Sub", Keyword.SUB)
+          .put("Function", Keyword.FUNCTION)
+          .put("Call", Keyword.CALL)
+          .put("Select", Keyword.SELECT)
+          .put("Exit", Keyword.EXIT)
+          .put("With", Keyword.WITH)
+          .put("Type", Keyword.TYPE)
+          .put("On Error", Keyword.ON_ERROR)
+          .build();
+
+  /**
+   * KEYWORDS split for lookup: those in the Keywords table by ID, the Lexer having found
+   * the ID already, and the rest by name.
+   */
+  private static final Keyword[] KEYWORDS_BY_ID = new Keyword[Keywords.count()];
+  private static final ImmutableMap<String, Keyword> OTHER_KEYWORDS;
+
+  static {
+    ImmutableMap.Builder<String, Keyword> others = ImmutableMap.builder();
+    for (Map.Entry<String, Keyword> entry : KEYWORDS.entrySet()) {
+      String name = entry.getKey();
+      int id = Keywords.find(name, 0, name.length());
+      if (id == Keywords.NONE) {
+        others.put(name, entry.getValue());
+      } else {
+        KEYWORDS_BY_ID[id] = entry.getValue();
+      }
+    }
+    OTHER_KEYWORDS = others.build();
+  }
+
+  private final TranslationUnit unit;
+
+  /** Where errors go instead of being thrown, or null */
+  private final List<Diagnostic> diagnostics;
+
+  /** StatementHandlers registered when parsing started */
+  private final ImmutableMap<String, StatementHandler> handlers;
+
+  /** Why the current line could not be read, when carrying on past errors; else null */
+  private ParseException lineError;
+
+  /** The statement about to be parsed is directly in a Sub or Function, not in a block */
+  private boolean isProcedureBody;
+
+  /** Cleared when the line being parsed changes the state or is rewritten, see parseMemoized() */
+  private boolean isMemoizable;
+
+  /** Steps the last advance() took, which parseMemoized() does not count as the line's */
+  private long advanceSteps;
+
+  /** Renders the statements kept in the LineMemo */
+  private final Emitter emitter = new Emitter();
+
+  Parser(TranslationUnit unit) {
+    this(unit, null);
+  }
+
+  Parser(TranslationUnit unit, List<Diagnostic> diagnostics) {
+    this.unit = unit;
+    this.diagnostics = diagnostics;
+    this.handlers = StatementHandlers.get();
+  }
+
+  /**
+   * Parses every statement from the first line to the end.
+   */
+  Module parseModule() {
+    startModule();
+    List<Statement> statements = Lists.newArrayList();
+    while (hasNextStatement()) {
+      statements.add(parseModuleStatement());
+    }
+    return new Module(statements);
+  }
+
+  /**
+   * Reads the first line, for parsing a statement at a time with parseModuleStatement().
+   */
+  void startModule() {
+    try {
+      advance();
+    } catch (ParseException e) {
+      throw located(e);
+    }
+  }
+
+  /**
+   * Returns whether there are statements left at the top level.
+   */
+  boolean hasNextStatement() {
+    return !line().peek().equals(ConverterUtil.EOF);
+  }
+
+  /**
+   * Passes over the next statement at the top level if it is a Sub or Function, up to its
+   * End Sub or End Function, without parsing the body. Returns whether it did.
+   */
+  boolean skipProcedure() {
+    String peek = line().peek();
+    if (!peek.equals("Sub") && !peek.equals("Function")) {
+      return false;
+    }
+    String end = "End " + peek;
+    do {
+      advance();
+      peek = line().peek();
+    } while (!peek.equals(end) && !peek.equals(ConverterUtil.EOF));
+    if (!peek.equals(ConverterUtil.EOF)) {
+      advance();
+    }
+    return true;
+  }
+
+  /**
+   * Parses the next statement at the top level: a whole Sub or Function, for instance.
+   */
+  Statement parseModuleStatement() {
+    int firstLine = unit.getCurrentLineNumber();
+    try {
+      return parseStatement();
+    } catch (ParseException e) {
+      if (diagnostics == null) {
+        throw located(e);
+      }
+      report(e);
+      if (!line().peek().equals(ConverterUtil.EOF)) {
+        advance();
+      }
+      return skipped(e, firstLine);
+    }
+  }
+
+  /**
+   * Moves on to the next line. When carrying on past errors, a line that can't be read is
+   * reported and read as an empty one, which parseEmpty() skips.
+   */
+  private void advance() {
+    long steps = line().getSteps();
+    if (diagnostics == null) {
+      unit.advance();
+    } else {
+      lineError = null;
+      try {
+        unit.advance();
+      } catch (ParseException e) {
+        report(e);
+        line().parseLine("");
+        lineError = e;
+      }
+    }
+    advanceSteps = line().getSteps() - steps;
+  }
+
+  private void report(ParseException e) {
+    int lineNumber = Math.min(unit.getCurrentLineNumber(), unit.getLastLineNumber());
+    diagnostics.add(new Diagnostic(
+        unit.getPhysicalLineNumber(lineNumber), e.getMessage(), unit.getLine(lineNumber)));
+  }
+
+  /**
+   * Returns e with the current line filled in, numbered as in the file given.
+   */
+  private ParseException located(ParseException e) {
+    String original = line().getOriginal();
+    return e.atLine(unit.getPhysicalLineNumber(unit.getCurrentLineNumber()),
+        original.equals(ConverterUtil.EOF) ? null : original);
+  }
+
+  /**
+   * Lines from firstLine up to the current one, which have been skipped because of e.
+   */
+  private Statement skipped(ParseException e, int firstLine) {
+    List<String> lines = Lists.newArrayList();
+    int end = Math.min(unit.getCurrentLineNumber(), unit.getLastLineNumber());
+    for (int i = firstLine; i < end; ++i) {
+      lines.add(unit.getLine(i));
+    }
+    Statement statement = new Statement.Skipped(e.getMessage(), lines);
+    statement.setSpan(firstLine, unit.getCurrentLineNumber());
+    return statement;
+  }
+
+  private Line line() {
+    return unit.getCurrentLine();
+  }
+
+  /**
+   * Comment of the current line, for the node being built.
+   */
+  private String comment() {
+    return line().getComment();
+  }
+
+  private boolean currentTokenTypeEquals(int other) {
+    return line().peekTokenType() == other;
+  }
+
+  /**
+   * Collect argument list for subroutine and function definitions. Deletes
+   * ByVal and ByRef, preserves type as comment
+   */
+  private List<Statement.Parameter> parseParameters() {
+    List<Statement.Parameter> parameters = Lists.newArrayList();
+    if (!line().peek().equals("(")) {
+      return parameters;
+    }
+
+    line().eat("(");
+
+    long mark = line().getProgress();
+    while (!line().peek().equals(")")) {
+      String ref = "";
+      if (line().peek().equals("ByRef")) {
+        ref = "/*ByRef*/";
+        line().eat("ByRef");
+      } else if (line().peek().equals("Optional")) {
+        ref = "/*Optional*/";
+        line().eat("Optional");
+      } else if (line().peek().equals("ByVal")) {
+        line().eat("ByVal");
+      }
+      String name = line().peek();
+      if (!name.equals(Emitter.render(line().getName()))) {
+        setArrayName(name);
+      }
+
+      if (line().peek().equals("As")) {
+        line().getToken(true); // As
+        line().getName(); // type
+      }
+
+      Expression defaultValue = null;
+      if (line().peek().equals("=")) {  // presumably only if Optional
+        line().eat("=");
+        defaultValue = line().getExpression();
+      }
+
+      boolean isSeparated = false;
+      if (line().peek().equals(",")) {
+        line().getToken(true);
+        isSeparated = true;
+      }
+      parameters.add(new Statement.Parameter(ref, name, defaultValue, isSeparated));
+      mark = line().checkProgress(mark);
+    }
+    line().eat(")");
+    return parameters;
+  }
+
+  /**
+   * Collect the arguments of a call written without parens around them, up to the end of
+   * the line, or if stopAtKeyword up to a keyword or : as well.
+   */
+  private List<Expression> parseArguments(boolean stopAtKeyword) {
+    List<Expression> arguments = Lists.newArrayList();
+    List<Expression> argument = Lists.newArrayList(); // more than one if not separated by ,
+    boolean isSeparated = false; // a , with nothing after it yet
+    long mark = line().getProgress();
+    while (!line().peek().isEmpty()
+        && !(stopAtKeyword
+            && (currentTokenTypeEquals(Lexer.KEY) || line().peek().equals(":")))) {
+      argument.add(line().getExpression());
+      isSeparated = false;
+      if (line().peek().equals(",")) {
+        line().getToken(true);
+        arguments.add(Expression.sequence(argument));
+        argument.clear();
+        isSeparated = true;
+      }
+      mark = line().checkProgress(mark);
+    }
+    if (!argument.isEmpty()) {
+      arguments.add(Expression.sequence(argument));
+    } else if (isSeparated) {
+      arguments.add(Expression.EMPTY);
+    }
+    return arguments;
+  }
+
+  private void setArrayName(String str) {
+    isMemoizable = false;
+    if (unit.getSubNestingValue() > 0) {
+      unit.addLocalName(str);
+    } else {
+      unit.addGlobalName(str);
+    }
+  }
+
+  /**
+   * Empty lines might include comments; either way, keep them
+   */
+  private List<Statement> skipEmptyLines() {
+    List<Statement> blanks = Lists.newArrayList();
+    while (line().peek().isEmpty()) {
+      blanks.add(parseEmpty());
+    }
+    return blanks;
+  }
+
+  /**
+   * Complains about running into the end of file in the middle of a statement.
+   */
+  private void checkNotEof() {
+    if (line().peek().equals(ConverterUtil.EOF)) {
+      throw new ParseException("Unexpected end of file, line " + line().getOriginal());
+    }
+  }
+
+  /**
+   * Starts with current line. Decide what kind of statement we have and call
+   * the right parse function.
+   */
+  private Statement parseStatement() {
+    String peek = line().peek();
+    boolean isNested = !isProcedureBody;
+    isProcedureBody = false;
+
+    checkNotEof();
+
+    int firstLine = unit.getCurrentLineNumber();
+    long mark = line().getProgress();
+    Statement statement;
+    if (diagnostics == null) {
+      statement = parseStatement(peek);
+    } else {
+      if (isNested && unit.getSubNestingValue() > 0
+          && (peek.equals("End Sub") || peek.equals("End Function"))) {
+        // a block in the Sub or Function is missing its end
+        throw new ParseException("Statement nesting error, can't parse: " + line().getOriginal());
+      }
+      int withDepth = unit.getWithDepth();
+      int subNestingValue = unit.getSubNestingValue();
+      String functionName = unit.getFunctionName();
+      try {
+        statement = parseStatement(peek);
+      } catch (ParseException e) {
+        unit.popWithNames(withDepth);
+        unit.setSubNestingValue(subNestingValue);
+        unit.setFunctionName(functionName);
+        if (unit.getCurrentLineNumber() != firstLine) {
+          throw e;
+        }
+        report(e);
+        advance();
+        return skipped(e, firstLine);
+      }
+    }
+    line().checkProgress(mark);
+    // statements separated by : end on the line they start on
+    statement.setSpan(firstLine, Math.max(unit.getCurrentLineNumber(), firstLine + 1));
+    return statement;
+  }
+
+  /**
+   * Calls the parse function for the kind of statement that starts with peek.
+   */
+  private Statement parseStatement(String peek) {
+    if (peek.isEmpty()) {
+      return parseEmpty();
+    }
+    int id = line().peekKeyword();
+    Keyword keyword = id != Keywords.NONE ? KEYWORDS_BY_ID[id] : OTHER_KEYWORDS.get(peek);
+    if (keyword != null) {
+      switch (keyword) {
+        case DIM:
+          return parseDim();
+        case IF:
+          return parseIf();
+        case FOR:
+          return parseFor();
+        case DO:
+          return parseDo();
+        case WHILE:
+          return parseWhile();
+        case SUB:
+          return parseSub();
+        case FUNCTION:
+          return parseFunction();
+        case CALL:
+          return parseCall();
+        case SELECT:
+          return parseSelect();
+        case EXIT:
+          return parseExit();
+        case WITH:
+          return parseWith();
+        case TYPE:
+          return parseType();
+        case ON_ERROR:
+          return parseOnError();
+      }
+    }
+    int peektype = line().peekTokenType();
+    if (!handlers.isEmpty() && (peektype == Lexer.PUNT || peektype == Lexer.ID)) {
+      Statement statement = parseHandled(peek);
+      if (statement != null) {
+        return statement;
+      }
+    }
+    if (peektype == Lexer.PUNT) {
+      return parsePunt();
+    } else if (peektype == Lexer.ID || peek.equals(".")) {
+      return parseMemoized();
+    } else {
+      return parseOther();
+    }
+  }
+
+  /**
+   * Returns whether word starts a statement the parser handles itself, in any case.
+   */
+  static boolean isStatementKeyword(String word) {
+    for (String keyword : KEYWORDS.keySet()) {
+      if (keyword.equalsIgnoreCase(word)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gives the statement starting with peek to the StatementHandler registered for its first
+   * word, if there is one. Returns null if there isn't, or if the handler leaves the
+   * statement alone.
+   */
+  private Statement parseHandled(String peek) {
+    int space = peek.indexOf(' ');
+    String word = space < 0 ? peek : peek.substring(0, space);
+    StatementHandler handler = handlers.get(Ascii.toLowerCase(word));
+    if (handler == null) {
+      return null;
+    }
+    String code = handler.convert(line().getLine());
+    if (code == null) {
+      return null;
+    }
+    Statement statement = new Statement.Handled(code, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Parses an assignment or call that takes up a line of its own through the unit's
+   * LineMemo: if the line was translated before, and reads the same now, its JavaScript is
+   * taken from there. Otherwise it is parsed, and kept if it was seen before, unless parsing
+   * it declared an array or rewrote the line. A line kept comes back as a Statement.Handled.
+   * A line taken from the memo still counts against the budget the steps it took to parse,
+   * so that how far a Budget goes does not depend on what the thread converted before.
+   */
+  private Statement parseMemoized() {
+    if (!line().isAtLineStart()) {
+      return parseAssignmentOrCall();
+    }
+    LineMemo memo = unit.getLineMemo();
+    String converted = line().getConverted();
+    String comment = comment();
+    String code = memo.lookup(converted, unit.getFunctionName());
+    if (code != null) {
+      line().takeSteps(memo.getHitSteps());
+      advance();
+      return new Statement.Handled(code, comment);
+    }
+    if (!memo.isWorthKeeping()) {
+      return parseAssignmentOrCall();
+    }
+    int firstLine = unit.getCurrentLineNumber();
+    long steps = line().getSteps();
+    isMemoizable = true;
+    Statement statement;
+    memo.startRecording();
+    try {
+      statement = parseAssignmentOrCall();
+    } finally {
+      memo.stopRecording();
+    }
+    if (!isMemoizable || unit.getCurrentLineNumber() != firstLine + 1) {
+      return statement;
+    }
+    code = emitter.emitCode(statement);
+    if (code == null) {
+      return statement;
+    }
+    memo.put(converted, code, statement, line().getSteps() - steps - advanceSteps);
+    return new Statement.Handled(code, comment);
+  }
+
+  /**
+   * Parse foo, foo(bar) and foo bar. gets it wrong if the first argument
+   * starts with a paren -- too ambiguous. This is balanced on a pinhead.
+   */
+  private Statement parseAssignmentOrCall() {
+    Expression name = line().getName();
+    Statement statement;
+
+    if (line().peek().equals(":")) { // a label?
+      Expression rest = line().getRest();
+      statement = new Statement.Label(name, rest, comment());
+      advance();
+      return statement;
+    }
+
+    // For cases like: foo (p1), (p2). These are transformed into foo ((p1), (p2)) and
+    // put back into the list of lines.
+    if (line().peek().equals(",")) {
+      isMemoizable = false;
+      String original = line().getOriginal();
+      int separatorIndex = original.indexOf(" ");
+      if (separatorIndex >= 0) {
+        line().parseLine(original);  // start over with original line
+        original = unit.getCurrentLineAsString();
+        original = original.substring(0, separatorIndex) + "("
+            + original.substring(separatorIndex + 1, original.length()).trim() + ")";
+        if (line().hasComment()) { // restore comment if there was one
+          original += "' " + line().getComment();
+        }
+        line().parseLine(original);   // parse the modified line
+        return parseAssignmentOrCall();
+      }
+    }
+
+    if (line().peek().equals("=")) { // assignment
+      line().eat("=");
+      String target = Emitter.render(name);
+      boolean isReturnValue = target.equals(unit.getFunctionName());
+      if (isReturnValue) {
+        target = "_" + target;
+      }
+      boolean isNew = false;
+
+      if (line().peek().equals("New")) {
+        line().eat("New");
+        isNew = true;
+      } else if (line().peek().startsWith("Array")) {
+        isNew = true;
+        setArrayName(target);
+      }
+
+      Expression value = line().getExpression();
+      statement = new Statement.Assignment(name, isReturnValue, isNew, value, comment());
+    } else if (currentTokenTypeEquals(Lexer.ID)
+        || currentTokenTypeEquals(Lexer.NUM)
+        || currentTokenTypeEquals(Lexer.STR)
+        || line().peek().equals("-")) {
+      // probably foo bar,glop
+      List<Expression> arguments = parseArguments(true);
+      statement = new Statement.CallStatement(
+          Statement.CallStatement.Form.IMPLICIT, name, arguments, comment());
+    } else { // who knows
+      Expression rest = line().getRest();
+      statement = new Statement.ExpressionStatement(name, rest, comment());
+    }
+
+    // Handles multiple statements on one line separated :
+    if (line().peek().equals(":")) {
+      line().eat(":");
+    } else {
+      advance();
+    }
+    return statement;
+  }
+
+  /**
+   * Parse an explicit Call statement, either Call this, that, theother or
+   * Call(this, that, theother).
+   */
+  private Statement parseCall() {
+    line().eat("Call");
+    Expression name = line().getName();
+    Statement.CallStatement.Form form;
+    List<Expression> arguments = ImmutableList.of();
+    if (line().peek().isEmpty()) { // Call foo(...) or Call foo
+      form = Statement.CallStatement.Form.BARE;
+    } else if (line().peek().equals("(")) {
+      form = Statement.CallStatement.Form.PARENTHESIZED;
+      arguments = parseArguments(false);
+      // should eat the closing paren
+    } else {
+      form = Statement.CallStatement.Form.EXPLICIT;
+      arguments = parseArguments(false);
+    }
+    Statement statement = new Statement.CallStatement(form, name, arguments, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Innards of a single Case
+   */
+  private Statement.Case parseCase() {
+    line().eat("Case");
+    List<Statement.CaseCondition> conditions = null;
+    String comment;
+
+    if (line().peek().equals("Else")) {
+      line().eat("Else");
+      comment = comment();
+    } else {
+      // expression1 To expression2
+      // [ Is ] comparisonoperator expression
+      // expression
+      conditions = Lists.newArrayList();
+      long mark = line().getProgress();
+      while (!line().peek().isEmpty() && !line().peek().equals(":")) {
+        if (line().peek().equals("Is")) {
+          line().eat("Is");
+        }
+        String relOp;
+        Expression toExpr;
+        Expression upper = null;
+        if (currentTokenTypeEquals(Lexer.OP)
+            && !(line().peek().equals("-")
+            || line().peek().equals("+"))) {
+          relOp = ConverterUtil.fixOperators(line().getToken(true));
+          toExpr = line().getExpression();
+        } else {
+          toExpr = line().getExpression();
+          if (line().peek().equals("To")) {
+            line().eat("To");
+            relOp = null;
+            upper = line().getExpression();
+          } else {
+            relOp = "==";
+          }
+        }
+        boolean isSeparated = false;
+        if (line().peek().equals(",")) {
+          line().eat(",");
+          isSeparated = true;
+        }
+        conditions.add(new Statement.CaseCondition(relOp, toExpr, upper, isSeparated));
+        mark = line().checkProgress(mark);
+      }
+      comment = comment();
+    }
+
+    List<Statement> body = Lists.newArrayList();
+    if (line().peek().equals(":")) { // meant to handle 1-liners
+      line().eat(":");
+      body.add(parseStatement());
+    } else {
+      advance();
+      while (!line().peek().equals("Case") && !line().peek().equals("End Select")) {
+        body.add(parseStatement());
+      }
+    }
+    return new Statement.Case(conditions, comment, body);
+  }
+
+  /**
+   * Dim x As type, y(10) As type, z As type = expr. Remembers array names so
+   * can convert () to [] when used in expression.
+   */
+  private Statement parseDim() {
+    String kind = line().getToken(true); // Dim, ReDim, Global or Const
+    boolean isUserDefinedType = false;
+    List<Statement.Declarator> declarators = Lists.newArrayList();
+
+    while (true) {
+      String var = line().getToken(true);
+      if (var.equals("Preserve")) {
+        var = line().getToken(true);
+      }
+
+      Expression.Balanced bounds = null; // not an array
+      String dim = "";
+      List<String> indices = ImmutableList.of();
+      if (line().peek().equals("(")) {
+        bounds = line().getBalancedParentheses();
+        dim = Emitter.render(bounds);
+
+        String[] upper = PARENTHESIS_PATTERN.matcher(dim).replaceAll("").split(",");
+        for (int i = 0, len = upper.length; i < len; ++i) {
+          Matcher rangeMatcher = RANGE_PATTERN.matcher(upper[i]);
+          if (rangeMatcher.matches()) {
+            // TODO(nikhil): We aren't storing the lower limit now. Might want
+            // to do that later.
+            upper[i] = rangeMatcher.group(2);
+          }
+        }
+        indices = Arrays.asList(upper);
+      }
+
+      String vtype = "";
+      if (line().peek().equals("As")) { // As [New] type
+        line().eat("As");
+        if (line().peek().equals("New")) {
+          vtype = "New ";
+          line().eat("New");
+        }
+        vtype += Emitter.render(line().getName());
+
+        // Dim foo as String * 100 (String with length 100)
+        if (line().peek().equals("*")) {
+          vtype += line().getToken(true);
+          vtype += Emitter.render(line().getExpression());
+        }
+      }
+
+      Expression initializer = Expression.EMPTY;
+      if (line().peek().equals("=")) { // some kind of initializer
+        line().eat("=");
+        if (line().peek().equals("{")) {
+          line().eat("{");
+          List<Expression> values = Lists.newArrayList();
+          long mark = line().getProgress();
+          while (!line().peek().equals("}") && !line().peek().equals(ConverterUtil.EOF)) {
+            values.add(line().getLiteral());
+            mark = line().checkProgress(mark);
+          }
+          line().eat("}");
+          initializer = Expression.sequence(values);
+        } else {
+          // scalar
+          initializer = line().getExpression();
+        }
+      }
+
+      boolean isTypeName = false;
+      if (!vtype.isEmpty() && unit.isTypeName(vtype)) {
+        isTypeName = true;
+        isUserDefinedType = true;
+      }
+
+      Statement.Declarator.Form form;
+      if (bounds == null) { // it's not an array
+        form = isUserDefinedType
+            ? Statement.Declarator.Form.OBJECT : Statement.Declarator.Form.SCALAR;
+      } else if (kind.equals("ReDim")) {
+        if (!unit.isArrayName(var)) { // uses ReDim to declare array
+          form = Statement.Declarator.Form.REDIM_DECLARATION;
+          setArrayName(var);
+        } else if (dim.indexOf(',') != -1) {  // flag multi-dim ReDim
+          form = Statement.Declarator.Form.REDIM_MULTI_DIM;
+          checkBounds(indices);
+        } else {
+          form = Statement.Declarator.Form.REDIM;
+        }
+      } else { // it is an array
+        form = Statement.Declarator.Form.ARRAY;
+        if (Emitter.render(initializer).isEmpty()) {
+          checkBounds(indices);
+        }
+        setArrayName(var);
+      }
+      declarators.add(
+          new Statement.Declarator(form, var, bounds, indices, vtype, isTypeName, initializer));
+
+      if (!line().peek().equals(",")) {
+        break;
+      }
+      line().eat(",");
+    }
+    Statement statement = new Statement.Dim(kind, declarators, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Complains about array bounds with nothing in them, as in Dim x(,).
+   */
+  private void checkBounds(List<String> indices) {
+    if (indices.isEmpty()) {
+      throw new ParseException("Array bounds missing, can't parse: " + line().getOriginal());
+    }
+  }
+
+  /**
+   * Parse Do [while/until e] ... Loop [while/until e]
+   */
+  private Statement parseDo() {
+    Statement.Do.Test test = Statement.Do.Test.NONE;
+    Expression doExpr = null;
+    line().eat("Do");
+    if (line().peek().equals("While")) {
+      line().eat("While");
+      test = Statement.Do.Test.WHILE;
+      doExpr = line().getExpression();
+    } else if (line().peek().equals("Until")) {
+      line().eat("Until");
+      test = Statement.Do.Test.UNTIL;
+      doExpr = line().getExpression();
+    }
+    String comment = comment();
+
+    advance();
+
+    List<Statement> body = Lists.newArrayList();
+    while (!line().peek().equals("Loop")) {
+      body.add(parseStatement());
+    }
+
+    line().eat("Loop");
+    Statement.Do.Test loopTest = Statement.Do.Test.NONE;
+    Expression loopExpr = null;
+    if (line().peek().equals("While")) {
+      line().eat("While");
+      loopTest = Statement.Do.Test.WHILE;
+      loopExpr = line().getExpression();
+    } else if (line().peek().equals("Until")) {
+      line().eat("Until");
+      loopTest = Statement.Do.Test.UNTIL;
+      loopExpr = line().getExpression();
+    }
+
+    Statement statement =
+        new Statement.Do(test, doExpr, comment, body, loopTest, loopExpr, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Parse empty line (perhaps with comment)
+   */
+  private Statement parseEmpty() {
+    if (lineError != null) { // already reported
+      int firstLine = unit.getCurrentLineNumber();
+      ParseException e = lineError;
+      advance();
+      return skipped(e, firstLine);
+    }
+    Statement statement = new Statement.Blank(comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Parse various kinds of Exits
+   */
+  private Statement parseExit() {
+    line().eat("Exit");
+    String token = line().getToken(true);
+    Statement.Exit.Kind kind;
+    Expression target = Expression.EMPTY;
+    if (token.equals("For") || token.equals("While") || token.equals("Do")) {
+      kind = Statement.Exit.Kind.LOOP;
+    } else if (token.equals("Sub")) {
+      kind = Statement.Exit.Kind.SUB;
+    } else if (token.equals("Function")) {
+      kind = Statement.Exit.Kind.FUNCTION;
+      target = new Expression.Literal(Lexer.ID, unit.getFunctionName());
+    } else {
+      kind = Statement.Exit.Kind.OTHER;
+      target = line().getRest();
+    }
+
+    Statement statement = new Statement.Exit(kind, target, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * For i = startExpr To stopExpr [Step stepExpr]
+   */
+  private Statement parseFor() {
+    line().eat("For");
+
+    if (line().peek().equals("Each")) {
+      return parseForEach();
+    }
+
+    String var = line().getToken(true);
+    line().eat("=");
+    Expression startExpr = line().getExpression();
+    String updown = line().getToken(true); // To or Downto
+    Expression stopExpr = line().getExpression();
+
+    Expression stepExpr = null;
+    boolean isNegativeStep = false;
+    if (line().peek().equals("Step")) {
+      line().eat("Step");
+      stepExpr = line().getExpression();
+      isNegativeStep = Emitter.render(stepExpr).substring(0, 1).equals("-");
+    }
+    String comment = comment();
+    advance();
+
+    List<Statement> body = Lists.newArrayList();
+    while (!line().peek().equals("Next")
+        && !line().peek().equals(ConverterUtil.EOF)) {
+      body.add(parseStatement());
+    }
+
+    Statement statement = new Statement.For(var, startExpr, stopExpr, updown.equals("To"),
+        stepExpr, isNegativeStep, comment, body, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * For Each var In whatever ... Next
+   */
+  private Statement parseForEach() {
+    line().eat("Each");
+    String var = line().getToken(true);
+    if (line().peek().equals("As")) { // skip optional As type
+      line().eat("As");
+      line().getName();
+    }
+    line().eat("In");
+    Expression expr = line().getExpression();
+    String comment = comment();
+    advance();
+    List<Statement> body = Lists.newArrayList();
+    while (!line().peek().equals("Next") && !line().peek().equals(
+        ConverterUtil.EOF)) {
+      body.add(parseStatement());
+    }
+    Statement statement = new Statement.ForEach(var, expr, comment, body, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Function whatever(arglist) As whatever ... End Function. This should do
+   * something with the function name so return expr works properly.
+   */
+  private Statement parseFunction() {
+    unit.enterSub();
+    line().eat("Function");
+    unit.setFunctionName(line().getToken(true));
+    List<Statement.Parameter> parameters = parseParameters();
+    StringBuilder ret = new StringBuilder();
+
+    while (line().hasToken()) {
+      line().getToken(true);
+      if (!line().getCurrentToken().equalsIgnoreCase("As")) {// skip 'As Double'
+        ret.append(line().getCurrentToken());
+      } else {
+        line().eat("As");
+        ret.append(line().getCurrentToken());
+      }
+    }
+
+    String name = unit.getFunctionName();
+    String comment = comment();
+    advance();
+
+    List<Statement> body = parseProcedureBody("End Function", false);
+    boolean isEnded = endProcedure("End Function");
+    Statement statement = new Statement.Procedure(
+        true, name, parameters, ret.toString(), comment, body, isEnded ? comment() : "");
+    unit.setFunctionName("");
+    unit.leaveSub();
+    if (isEnded) {
+      advance();
+    }
+    return statement;
+  }
+
+  /**
+   * Statements of a Sub or Function, up to end; or up to the end of file if stopAtEof, or
+   * if carrying on past errors. Then a statement that fails after its first line is
+   * skipped along with everything after it, up to end or to the next Sub or Function.
+   */
+  private List<Statement> parseProcedureBody(String end, boolean stopAtEof) {
+    List<Statement> body = Lists.newArrayList();
+    boolean isSkipped = false;
+    while (!line().peek().equals(end)
+        && !((stopAtEof || diagnostics != null) && line().peek().equals(ConverterUtil.EOF))) {
+      int firstLine = unit.getCurrentLineNumber();
+      try {
+        isProcedureBody = true;
+        body.add(parseStatement());
+      } catch (ParseException e) {
+        if (diagnostics == null) {
+          throw e;
+        }
+        report(e);
+        while (!line().peek().equals(end) && !line().peek().equals(ConverterUtil.EOF)) {
+          advance();
+          if (line().peek().equals("Sub") || line().peek().equals("Function")) {
+            break;
+          }
+        }
+        body.add(skipped(e, firstLine));
+        isSkipped = true;
+        if (!line().peek().equals(end)) {
+          break;
+        }
+      }
+    }
+    if (diagnostics != null && !isSkipped && !line().peek().equals(end)) {
+      report(new ParseException("Missing " + end));
+    }
+    return body;
+  }
+
+  /**
+   * Steps over the end of a Sub or Function. Returns false if it is missing, when carrying
+   * on past errors (it has been reported).
+   */
+  private boolean endProcedure(String end) {
+    if (diagnostics != null && !line().peek().equals(end)) {
+      return false;
+    }
+    line().eat(end);
+    return true;
+  }
+
+  /**
+   * If ... Then \n stat \n [ElseIf ... \n stat ] [Else \n stat ] End If
+   */
+  private Statement parseIf() {
+    List<Statement.Block> branches = Lists.newArrayList();
+    line().eat("If");
+    Expression expression = line().getExpression();
+    line().eat("Then");
+    String comment = comment();
+    advance();
+
+    List<Statement> body = Lists.newArrayList();
+    while (!line().peek().equals("End If")
+        && !line().peek().equals("Else")
+        && !line().peek().equals("ElseIf")) {
+      body.add(parseStatement());
+    }
+    branches.add(new Statement.Block(expression, comment, body));
+
+    while (line().peek().equals("ElseIf")) {
+      line().eat("ElseIf");
+      expression = line().getExpression();
+      line().eat("Then");
+      comment = comment();
+      advance();
+
+      body = Lists.newArrayList();
+      while (!line().peek().equals("End If")
+          && !line().peek().equals("Else")
+          && !line().peek().equals("ElseIf")) {
+        body.add(parseStatement());
+      }
+      branches.add(new Statement.Block(expression, comment, body));
+    }
+
+    Statement.Block otherwise = null;
+    if (line().peek().equals("Else")) {
+      line().eat("Else");
+      comment = comment();
+      advance();
+      body = Lists.newArrayList();
+      while (!line().peek().equals("End If")) {
+        body.add(parseStatement());
+      }
+      otherwise = new Statement.Block(null, comment, body);
+    }
+
+    line().eat("End If");
+    Statement statement = new Statement.If(branches, otherwise, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * On Error [Resume Next / Resume lab / GoTo lab. No idea what the scope of
+   * these things is. "Scope" is probably the wrong idea, more like setting a
+   * state.
+   */
+  private Statement parseOnError() {
+    List<Statement> none = ImmutableList.of();
+    Statement statement;
+    line().eat("On Error");
+    if (line().peek().equals("Resume")) {
+      line().eat("Resume");
+      Expression rest = line().getRest();
+      statement = new Statement.OnError(
+          Statement.OnError.Kind.RESUME, rest, comment(), none, "", none, "");
+      advance();
+
+    } else if (line().peek().equals("GoTo")) {
+      line().eat("GoTo");
+      Expression.Literal token = line().getLiteral();
+      if (token.text.equals("0")) {
+        statement = new Statement.OnError(
+            Statement.OnError.Kind.GOTO_ZERO, token, comment(), none, "", none, "");
+        advance();
+        return statement; // special case in VB: restore normal handling
+      }
+
+      String comment = comment();
+      advance();
+
+      List<Statement> tryBody = Lists.newArrayList();
+      while (!line().peek().equals(token.text)) {
+        tryBody.add(parseStatement());
+      }
+
+      advance();
+      String catchComment = comment();
+
+      List<Statement> catchBody = Lists.newArrayList();
+      while (!line().peek().equals("End Sub")
+          && !line().peek().equals("End Function")) {
+        catchBody.add(parseStatement());
+      }
+
+      statement = new Statement.OnError(Statement.OnError.Kind.GOTO, token, comment, tryBody,
+          catchComment, catchBody, comment());
+    } else {
+      statement = new Statement.OnError(
+          Statement.OnError.Kind.NONE, Expression.EMPTY, "", none, "", none, "");
+    }
+    return statement;
+  }
+
+  /**
+   * Not sure so just put it out.
+   */
+  private Statement parseOther() {
+    Statement statement = new Statement.Untouched(line().getRest(), comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Something sufficiently bad that we know to ignore it. e.g.,
+   * Attribute|Option|Open|Close|Declare|Line
+   */
+  private Statement parsePunt() {
+    Expression rest = new Expression.Literal(Lexer.PUNT, line().getLine());
+    Statement statement = new Statement.Untouched(rest, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Select ... Case ... [Case Else] End Select. This is a nightmare statement
+   * because Case exprs are a mess.
+   */
+  private Statement parseSelect() {
+    line().eat("Select");
+    line().eat("Case");
+    Expression e = line().getExpression();
+    List<Statement> blanks = skipEmptyLines(); // vbFile.advance();
+    List<Statement.Case> cases = Lists.newArrayList();
+
+    while (!line().peek().equals("End Select")) {
+      checkNotEof();
+      if (!line().peek().equals("Case")) {
+        throw new ParseException("Case expected, can't parse: " + line().getOriginal());
+      }
+      cases.add(parseCase());
+    }
+
+    line().eat("End Select");
+    Statement statement = new Statement.Select(e, blanks, cases, comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * Sub name(arglist) ... End Sub. Should be skipping Private, etc.
+   */
+  private Statement parseSub() {
+    unit.enterSub();
+    line().eat("Sub");
+    String subname = line().getToken(true);
+    List<Statement.Parameter> parameters = parseParameters();
+    String comment = comment();
+    advance();
+
+    List<Statement> body = parseProcedureBody("End Sub", true);
+    boolean isEnded = endProcedure("End Sub");
+    Statement statement = new Statement.Procedure(
+        false, subname, parameters, "", comment, body, isEnded ? comment() : "");
+    unit.leaveSub();
+    if (isEnded) {
+      advance();
+    }
+    return statement;
+  }
+
+  /**
+   * Parses user-defined VB types. <br />
+   * eg: <br />
+   * <code>
+   * Type foo
+   *   x as Integer
+   *   y
+   * End Type
+   * </code>
+   */
+  private Statement parseType() {
+    boolean isUserDefinedType = false;
+    line().eat("Type");
+    // Type <name>
+    String typeName = line().getToken(true);
+
+    // Add the name to the set of Type names. We use this later in case the user declares variables
+    // of that type.
+    unit.addTypeName(typeName);
+
+    advance();
+
+    // JS class constructor
+    String comment = comment();
+
+    // We are in the middle of a Type declaration
+    List<Statement.TypeMember> members = Lists.newArrayList();
+    while (!line().peek().equals("End Type")) {
+      checkNotEof();
+      // Parse the variable declaration
+      String name = line().getToken(true);
+      String vtype = "";
+      if (line().peek().equals("As")) {
+        line().eat("As");
+        vtype = line().peek();
+      }
+
+      // Is the variable type a user-defined Type?
+      boolean isTypeName = unit.isTypeName(vtype);
+      if (isTypeName) {
+        isUserDefinedType = true;
+      }
+
+      Expression rest = Expression.EMPTY;
+      if (name.isEmpty()) {
+        // Only a comment
+        rest = line().getRest();
+      }
+      members.add(new Statement.TypeMember(
+          name, vtype, isTypeName, isUserDefinedType, rest, comment()));
+      advance();
+    }
+
+    line().eat("End Type");
+    advance();
+    return new Statement.TypeDeclaration(typeName, comment, members);
+  }
+
+  /**
+   * Parse While e ... End While.
+   */
+  private Statement parseWhile() {
+    line().eat("While");
+    Expression expr = line().getExpression();
+    advance();
+    String comment = comment();
+
+    List<Statement> body = Lists.newArrayList();
+    while (!line().peek().equals("End While")
+        && !line().peek().equals("Wend")) {
+      body.add(parseStatement());
+    }
+
+    line().getToken(true); // End While or Wend
+    Statement statement =
+        new Statement.While(new Statement.Block(expr, comment, body), comment());
+    advance();
+    return statement;
+  }
+
+  /**
+   * With name ... End With.
+   */
+  private Statement parseWith() {
+    line().eat("With");
+    unit.addWithName(Emitter.render(line().getName()));
+    String name = unit.getWithName();
+    String comment = comment();
+    advance();
+
+    List<Statement> body = Lists.newArrayList();
+    while (!line().peek().equals("End With")) {
+      body.add(parseStatement());
+    }
+
+    line().eat("End With");
+    try {
+      unit.popWithName();
+    } catch (NoSuchElementException e) {
+      throw new ParseException(
+          "Failed while translating With... End With. Out of statements to parse.");
+    }
+    advance();
+    return new Statement.With(name, comment, body);
+  }
+}
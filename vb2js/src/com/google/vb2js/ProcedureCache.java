@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JavaScript of the Subs and Functions of a module as last converted, for converting
+ * the module again after an edit. A Sub or Function that ParallelConversion can convert on
+ * its own comes out the same for the same cleaned lines and the same Type and global names
+ * declared before it, so those are the key; where it is in the module does not matter.
+ * Entries not used by a conversion are dropped at its end, so the cache holds one module's
+ * worth, and all of it is dropped if the StatementHandlers registered change.
+ *
+ * A cache is used by one thread at a time.
+ */
+final class ProcedureCache {
+
+  /** The lines of a Sub or Function, and the names declared before it */
+  static final class Key {
+    private final List<String> lines;
+    private final ImmutableSet<String> typeNames;
+    private final ImmutableSet<String> globalNames;
+    private final int hash;
+
+    private Key(List<String> lines, ImmutableSet<String> typeNames,
+        ImmutableSet<String> globalNames) {
+      this.lines = lines;
+      this.typeNames = typeNames;
+      this.globalNames = globalNames;
+      this.hash = 31 * (31 * lines.hashCode() + typeNames.hashCode()) + globalNames.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return hash == key.hash && lines.equals(key.lines) && typeNames.equals(key.typeNames)
+          && globalNames.equals(key.globalNames);
+    }
+  }
+
+  /** The JavaScript for a key, and the key as kept, with its lines copied */
+  private static final class Entry {
+    private final Key key;
+    private final String jsCode;
+
+    private Entry(Key key, String jsCode) {
+      this.key = key;
+      this.jsCode = jsCode;
+    }
+  }
+
+  private ImmutableMap<String, StatementHandler> handlers = StatementHandlers.get();
+
+  private Map<Key, Entry> entries = Maps.newHashMap();
+
+  /** Entries looked up or added by the conversion going on */
+  private Map<Key, Entry> used = Maps.newHashMap();
+
+  /**
+   * The sets of names in the keys kept, each once, so that a key made from an equal set
+   * gets the same one and compares by identity
+   */
+  private final Map<ImmutableSet<String>, ImmutableSet<String>> nameSets = Maps.newHashMap();
+
+  /**
+   * The names last given to key() and the sets kept for them: most procedures come after
+   * the same declarations, and get the same sets
+   */
+  private ImmutableSet<String> lastTypeNames;
+  private ImmutableSet<String> keptTypeNames;
+  private ImmutableSet<String> lastGlobalNames;
+  private ImmutableSet<String> keptGlobalNames;
+
+  private long hits;
+  private long misses;
+
+  /**
+   * Starts a conversion of the module.
+   */
+  void start() {
+    if (StatementHandlers.get() != handlers) {
+      handlers = StatementHandlers.get();
+      entries.clear();
+    }
+    used.clear();
+  }
+
+  /**
+   * Ends a conversion, dropping the entries it did not use. When it failed, the entries are
+   * kept as they were.
+   */
+  void finish(boolean isConverted) {
+    if (isConverted) {
+      Map<Key, Entry> dropped = entries;
+      entries = used;
+      used = dropped;
+      nameSets.clear();
+      lastTypeNames = null;
+      lastGlobalNames = null;
+      for (Key key : entries.keySet()) {
+        nameSets.put(key.typeNames, key.typeNames);
+        nameSets.put(key.globalNames, key.globalNames);
+      }
+    }
+    used.clear();
+  }
+
+  /**
+   * Returns the key of a Sub or Function with lines, which are not copied, after typeNames
+   * and globalNames were declared.
+   */
+  Key key(List<String> lines, ImmutableSet<String> typeNames,
+      ImmutableSet<String> globalNames) {
+    if (typeNames != lastTypeNames) {
+      lastTypeNames = typeNames;
+      keptTypeNames = intern(typeNames);
+    }
+    if (globalNames != lastGlobalNames) {
+      lastGlobalNames = globalNames;
+      keptGlobalNames = intern(globalNames);
+    }
+    return new Key(lines, keptTypeNames, keptGlobalNames);
+  }
+
+  private ImmutableSet<String> intern(ImmutableSet<String> names) {
+    ImmutableSet<String> kept = nameSets.get(names);
+    if (kept == null) {
+      nameSets.put(names, names);
+      kept = names;
+    }
+    return kept;
+  }
+
+  /**
+   * Returns the JavaScript kept for key, or null if there is none.
+   */
+  String get(Key key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    used.put(entry.key, entry);
+    return entry.jsCode;
+  }
+
+  /**
+   * Keeps the JavaScript for key, copying its lines.
+   */
+  void put(Key key, String jsCode) {
+    Key kept = new Key(ImmutableList.copyOf(key.lines), key.typeNames, key.globalNames);
+    used.put(kept, new Entry(kept, jsCode));
+  }
+
+  long getHits() {
+    return hits;
+  }
+
+  long getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.AbstractIterator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * VB source held in a buffer rather than as a list of Strings. A file is memory mapped, and
+ * for single-byte charsets (US-ASCII, windows-1252, ISO-8859-x) its bytes are decoded one at
+ * a time through a table when they are read, so the file is never copied onto the heap.
+ * Other charsets are decoded into a CharBuffer once. Lines are cut out of the buffer only
+ * when they are asked for, already trimmed.
+ */
+final class SourceText implements CharSequence {
+
+  private final ByteBuffer bytes;
+
+  /** Character for each byte value */
+  private final char[] table;
+
+  private SourceText(ByteBuffer bytes, char[] table) {
+    this.bytes = bytes;
+    this.table = table;
+  }
+
+  /**
+   * Maps a file and returns its text decoded with charset.
+   */
+  static CharSequence map(Path file, Charset charset) throws IOException {
+    ByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("File too large to convert: " + file);
+      }
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    char[] table = getTable(charset);
+    if (table == null) {
+      return charset.decode(mapped);
+    }
+    return new SourceText(mapped, table);
+  }
+
+  /**
+   * Returns the character for each byte value if charset encodes every character in a
+   * single byte, else null.
+   */
+  private static char[] getTable(Charset charset) {
+    if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+      return null;
+    }
+    byte[] values = new byte[256];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = (byte) i;
+    }
+    CharBuffer decoded = charset.decode(ByteBuffer.wrap(values));
+    if (decoded.remaining() != values.length) {
+      return null;
+    }
+    char[] table = new char[values.length];
+    decoded.get(table);
+    return table;
+  }
+
+  /**
+   * Returns the lines of text, trimmed, split the way BufferedReader.readLine() splits them:
+   * at \n, \r or \r\n, with no empty line after a final line terminator.
+   */
+  static Iterable<String> lines(final CharSequence text) {
+    return new Iterable<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return new AbstractIterator<String>() {
+          private int position = 0;
+
+          @Override
+          protected String computeNext() {
+            int length = text.length();
+            if (position >= length) {
+              return endOfData();
+            }
+            int end = position;
+            while (end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+              ++end;
+            }
+            int next = end + 1;
+            if (end + 1 < length && text.charAt(end) == '\r' && text.charAt(end + 1) == '\n') {
+              ++next;
+            }
+            int start = position;
+            position = next;
+            while (start < end && text.charAt(start) <= ' ') {
+              ++start;
+            }
+            while (end > start && text.charAt(end - 1) <= ' ') {
+              --end;
+            }
+            return text.subSequence(start, end).toString();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Returns the lines read from reader, as readLine() returns them. An IOException is
+   * thrown on as an UncheckedIOException.
+   */
+  static Iterator<String> lines(final BufferedReader reader) {
+    return new AbstractIterator<String>() {
+      @Override
+      protected String computeNext() {
+        try {
+          String line = reader.readLine();
+          return line != null ? line : endOfData();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  @Override
+  public int length() {
+    return bytes.limit();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return table[bytes.get(index) & 0xff];
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    ByteBuffer slice = bytes.duplicate();
+    slice.position(start);
+    slice.limit(end);
+    return new SourceText(slice.slice(), table);
+  }
+
+  @Override
+  public String toString() {
+    char[] chars = new char[length()];
+    for (int i = 0; i < chars.length; ++i) {
+      chars[i] = charAt(i);
+    }
+    return new String(chars);
+  }
+}
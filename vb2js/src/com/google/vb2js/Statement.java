@@ -0,0 +1,714 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Statement nodes built by Parser. Each node spans input lines [firstLine, endLine) of the
+ * translation unit, after cleanup; statements separated by : share a line. Comments are
+ * kept with the piece of output they end up on, which is not always the line they were
+ * on: While and Type, for instance, take the comment of the line after them.
+ */
+abstract class Statement {
+
+  interface Visitor<R> {
+    R visitBlank(Blank blank);
+    R visitUntouched(Untouched untouched);
+    R visitLabel(Label label);
+    R visitDim(Dim dim);
+    R visitAssignment(Assignment assignment);
+    R visitCall(CallStatement call);
+    R visitExpression(ExpressionStatement statement);
+    R visitIf(If statement);
+    R visitFor(For statement);
+    R visitForEach(ForEach statement);
+    R visitDo(Do statement);
+    R visitWhile(While statement);
+    R visitProcedure(Procedure procedure);
+    R visitSelect(Select select);
+    R visitExit(Exit exit);
+    R visitWith(With with);
+    R visitType(TypeDeclaration type);
+    R visitOnError(OnError onError);
+    R visitSkipped(Skipped skipped);
+    R visitHandled(Handled handled);
+  }
+
+  private int firstLine;
+  private int endLine;
+
+  abstract <R> R accept(Visitor<R> visitor);
+
+  int getFirstLine() {
+    return firstLine;
+  }
+
+  /** First line after the statement; the same line again if it was ended by : */
+  int getEndLine() {
+    return endLine;
+  }
+
+  void setSpan(int first, int end) {
+    this.firstLine = first;
+    this.endLine = end;
+  }
+
+  /**
+   * An empty line, perhaps with a comment.
+   */
+  static final class Blank extends Statement {
+    final String comment;
+
+    Blank(String comment) {
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBlank(this);
+    }
+  }
+
+  /**
+   * Code the translator doesn't know how to handle, commented out.
+   */
+  static final class Untouched extends Statement {
+    final Expression code;
+    final String comment;
+
+    Untouched(Expression code, String comment) {
+      this.code = code;
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitUntouched(this);
+    }
+  }
+
+  /**
+   * A statement converted by a StatementHandler, as the JS it returned; also a line
+   * translated through the LineMemo.
+   */
+  static final class Handled extends Statement {
+    final String code;
+    final String comment;
+
+    Handled(String code, String comment) {
+      this.code = code;
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitHandled(this);
+    }
+  }
+
+  static final class Label extends Statement {
+    final Expression name;
+    final Expression rest;
+    final String comment;
+
+    Label(Expression name, Expression rest, String comment) {
+      this.name = name;
+      this.rest = rest;
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLabel(this);
+    }
+  }
+
+  /**
+   * Dim, ReDim, Global or Const.
+   */
+  static final class Dim extends Statement {
+    final String kind;
+    final ImmutableList<Declarator> declarators;
+    final String comment;
+
+    Dim(String kind, List<Declarator> declarators, String comment) {
+      this.kind = kind;
+      this.declarators = ImmutableList.copyOf(declarators);
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitDim(this);
+    }
+  }
+
+  /**
+   * One variable of a Dim: name(bounds) As type = initializer.
+   */
+  static final class Declarator {
+    /** What comes out, which depends on the names declared before */
+    enum Form {
+      /** var name = initializer; // type */
+      SCALAR,
+      /** var name = new type(); for a user-defined type (or one earlier in the Dim) */
+      OBJECT,
+      /** var name = new Array(...) */
+      ARRAY,
+      /** ReDim of a name that wasn't declared as an array */
+      REDIM_DECLARATION,
+      /** ReDim of an array to more than one dimension */
+      REDIM_MULTI_DIM,
+      /** Any other ReDim; nothing comes out */
+      REDIM
+    }
+
+    final Form form;
+    final String name;
+
+    /** Array bounds, or null if not an array */
+    final Expression.Balanced bounds;
+
+    /** The upper bound of each dimension, as text; empty if not an array */
+    final ImmutableList<String> dimensions;
+
+    /** The type, or "" if none */
+    final String type;
+
+    /** Whether type is the name of a Type */
+    final boolean isTypeName;
+
+    /** Initializer, or EMPTY if none */
+    final Expression initializer;
+
+    Declarator(Form form, String name, Expression.Balanced bounds, List<String> dimensions,
+        String type, boolean isTypeName, Expression initializer) {
+      this.form = form;
+      this.name = name;
+      this.bounds = bounds;
+      this.dimensions = ImmutableList.copyOf(dimensions);
+      this.type = type;
+      this.isTypeName = isTypeName;
+      this.initializer = initializer;
+    }
+  }
+
+  /**
+   * target = [New] value
+   */
+  static final class Assignment extends Statement {
+    final Expression target;
+
+    /** Whether target is the name of the current Function, i.e. sets the return value */
+    final boolean isReturnValue;
+
+    final boolean isNew;
+    final Expression value;
+    final String comment;
+
+    Assignment(Expression target, boolean isReturnValue, boolean isNew, Expression value,
+        String comment) {
+      this.target = target;
+      this.isReturnValue = isReturnValue;
+      this.isNew = isNew;
+      this.value = value;
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitAssignment(this);
+    }
+  }
+
+  /**
+   * A subroutine call, with or without Call.
+   */
+  static final class CallStatement extends Statement {
+    enum Form {
+      /** Call name */
+      BARE,
+      /** Call name(arguments), arguments including their parens */
+      PARENTHESIZED,
+      /** Call name arguments */
+      EXPLICIT,
+      /** name arguments */
+      IMPLICIT
+    }
+
+    final Form form;
+    final Expression name;
+    final ImmutableList<Expression> arguments;
+    final String comment;
+
+    CallStatement(Form form, Expression name, List<Expression> arguments, String comment) {
+      this.form = form;
+      this.name = name;
+      this.arguments = ImmutableList.copyOf(arguments);
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCall(this);
+    }
+  }
+
+  /**
+   * A name followed by something that is neither an assignment nor arguments; passed on
+   * as is. A name alone is taken to be a call.
+   */
+  static final class ExpressionStatement extends Statement {
+    final Expression name;
+    final Expression rest;
+    final String comment;
+
+    ExpressionStatement(Expression name, Expression rest, String comment) {
+      this.name = name;
+      this.rest = rest;
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitExpression(this);
+    }
+  }
+
+  /**
+   * A list of statements introduced by a header, e.g. a branch of an If.
+   */
+  static final class Block {
+    final Expression condition;
+    final String comment;
+    final ImmutableList<Statement> body;
+
+    Block(Expression condition, String comment, List<Statement> body) {
+      this.condition = condition;
+      this.comment = comment;
+      this.body = ImmutableList.copyOf(body);
+    }
+  }
+
+  /**
+   * If ... [ElseIf ...] [Else ...] End If
+   */
+  static final class If extends Statement {
+    /** If and ElseIf branches */
+    final ImmutableList<Block> branches;
+
+    /** The Else branch without a condition, or null */
+    final Block otherwise;
+    final String endComment;
+
+    If(List<Block> branches, Block otherwise, String endComment) {
+      this.branches = ImmutableList.copyOf(branches);
+      this.otherwise = otherwise;
+      this.endComment = endComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIf(this);
+    }
+  }
+
+  /**
+   * For var = start To stop [Step step] ... Next
+   */
+  static final class For extends Statement {
+    final String variable;
+    final Expression start;
+    final Expression stop;
+
+    /** Whether it says To, rather than something else */
+    final boolean isTo;
+
+    /** The Step, or null */
+    final Expression step;
+
+    /** Whether the Step starts with - */
+    final boolean isNegativeStep;
+
+    final String comment;
+    final ImmutableList<Statement> body;
+    final String endComment;
+
+    For(String variable, Expression start, Expression stop, boolean isTo, Expression step,
+        boolean isNegativeStep, String comment, List<Statement> body, String endComment) {
+      this.variable = variable;
+      this.start = start;
+      this.stop = stop;
+      this.isTo = isTo;
+      this.step = step;
+      this.isNegativeStep = isNegativeStep;
+      this.comment = comment;
+      this.body = ImmutableList.copyOf(body);
+      this.endComment = endComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitFor(this);
+    }
+  }
+
+  /**
+   * For Each var In collection ... Next
+   */
+  static final class ForEach extends Statement {
+    final String variable;
+    final Expression collection;
+    final String comment;
+    final ImmutableList<Statement> body;
+    final String endComment;
+
+    ForEach(String variable, Expression collection, String comment, List<Statement> body,
+        String endComment) {
+      this.variable = variable;
+      this.collection = collection;
+      this.comment = comment;
+      this.body = ImmutableList.copyOf(body);
+      this.endComment = endComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForEach(this);
+    }
+  }
+
+  /**
+   * Do [While/Until e] ... Loop [While/Until e]
+   */
+  static final class Do extends Statement {
+    enum Test {
+      NONE, WHILE, UNTIL
+    }
+
+    final Test test;
+    final Expression condition;
+    final String comment;
+    final ImmutableList<Statement> body;
+    final Test loopTest;
+    final Expression loopCondition;
+    final String loopComment;
+
+    Do(Test test, Expression condition, String comment, List<Statement> body, Test loopTest,
+        Expression loopCondition, String loopComment) {
+      this.test = test;
+      this.condition = condition;
+      this.comment = comment;
+      this.body = ImmutableList.copyOf(body);
+      this.loopTest = loopTest;
+      this.loopCondition = loopCondition;
+      this.loopComment = loopComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitDo(this);
+    }
+  }
+
+  /**
+   * While e ... End While/Wend. The header takes the comment of the line after it.
+   */
+  static final class While extends Statement {
+    final Block loop;
+    final String endComment;
+
+    While(Block loop, String endComment) {
+      this.loop = loop;
+      this.endComment = endComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWhile(this);
+    }
+  }
+
+  /**
+   * A parameter of a Sub or Function.
+   */
+  static final class Parameter {
+    /** ByRef or Optional, as a JS comment */
+    final String prefix;
+    final String name;
+
+    /** Default value, or null */
+    final Expression defaultValue;
+
+    /** Whether a , follows */
+    final boolean isSeparated;
+
+    Parameter(String prefix, String name, Expression defaultValue, boolean isSeparated) {
+      this.prefix = prefix;
+      this.name = name;
+      this.defaultValue = defaultValue;
+      this.isSeparated = isSeparated;
+    }
+  }
+
+  /**
+   * Sub or Function ... End Sub/Function.
+   */
+  static final class Procedure extends Statement {
+    final boolean isFunction;
+    final String name;
+    final ImmutableList<Parameter> parameters;
+
+    /** What follows the parameters of a Function, e.g. its type; "" for a Sub */
+    final String returnType;
+
+    final String comment;
+    final ImmutableList<Statement> body;
+    final String endComment;
+
+    Procedure(boolean isFunction, String name, List<Parameter> parameters, String returnType,
+        String comment, List<Statement> body, String endComment) {
+      this.isFunction = isFunction;
+      this.name = name;
+      this.parameters = ImmutableList.copyOf(parameters);
+      this.returnType = returnType;
+      this.comment = comment;
+      this.body = ImmutableList.copyOf(body);
+      this.endComment = endComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitProcedure(this);
+    }
+  }
+
+  /**
+   * One condition of a Case: [Is] op value, value To upper, or value. The operator is JS
+   * text, which may have blanks around it.
+   */
+  static final class CaseCondition {
+    /** The relational operator, "==" for a plain value, or null for a range */
+    final String operator;
+    final Expression value;
+
+    /** Upper end of a range, or null */
+    final Expression upper;
+
+    /** Whether a , follows */
+    final boolean isSeparated;
+
+    CaseCondition(String operator, Expression value, Expression upper, boolean isSeparated) {
+      this.operator = operator;
+      this.value = value;
+      this.upper = upper;
+      this.isSeparated = isSeparated;
+    }
+  }
+
+  /**
+   * Case conditions, or Case Else if conditions is null.
+   */
+  static final class Case {
+    final ImmutableList<CaseCondition> conditions;
+    final String comment;
+    final ImmutableList<Statement> body;
+
+    Case(List<CaseCondition> conditions, String comment, List<Statement> body) {
+      this.conditions = conditions == null ? null : ImmutableList.copyOf(conditions);
+      this.comment = comment;
+      this.body = ImmutableList.copyOf(body);
+    }
+  }
+
+  /**
+   * Select Case selector ... End Select. The Select line comes out as an empty line,
+   * followed by any empty lines before the first Case.
+   */
+  static final class Select extends Statement {
+    final Expression selector;
+    final ImmutableList<Statement> blanks;
+    final ImmutableList<Case> cases;
+    final String endComment;
+
+    Select(Expression selector, List<Statement> blanks, List<Case> cases, String endComment) {
+      this.selector = selector;
+      this.blanks = ImmutableList.copyOf(blanks);
+      this.cases = ImmutableList.copyOf(cases);
+      this.endComment = endComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSelect(this);
+    }
+  }
+
+  /**
+   * Exit For/While/Do, Exit Sub, Exit Function, or anything else after Exit.
+   */
+  static final class Exit extends Statement {
+    enum Kind {
+      LOOP, SUB, FUNCTION, OTHER
+    }
+
+    final Kind kind;
+
+    /** The function name for FUNCTION, the rest of the line for OTHER */
+    final Expression target;
+
+    final String comment;
+
+    Exit(Kind kind, Expression target, String comment) {
+      this.kind = kind;
+      this.target = target;
+      this.comment = comment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitExit(this);
+    }
+  }
+
+  /**
+   * With name ... End With. The body isn't indented.
+   */
+  static final class With extends Statement {
+    final String name;
+    final String comment;
+    final ImmutableList<Statement> body;
+
+    With(String name, String comment, List<Statement> body) {
+      this.name = name;
+      this.comment = comment;
+      this.body = ImmutableList.copyOf(body);
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWith(this);
+    }
+  }
+
+  /**
+   * A member of a Type, or a line with only a comment if name is "".
+   */
+  static final class TypeMember {
+    final String name;
+    final String type;
+
+    /** Whether type is the name of a Type */
+    final boolean isTypeName;
+
+    /** Whether this or an earlier member had a user-defined type */
+    final boolean isUserDefinedType;
+
+    /** The rest of the line, for a line without a member */
+    final Expression rest;
+
+    final String comment;
+
+    TypeMember(String name, String type, boolean isTypeName, boolean isUserDefinedType,
+        Expression rest, String comment) {
+      this.name = name;
+      this.type = type;
+      this.isTypeName = isTypeName;
+      this.isUserDefinedType = isUserDefinedType;
+      this.rest = rest;
+      this.comment = comment;
+    }
+  }
+
+  /**
+   * Type name ... End Type. The header takes the comment of the line after it.
+   */
+  static final class TypeDeclaration extends Statement {
+    final String name;
+    final String comment;
+    final ImmutableList<TypeMember> members;
+
+    TypeDeclaration(String name, String comment, List<TypeMember> members) {
+      this.name = name;
+      this.comment = comment;
+      this.members = ImmutableList.copyOf(members);
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitType(this);
+    }
+  }
+
+  /**
+   * On Error Resume ..., On Error GoTo 0, or On Error GoTo label, which becomes a try up to
+   * the label and a catch from there to the end of the procedure.
+   */
+  static final class OnError extends Statement {
+    enum Kind {
+      /** On Error followed by neither Resume nor GoTo; nothing comes out */
+      NONE, RESUME, GOTO_ZERO, GOTO
+    }
+
+    final Kind kind;
+
+    /** The rest of the line for RESUME, the label for GOTO, else EMPTY */
+    final Expression target;
+
+    final String comment;
+    final ImmutableList<Statement> tryBody;
+    final String catchComment;
+    final ImmutableList<Statement> catchBody;
+    final String endComment;
+
+    OnError(Kind kind, Expression target, String comment, List<Statement> tryBody,
+        String catchComment, List<Statement> catchBody, String endComment) {
+      this.kind = kind;
+      this.target = target;
+      this.comment = comment;
+      this.tryBody = ImmutableList.copyOf(tryBody);
+      this.catchComment = catchComment;
+      this.catchBody = ImmutableList.copyOf(catchBody);
+      this.endComment = endComment;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitOnError(this);
+    }
+  }
+
+  /**
+   * Lines skipped after an error, when conversion carries on past errors; they are
+   * written out as comments under the error.
+   */
+  static final class Skipped extends Statement {
+    final String message;
+    final ImmutableList<String> lines;
+
+    Skipped(String message, List<String> lines) {
+      this.message = message;
+      this.lines = ImmutableList.copyOf(lines);
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSkipped(this);
+    }
+  }
+}
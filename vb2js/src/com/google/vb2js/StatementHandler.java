@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+/**
+ * Converts a kind of statement that the converter doesn't handle itself, such as Open or
+ * Print # file I/O, which it otherwise leaves commented out as UNTOUCHED. A handler is
+ * registered for the first word of the statements it takes, with
+ * VbaJsConverter.registerStatementHandler().
+ */
+public interface StatementHandler {
+
+  /**
+   * Returns the JavaScript for statement, or null to leave it to the converter. The
+   * statement is the whole VB line from its first word on, without its comment, which is
+   * added to the first line returned. The result may be several lines, separated by \n;
+   * each is indented to the depth of the statement.
+   *
+   * A ParseException thrown here is reported like any other error in the line.
+   */
+  String convert(String statement);
+}
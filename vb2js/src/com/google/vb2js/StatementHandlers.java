@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * The StatementHandlers registered with VbaJsConverter, by the first word of the statements
+ * they take, in lower case since VB ignores case. Registering copies the table, so each
+ * conversion can take the table as it is when it starts and keep it throughout.
+ */
+final class StatementHandlers {
+
+  private static volatile ImmutableMap<String, StatementHandler> handlers = ImmutableMap.of();
+
+  private StatementHandlers() {
+  }
+
+  static synchronized void register(String keyword, StatementHandler handler) {
+    Map<String, StatementHandler> copy = Maps.newHashMap(handlers);
+    copy.put(Ascii.toLowerCase(keyword), handler);
+    handlers = ImmutableMap.copyOf(copy);
+  }
+
+  static synchronized void unregister(String keyword) {
+    Map<String, StatementHandler> copy = Maps.newHashMap(handlers);
+    copy.remove(Ascii.toLowerCase(keyword));
+    handlers = ImmutableMap.copyOf(copy);
+  }
+
+  /**
+   * Returns the handlers registered now, keyed by lower-case first word.
+   */
+  static ImmutableMap<String, StatementHandler> get() {
+    return handlers;
+  }
+}
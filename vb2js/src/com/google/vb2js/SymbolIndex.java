@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The arrays and Types that the modules of a VB project declare for each other to use. A
+ * module only knows the names it declares itself, so an array declared Public in another
+ * module comes out as a call, x(i) instead of x[i], and a variable of a Type declared there
+ * gets no new. Converting with a ConverterEngine made with an index of the whole project
+ * fixes that.
+ *
+ * scan() only parses the statements outside Subs and Functions, which is a small part of
+ * most modules; errors in them are passed over. An index is immutable, so one engine
+ * holding it can convert the modules of the project on any number of threads.
+ */
+public final class SymbolIndex {
+
+  /** No names at all */
+  public static final SymbolIndex EMPTY =
+      new SymbolIndex(ImmutableSet.<String>of(), ImmutableSet.<String>of());
+
+  /** A declaration that other modules see: Private and Dim ones are the module's own */
+  private static final Pattern PUBLIC_PATTERN = Pattern.compile("(Public|Global)\\s.*");
+
+  private final ImmutableSet<String> arrayNames;
+  private final ImmutableSet<String> typeNames;
+
+  private SymbolIndex(ImmutableSet<String> arrayNames, ImmutableSet<String> typeNames) {
+    this.arrayNames = arrayNames;
+    this.typeNames = typeNames;
+  }
+
+  /**
+   * Returns the arrays declared Public (or Global) and the Types declared in one module.
+   */
+  public static SymbolIndex scan(Iterable<String> vbaCode) {
+    ImmutableSet.Builder<String> arrayNames = ImmutableSet.builder();
+    ImmutableSet.Builder<String> typeNames = ImmutableSet.builder();
+    TranslationUnit unit = new TranslationUnit();
+    unit.cleanup(vbaCode);
+    Parser parser = new Parser(unit, Lists.<Diagnostic>newArrayList());
+    parser.startModule();
+    while (parser.hasNextStatement()) {
+      if (parser.skipProcedure()) {
+        continue;
+      }
+      boolean isPublic = PUBLIC_PATTERN.matcher(unit.getLine(unit.getCurrentLineNumber()))
+          .matches();
+      Statement statement = parser.parseModuleStatement();
+      if (statement instanceof Statement.TypeDeclaration) {
+        typeNames.add(((Statement.TypeDeclaration) statement).name);
+      } else if (isPublic && statement instanceof Statement.Dim) {
+        for (Statement.Declarator declarator : ((Statement.Dim) statement).declarators) {
+          if (declarator.form == Statement.Declarator.Form.ARRAY
+              || declarator.form == Statement.Declarator.Form.REDIM_DECLARATION) {
+            arrayNames.add(declarator.name);
+          }
+        }
+      }
+    }
+    return new SymbolIndex(arrayNames.build(), typeNames.build());
+  }
+
+  /**
+   * Returns an index of the names in all of indexes, those of the modules of a project.
+   */
+  public static SymbolIndex union(Iterable<SymbolIndex> indexes) {
+    ImmutableSet.Builder<String> arrayNames = ImmutableSet.builder();
+    ImmutableSet.Builder<String> typeNames = ImmutableSet.builder();
+    for (SymbolIndex index : indexes) {
+      arrayNames.addAll(index.arrayNames);
+      typeNames.addAll(index.typeNames);
+    }
+    return new SymbolIndex(arrayNames.build(), typeNames.build());
+  }
+
+  /**
+   * Returns an index of the names declared in all of modules, the modules of a project.
+   */
+  public static SymbolIndex scanAll(Iterable<? extends Iterable<String>> modules) {
+    List<SymbolIndex> indexes = Lists.newArrayList();
+    for (Iterable<String> module : modules) {
+      indexes.add(scan(module));
+    }
+    return union(indexes);
+  }
+
+  public ImmutableSet<String> getArrayNames() {
+    return arrayNames;
+  }
+
+  public ImmutableSet<String> getTypeNames() {
+    return typeNames;
+  }
+
+  boolean isArrayName(String name) {
+    return arrayNames.contains(name);
+  }
+
+  boolean isTypeName(String name) {
+    return typeNames.contains(name);
+  }
+
+  @Override
+  public String toString() {
+    return arrayNames.size() + " arrays, " + typeNames.size() + " Types";
+  }
+}
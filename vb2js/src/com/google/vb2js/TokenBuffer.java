@@ -0,0 +1,198 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import java.util.Arrays;
+
+/**
+ * The tokens of one line, in the order they were lexed. Each token remembers the position
+ * it was lexed from, so that peek() and getToken() can find it again without re-lexing.
+ * Positions only move forward within a line, so lookups start at the last token found.
+ * Tokens are kept as Lexer kind codes, Keywords IDs and offsets into the line; the text
+ * of a token is only made into a String when somebody asks for it. A buffer kept in a
+ * LexedLine is rewound and read again each time the line is converted.
+ */
+final class TokenBuffer {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The line the offsets refer to */
+  private String line;
+
+  /** Position in the line that the token was lexed from (may be before leading blanks) */
+  private int[] from;
+
+  /** Position where the token starts */
+  private int[] start;
+
+  /** Position just after the token */
+  private int[] end;
+
+  private int[] kinds;
+
+  private int[] keywords;
+
+  /** Token text after clean up, made on demand */
+  private String[] texts;
+
+  private int size;
+
+  /** Index of the last token found */
+  private int cursor;
+
+  TokenBuffer() {
+    this.line = "";
+    this.from = new int[INITIAL_CAPACITY];
+    this.start = new int[INITIAL_CAPACITY];
+    this.end = new int[INITIAL_CAPACITY];
+    this.kinds = new int[INITIAL_CAPACITY];
+    this.keywords = new int[INITIAL_CAPACITY];
+    this.texts = new String[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Forgets all tokens, when a new line is parsed.
+   */
+  void reset(String line) {
+    Arrays.fill(texts, 0, size, null);
+    this.line = line;
+    size = 0;
+    cursor = 0;
+  }
+
+  /**
+   * Starts looking up tokens from the beginning of the line again, keeping those lexed.
+   */
+  void rewind() {
+    cursor = 0;
+  }
+
+  /**
+   * Returns the index of the token lexed at position, or -1 if there is none yet.
+   * Lexing from the start of a token gives that token again, unless the token was found
+   * by skipping a Private/Public/... and is preceded by blanks; trimming those would move
+   * on to the next token.
+   */
+  int find(int position) {
+    for (int i = cursor; i < size; ++i) {
+      if (from[i] == position
+          || (start[i] == position && (position >= line.length() || line.charAt(position) > ' '))) {
+        cursor = i;
+        return i;
+      }
+      if (from[i] > position) {
+        break;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds a token and returns its index. Tokens are kept in order of the position they were
+   * lexed from; that is the order they are lexed in, unless the line was rewound.
+   */
+  int add(int tokenFrom, int tokenStart, int tokenEnd, int kind, int keyword) {
+    if (size == from.length) {
+      grow();
+    }
+    int index = size;
+    while (index > 0 && from[index - 1] > tokenFrom) {
+      --index;
+    }
+    if (index < size) {
+      int moved = size - index;
+      System.arraycopy(from, index, from, index + 1, moved);
+      System.arraycopy(start, index, start, index + 1, moved);
+      System.arraycopy(end, index, end, index + 1, moved);
+      System.arraycopy(kinds, index, kinds, index + 1, moved);
+      System.arraycopy(keywords, index, keywords, index + 1, moved);
+      System.arraycopy(texts, index, texts, index + 1, moved);
+    }
+    from[index] = tokenFrom;
+    start[index] = tokenStart;
+    end[index] = tokenEnd;
+    kinds[index] = kind;
+    keywords[index] = keyword;
+    texts[index] = null;
+    cursor = index;
+    ++size;
+    return index;
+  }
+
+  int getStart(int index) {
+    return start[index];
+  }
+
+  int getEnd(int index) {
+    return end[index];
+  }
+
+  int getKind(int index) {
+    return kinds[index];
+  }
+
+  int getKeyword(int index) {
+    return keywords[index];
+  }
+
+  /**
+   * Returns the token text after clean up, as returned by Line.getCurrentToken().
+   */
+  String getText(int index) {
+    if (texts[index] == null) {
+      texts[index] = makeText(index);
+    }
+    return texts[index];
+  }
+
+  /**
+   * Returns the token with keywords canonicalized, as returned by Line.getToken().
+   */
+  String getValue(int index) {
+    return keywords[index] == Keywords.NONE ? getText(index) : Keywords.getName(keywords[index]);
+  }
+
+  private String makeText(int index) {
+    int tokenStart = start[index];
+    int tokenEnd = end[index];
+    switch (kinds[index]) {
+      case Lexer.END:
+        return "";
+      case Lexer.DATE: // replace # by "
+        return "\"" + line.substring(tokenStart + 1, tokenEnd - 1) + "\"";
+      case Lexer.HEX:
+        return "0x" + line.substring(tokenStart + 2, tokenEnd);
+      case Lexer.NUM: { // get rid of vb type indicator
+        char last = line.charAt(tokenEnd - 1);
+        return line.substring(tokenStart, (last == '&' || last == '#') ? tokenEnd - 1 : tokenEnd);
+      }
+      default:
+        if (tokenEnd - tokenStart == 1 && line.charAt(tokenStart) == '!') { // maybe too exuberant?
+          return ".";
+        }
+        return line.substring(tokenStart, tokenEnd);
+    }
+  }
+
+  private void grow() {
+    int capacity = 2 * from.length;
+    from = Arrays.copyOf(from, capacity);
+    start = Arrays.copyOf(start, capacity);
+    end = Arrays.copyOf(end, capacity);
+    kinds = Arrays.copyOf(kinds, capacity);
+    keywords = Arrays.copyOf(keywords, capacity);
+    texts = Arrays.copyOf(texts, capacity);
+  }
+}
@@ -16,12 +16,18 @@
 
 package com.google.vb2js;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -32,22 +38,62 @@ import java.util.regex.Pattern;
  */
 final class TranslationUnit {
 
-  private static final Pattern CONTINUATION_PATTERN = Pattern.compile("(.*)_$");
+  /** Sizes text[] and lineOffsets[] start at, and the most reset() keeps of them */
+  private static final int INITIAL_TEXT = 1024;
+  private static final int INITIAL_LINES = 16;
+  private static final int MAX_KEPT_TEXT = 1 << 16;
+  private static final int MAX_KEPT_LINES = 1 << 12;
+
+  /** Pieces of a one-line If, for rewriteOneLineIf() */
+  private static final Pattern THEN_ON_PATTERN = Pattern.compile("(?i)Then .*");
+  private static final Pattern UP_TO_THEN_PATTERN = Pattern.compile("(?i).*Then ");
+  private static final Pattern ELSE_ON_PATTERN = Pattern.compile("(?i)Else .*");
+  private static final Pattern HAS_ELSE_PATTERN = Pattern.compile("(?i).*Else .+");
+  private static final Pattern UP_TO_ELSE_PATTERN = Pattern.compile("(?i).*Else ");
 
   /** Current line, in a Line object */
   private final Line currentLine;
 
   private final GlobalState globalState;
 
-  /** All input lines as is, no \n. Fixed up in convert() */
-  private final List<String> lines;
+  /** Translations of lines seen before, kept from one file to the next */
+  private final LineMemo lineMemo;
+
+  /**
+   * Input lines, cleaned up (see cleanup()) and trimmed, as far as they have been read, one
+   * after another in text[0] to text[textLength - 1]. When streaming, only those from
+   * firstLine on. Lines are only added at the end, and text[] is copied rather than changed
+   * when it grows or release() drops lines, so that the view of the current line that Line
+   * holds stays good.
+   */
+  private char[] text;
+  private int textLength;
+
+  /** Line firstLine + i is text[lineOffsets[i]] up to (not including) text[lineOffsets[i + 1]] */
+  private int[] lineOffsets;
+  private int lineCount;
+
+  /** Number of the first line in lineOffsets[] */
+  private int firstLine;
+
+  /** For each line in lineOffsets[], the line (from 0) of the file as given that it starts on */
+  private int[] physicalLineNumbers;
+
+  /** Lines of the file as given still to be read, or null once all are read */
+  private Iterator<String> physicalLines;
+
+  /** Number of those read so far */
+  private int physicalLineCount;
+
+  /** Lines come from stream(), and can be dropped by release() */
+  private boolean isStreaming;
+
+  /** The same lines already parsed, if they came from an IncrementalConverter, else null */
+  private List<LexedLine> lexedLines;
 
   /** Current line number. Advance happens first, so start at -1 */
   private int currentLineNumber;
 
-  /** Depth of nested constructs */
-  private int depth;
-
   /** Name of function currently being translated */
   private String functionName;
 
@@ -61,45 +107,259 @@ final class TranslationUnit {
    */
   private final Set<String> typeNames;
 
+  /** Type names declared in other modules of the project */
+  private final SymbolIndex symbols;
+
   TranslationUnit() {
-    this.globalState = new GlobalState();
+    this(SymbolIndex.EMPTY);
+  }
+
+  TranslationUnit(SymbolIndex symbols) {
+    this.symbols = symbols;
+    this.globalState = new GlobalState(symbols);
     this.currentLine = new Line(globalState);
+    this.lineMemo = new LineMemo(globalState);
     this.currentLineNumber = -1;
-    this.lines = Lists.newArrayList();
+    this.text = new char[INITIAL_TEXT];
+    this.lineOffsets = new int[INITIAL_LINES];
+    this.physicalLineNumbers = new int[INITIAL_LINES];
 
-    this.depth = 0;
     this.functionName = "";
     this.subNestingValue = 0;
 
     this.typeNames = Sets.newHashSet();
   }
 
+  /**
+   * Makes the unit as good as new, to take another file. Buffers that have grown are kept
+   * unless they grew large.
+   */
+  void reset() {
+    if (text.length > MAX_KEPT_TEXT) {
+      text = new char[INITIAL_TEXT];
+    }
+    if (lineOffsets.length > MAX_KEPT_LINES) {
+      lineOffsets = new int[INITIAL_LINES];
+      physicalLineNumbers = new int[INITIAL_LINES];
+    }
+    textLength = 0;
+    lineOffsets[0] = 0;
+    lineCount = 0;
+    firstLine = 0;
+    physicalLines = null;
+    physicalLineCount = 0;
+    isStreaming = false;
+    lexedLines = null;
+    currentLineNumber = -1;
+    functionName = "";
+    subNestingValue = 0;
+    typeNames.clear();
+    globalState.reset();
+    currentLine.reset();
+  }
+
+  /**
+   * Takes the lines of a VB file. They are cleaned up in a single pass as advance() reaches
+   * them: continuation lines are merged into the line they continue, and a one-line If is
+   * rewritten as a block If. Null lines are left out.
+   */
   void cleanup(Iterable<String> vba) {
-    for (String line : vba) {
-      if (line != null) {
-        lines.add(line.trim());
+    read(Iterators.filter(vba.iterator(), Predicates.notNull()));
+  }
+
+  /**
+   * Takes lines from firstLine on of a longer VB file, and cleans them up as cleanup() does.
+   * Errors give line numbers in the whole file.
+   */
+  void cleanup(Iterable<String> vba, int firstLine) {
+    cleanup(vba);
+    physicalLineCount = firstLine;
+  }
+
+  /**
+   * Takes the lines of a VB file as cleanup() does, but also lets release() drop the lines
+   * already parsed, so that only the current statement is held.
+   */
+  void stream(Iterator<String> vba) {
+    isStreaming = true;
+    read(vba);
+  }
+
+  private void read(Iterator<String> vba) {
+    physicalLines = vba;
+  }
+
+  /**
+   * Reads the next line into text[], as cleanup() describes, and parses it. The parse
+   * also tells whether the line is a one-line If, which is then parsed again as the first
+   * line of the block. A line in the LineMemo is known not to be one, and is not lexed.
+   */
+  private void readLine() {
+    int physicalLineNumber = physicalLineCount;
+    if (!physicalLines.hasNext()) {
+      physicalLines = null;
+      addLine(ConverterUtil.EOF, physicalLineNumber);
+      currentLine.parseLine(ConverterUtil.EOF);
+      return;
+    }
+    int start = textLength;
+    appendTrimmed(physicalLines.next());
+    while (textLength > start && text[textLength - 1] == '_' && physicalLines.hasNext()) {
+      --textLength;
+      appendTrimmed(physicalLines.next());
+    }
+    endLine(physicalLineNumber);
+    currentLine.parseLine(getText(lineCount - 1));
+    if (!lineMemo.contains(currentLine.getConverted()) && currentLine.isOneLineIf()) {
+      // Nothing holds the line once it is parsed again, so its text can be written over.
+      List<String> block = rewriteOneLineIf(getLine(firstLine + lineCount - 1));
+      textLength = start;
+      --lineCount;
+      for (String blockLine : block) {
+        addLine(blockLine, physicalLineNumber);
       }
+      currentLine.parseLine(getText(lineCount - block.size()));
     }
+  }
 
-    // Merge continuation lines (ending with _) into one long one
-    for (int i = lines.size() - 1; i >= 0; --i) {
-      String line = lines.get(i);
-      Matcher continuationMatcher = CONTINUATION_PATTERN.matcher(line);
-      if (continuationMatcher.matches()) {
-        line = continuationMatcher.group(1) + lines.get(i + 1);
-        lines.set(i, line);
-        lines.remove(i + 1);
-      }
+  /**
+   * Adds the next line of the file as given to text[], trimmed.
+   */
+  private void appendTrimmed(String line) {
+    ++physicalLineCount;
+    int start = 0;
+    int end = line.length();
+    while (start < end && line.charAt(start) <= ' ') {
+      ++start;
+    }
+    while (end > start && line.charAt(end - 1) <= ' ') {
+      --end;
+    }
+    ensureText(end - start);
+    line.getChars(start, end, text, textLength);
+    textLength += end - start;
+  }
+
+  private void addLine(String line, int physicalLineNumber) {
+    ensureText(line.length());
+    line.getChars(0, line.length(), text, textLength);
+    textLength += line.length();
+    endLine(physicalLineNumber);
+  }
+
+  private void ensureText(int length) {
+    if (textLength + length > text.length) {
+      text = Arrays.copyOf(text, Math.max(2 * text.length, textLength + length));
     }
+  }
 
-    // Convert 1-line If's into multi-line
-    for (int i = lines.size() - 1; i >= 0; --i) {
-      if (ConverterUtil.isOneLineIf(lines.get(i))) {
-        rewriteOneLineIf(i);
+  /**
+   * Ends the line being added to text[] at textLength.
+   */
+  private void endLine(int physicalLineNumber) {
+    if (lineCount + 1 == lineOffsets.length) {
+      lineOffsets = Arrays.copyOf(lineOffsets, 2 * lineOffsets.length);
+      physicalLineNumbers = Arrays.copyOf(physicalLineNumbers, lineOffsets.length);
+    }
+    physicalLineNumbers[lineCount] = physicalLineNumber;
+    lineOffsets[++lineCount] = textLength;
+  }
+
+  /**
+   * Returns line firstLine + index as a view of text[], without copying it.
+   */
+  private CharSequence getText(int index) {
+    int start = lineOffsets[index];
+    return CharBuffer.wrap(text, start, lineOffsets[index + 1] - start);
+  }
+
+  /**
+   * Returns the next line from vba, with the continuation lines after it merged in, the way
+   * cleanup() merges them. A line continued past the end just ends there.
+   */
+  static String mergeContinuations(Iterator<String> vba) {
+    String line = vba.next();
+    if (!isContinued(line)) {
+      return line;
+    }
+    StringBuilder merged = new StringBuilder();
+    while (isContinued(line) && vba.hasNext()) {
+      merged.append(line, 0, line.length() - 1);
+      line = vba.next();
+    }
+    return merged.append(line).toString();
+  }
+
+  /**
+   * Drops the lines before the current one when streaming. Those must not be needed again:
+   * this is for after a statement at the top level. The text of the lines left is moved to
+   * a new text[] once what is dropped is at least half of it.
+   */
+  void release() {
+    if (!isStreaming) {
+      return;
+    }
+    int count = Math.min(currentLineNumber - firstLine, lineCount);
+    lineCount -= count;
+    firstLine += count;
+    System.arraycopy(lineOffsets, count, lineOffsets, 0, lineCount + 1);
+    System.arraycopy(physicalLineNumbers, count, physicalLineNumbers, 0, lineCount);
+    int start = lineOffsets[0];
+    if (2 * start >= text.length) {
+      text = Arrays.copyOfRange(text, start, start + text.length);
+      textLength -= start;
+      for (int i = 0; i <= lineCount; ++i) {
+        lineOffsets[i] -= start;
       }
     }
+  }
+
+  /**
+   * Takes lines that were cleaned up and parsed ahead of time, instead of cleanup(), as the
+   * lines from firstLine on of a longer file. Lines with a null entry in lexed are parsed
+   * when they are reached, like any other line. physicalLineNumbers has, from 0, the line of
+   * the file as given where each cleaned line starts, and then the line count of the file
+   * for the end, so that errors give the line numbers cleanup() would.
+   */
+  void setLines(List<String> cleaned, List<LexedLine> lexed, int firstLine,
+      int[] physicalLineNumbers) {
+    Preconditions.checkArgument(physicalLineNumbers.length > cleaned.size());
+    this.firstLine = firstLine;
+    this.currentLineNumber = firstLine - 1;
+    for (String line : cleaned) {
+      addLine(line, physicalLineNumbers[lineCount]);
+    }
+    addLine(ConverterUtil.EOF, physicalLineNumbers[lineCount]);
+    lexedLines = lexed;
+  }
+
+  /**
+   * Goes back to before the first line, to parse the lines read so far again.
+   */
+  void rewind() {
+    currentLineNumber = firstLine - 1;
+  }
 
-    lines.add(ConverterUtil.EOF);
+  /**
+   * Moves on to line lineNumber, passing over the lines before it without parsing them.
+   */
+  void skipTo(int lineNumber) {
+    currentLineNumber = lineNumber - 1;
+    advance();
+  }
+
+  /**
+   * Tests whether line, trimmed, is continued on the next one.
+   */
+  static boolean isContinued(String line) {
+    return line.endsWith("_");
+  }
+
+  /**
+   * Starts counting the work done from here on against budget.
+   */
+  void startBudget(Budget budget) {
+    currentLine.startBudget(budget);
   }
 
   void addGlobalName(String name) {
@@ -115,20 +375,56 @@ final class TranslationUnit {
   }
 
   boolean isTypeName(String name) {
-    return typeNames.contains(name);
+    return typeNames.contains(name) || symbols.isTypeName(name);
   }
 
   void addTypeName(String name) {
     typeNames.add(name);
   }
 
+  ImmutableSet<String> getTypeNames() {
+    return ImmutableSet.copyOf(typeNames);
+  }
+
+  ImmutableSet<String> getGlobalNames() {
+    return globalState.getGlobalNames();
+  }
+
+  /**
+   * Declares names that another unit declared at the top level, as getTypeNames() and
+   * getGlobalNames() return them.
+   */
+  void addTopLevelNames(Set<String> typeNames, Set<String> globalNames) {
+    this.typeNames.addAll(typeNames);
+    globalState.addGlobalNames(globalNames);
+  }
+
   /**
-   * Advance to the next line in lines[]
+   * Returns how many Type names and global names have been declared. Names are never taken
+   * back, so this only changes when one is added.
+   */
+  int getTopLevelNameCount() {
+    return typeNames.size() + globalState.getGlobalNameCount();
+  }
+
+  /**
+   * Advance to the next line
    */
   void advance() {
     ++currentLineNumber;
-    if (currentLineNumber < lines.size()) {
-      currentLine.parseLine(lines.get(currentLineNumber));
+    int index = currentLineNumber - firstLine;
+    if (physicalLines != null && index == lineCount) {
+      readLine();
+    } else if (index < lineCount) {
+      LexedLine lexed = null;
+      if (lexedLines != null && index < lexedLines.size()) {
+        lexed = lexedLines.get(index);
+      }
+      if (lexed != null) {
+        currentLine.load(lexed);
+      } else {
+        currentLine.parseLine(getText(index));
+      }
     }
   }
 
@@ -153,16 +449,29 @@ final class TranslationUnit {
     return currentLine;
   }
 
-  int getDepth() {
-    return depth;
+  LineMemo getLineMemo() {
+    return lineMemo;
   }
 
   String getFunctionName() {
     return functionName;
   }
 
+  /**
+   * Returns line lineNumber, cleaned up; this makes a String of it.
+   */
   String getLine(int lineNumber) {
-    return lines.get(lineNumber);
+    int index = Preconditions.checkElementIndex(lineNumber - firstLine, lineCount);
+    int start = lineOffsets[index];
+    return new String(text, start, lineOffsets[index + 1] - start);
+  }
+
+  /**
+   * Returns the number, from 1, of the line in the file as given where line lineNumber
+   * starts: before continuation lines were merged and one-line If's rewritten.
+   */
+  int getPhysicalLineNumber(int lineNumber) {
+    return physicalLineNumbers[Math.min(lineNumber - firstLine, lineCount - 1)] + 1;
   }
 
   String getCurrentLineAsString() {
@@ -173,20 +482,29 @@ final class TranslationUnit {
     return currentLineNumber;
   }
 
+  /**
+   * Returns the number of the last line read so far, which is the end of file once that is
+   * reached. A statement left open at the end of file can advance past it; the current line
+   * is still the end of file there, but it has no number of its own.
+   */
+  int getLastLineNumber() {
+    return firstLine + lineCount - 1;
+  }
+
   int getSubNestingValue() {
     return subNestingValue;
   }
 
-  String getWithName() {
-    return globalState.getWithName();
+  void setSubNestingValue(int subNestingValue) {
+    this.subNestingValue = subNestingValue;
   }
 
-  void indent() {
-    ++depth;
+  String getWithName() {
+    return globalState.getWithName();
   }
 
-  void undent() {
-    --depth;
+  int getWithDepth() {
+    return globalState.getWithDepth();
   }
 
   boolean isArrayName(String name) {
@@ -197,6 +515,10 @@ final class TranslationUnit {
     globalState.popWithName();
   }
 
+  void popWithNames(int depth) {
+    globalState.popWithNames(depth);
+  }
+
   void setFunctionName(String functionName) {
     this.functionName = functionName;
   }
@@ -205,27 +527,20 @@ final class TranslationUnit {
    * Convert If ... Then ... [Else ...] on one line into multiple lines so translateIf() can
    * handle it. Note: this needs to be case-independent if one is going down that path. Probably
    * should be done with re.I as an argument so it can be adjusted at run time rather than being
-   * wired in. (but there's no "do nothing" 3rd arg to re.sub). Not coordinated with
-   * Line.toUpperCase(), which tests whether to do conversion.
+   * wired in. (but there's no "do nothing" 3rd arg to re.sub). Only called on a line for which
+   * Line.isOneLineIf() holds, by readLine() and by IncrementalConverter, which give each line
+   * it returns the physical line number of original. Returns the lines it becomes.
   */
-  private void rewriteOneLineIf(int lineNumber) {
-    String original = lines.get(lineNumber);
-    String thenPart;
-    String elsePart;
-    int where;
-
-    lines.set(lineNumber, original.replaceFirst("(?i)Then .*", "Then")); // if part
-    thenPart = original.replaceFirst("(?i).*Then ", "");
-    thenPart = thenPart.replaceFirst("(?i)Else .*", "").trim();
-    where = lineNumber + 1;
-    lines.add(where, thenPart);
-    if (original.matches("(?i).*Else .+")) {
-      elsePart = original.replaceFirst("(?i).*Else ", "").trim();
-      where += 1;
-      lines.add(where, "Else");
-      where += 1;
-      lines.add(where, elsePart);
-    }
-    lines.add(where + 1, "End If");
+  static List<String> rewriteOneLineIf(String original) {
+    List<String> lines = Lists.newArrayListWithCapacity(5);
+    lines.add(THEN_ON_PATTERN.matcher(original).replaceFirst("Then")); // if part
+    String thenPart = UP_TO_THEN_PATTERN.matcher(original).replaceFirst("");
+    lines.add(ELSE_ON_PATTERN.matcher(thenPart).replaceFirst("").trim());
+    if (HAS_ELSE_PATTERN.matcher(original).matches()) {
+      lines.add("Else");
+      lines.add(UP_TO_ELSE_PATTERN.matcher(original).replaceFirst("").trim());
+    }
+    lines.add("End If");
+    return lines;
   }
 }
\ No newline at end of file
@@ -0,0 +1,472 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: BatchConversion.java
+ * Date and Time: Oct 18, 2026 10:12:31 AM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import com.google.vb2js.Budget;
+import com.google.vb2js.ConverterEngine;
+import com.google.vb2js.Diagnostic;
+import com.google.vb2js.SymbolIndex;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts many VB files at once, on a fork/join pool: every .bas, .cls, .frm
+ * and .vb file under the directories given, or the files named one per line
+ * in a list file. Each file's JavaScript is written, in UTF-8, next to it with
+ * the extension changed to .js, or to the same place in a mirror tree under an
+ * output directory. Errors in a file are skipped over and marked CAN'T CONVERT
+ * in its output; a file that can't be read, written or converted at all is a
+ * failure, and so is a file whose .js another file found before it already
+ * writes (Mod.bas and Mod.cls, say). A summary of the run is printed at the
+ * end.
+ *
+ * With --project the files are taken to be the modules of one VB project: the
+ * declarations in all of them are scanned first, so that an array or Type
+ * declared Public in one module is known when converting the others.
+ *
+ * With --cache the conversions are kept in a ConversionCache, and a file
+ * whose bytes were converted before, by the same converter with the same
+ * options, is written out from there instead of being converted again.
+ *
+ * @author raliclo
+ */
+final class BatchConversion {
+
+    private static final String USAGE =
+            "usage: myVB2JS --batch [--out DIR] [--list FILE] [--threads N]"
+            + " [--charset NAME] [--timeout SECONDS] [--project]"
+            + " [--cache DIR [--cache-size MB]] [DIR_OR_FILE...]";
+
+    /** Extensions of the files converted when walking a directory */
+    private static final List<String> EXTENSIONS = Arrays.asList(".bas", ".cls", ".frm", ".vb");
+
+    private static final int SLOWEST_SHOWN = 10;
+    private static final int FAILURES_SHOWN = 20;
+
+    /** A file to convert, and how converting it went */
+    private static final class Job {
+
+        private final Path source;
+        private final Path target;
+        private long bytes;
+        private long nanos;
+        private SymbolIndex symbols = SymbolIndex.EMPTY;
+        private int diagnostics;
+        private String failure;
+
+        private Job(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Converts jobs from to to (exclusive), or only scans their declarations,
+     * splitting them up among the pool
+     */
+    private final class ConvertJobs extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final boolean isScan;
+
+        private ConvertJobs(int from, int to, boolean isScan) {
+            this.from = from;
+            this.to = to;
+            this.isScan = isScan;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ConvertJobs(from, middle, isScan),
+                        new ConvertJobs(middle, to, isScan));
+            } else if (isScan) {
+                scan(jobs.get(from));
+            } else {
+                convert(jobs.get(from));
+            }
+        }
+    }
+
+    private ConverterEngine engine = new ConverterEngine();
+    private final List<Job> jobs = new ArrayList<Job>();
+
+    /** The jobs by the real path of their source, so that each file is converted once */
+    private final Map<Path, Job> jobsBySource = new HashMap<Path, Job>();
+
+    /**
+     * The jobs by where their JavaScript goes, so that two files that would
+     * write the same .js (Mod.bas and Mod.cls, say) are caught
+     */
+    private final Map<Path, Job> jobsByTarget = new HashMap<Path, Job>();
+
+    private Path outputDirectory;
+    private Path listFile;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Charset charset = Charset.defaultCharset();
+    private Budget budget = Budget.UNLIMITED.withTimeout(60, TimeUnit.SECONDS);
+    private boolean isProject;
+    private Path cacheDirectory;
+    private long cacheBytes = 1024L << 20;
+    private ConversionCache cache;
+    private final List<Path> roots = new ArrayList<Path>();
+
+    /**
+     * Runs a batch conversion with the arguments after --batch, and returns
+     * the exit status: 0 if every file was converted, 1 if some failed, 2 if
+     * the arguments are wrong.
+     */
+    static int run(String[] args, PrintStream out) {
+        BatchConversion batch = new BatchConversion();
+        try {
+            if (!batch.parseArguments(args)) {
+                System.err.println(USAGE);
+                return 2;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        try {
+            batch.findJobs();
+        } catch (IOException e) {
+            System.err.println("Can't read the list of files: " + e);
+            return 2;
+        }
+        return batch.convertAll(out);
+    }
+
+    private boolean parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                roots.add(Paths.get(arg));
+            } else if (arg.equals("--project")) {
+                isProject = true;
+            } else if (i + 1 == args.length) {
+                return false;
+            } else if (arg.equals("--out")) {
+                outputDirectory = Paths.get(args[++i]);
+            } else if (arg.equals("--list")) {
+                listFile = Paths.get(args[++i]);
+            } else if (arg.equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+                if (threads < 1) {
+                    return false;
+                }
+            } else if (arg.equals("--cache")) {
+                cacheDirectory = Paths.get(args[++i]);
+            } else if (arg.equals("--cache-size")) {
+                cacheBytes = Long.parseLong(args[++i]) << 20;
+                if (cacheBytes <= 0) {
+                    return false;
+                }
+            } else if (arg.equals("--charset")) {
+                charset = Charset.forName(args[++i]);
+            } else if (arg.equals("--timeout")) {
+                budget = Budget.UNLIMITED.withTimeout(Long.parseLong(args[++i]), TimeUnit.SECONDS);
+            } else {
+                return false;
+            }
+        }
+        return listFile != null || !roots.isEmpty();
+    }
+
+    private void findJobs() throws IOException {
+        if (listFile != null) {
+            Path workingDirectory = Paths.get("").toAbsolutePath();
+            for (String name : Files.readAllLines(listFile, charset)) {
+                if (!name.trim().isEmpty()) {
+                    Path source = Paths.get(name.trim()).toAbsolutePath().normalize();
+                    addJob(source, source.startsWith(workingDirectory)
+                            ? workingDirectory.relativize(source)
+                            : source.getRoot().relativize(source));
+                }
+            }
+        }
+        for (Path root : roots) {
+            final Path start = root.toAbsolutePath().normalize();
+            final Path base = Files.isDirectory(start) ? start : start.getParent();
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (file.equals(start) || isVbFile(file)) {
+                        addJob(file, base.relativize(file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    addJob(file, base.relativize(file)).failure = e.toString();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    private static boolean isVbFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && EXTENSIONS.contains(name.substring(dot));
+    }
+
+    /**
+     * Adds the job for source, whose JavaScript goes next to it, or at
+     * relative under the output directory. A file named more than once (in
+     * the list and under a directory, say, or through a link) gets the job
+     * it was first given, which is returned. A file whose JavaScript would go
+     * where another's already does fails, rather than write over it.
+     */
+    private Job addJob(Path source, Path relative) {
+        Path realSource;
+        try {
+            realSource = source.toRealPath();
+        } catch (IOException e) {
+            realSource = source.toAbsolutePath().normalize(); // fails when read
+        }
+        Job added = jobsBySource.get(realSource);
+        if (added != null) {
+            return added;
+        }
+        Path target = outputDirectory == null ? source : outputDirectory.resolve(relative);
+        String name = target.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0 && !name.substring(dot).equalsIgnoreCase(".js")) {
+            name = name.substring(0, dot);
+        }
+        Job job = new Job(source, target.resolveSibling(name + ".js"));
+        jobs.add(job);
+        jobsBySource.put(realSource, job);
+        Path realTarget = job.target.toAbsolutePath().normalize();
+        Job first = jobsByTarget.get(realTarget);
+        if (first != null) {
+            job.failure = "output collides with " + first.source + ": " + job.target;
+        } else {
+            jobsByTarget.put(realTarget, job);
+        }
+        return job;
+    }
+
+    private int convertAll(PrintStream out) {
+        long start = System.nanoTime();
+        if (!jobs.isEmpty()) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                String options = "charset=" + charset.name();
+                if (isProject) {
+                    pool.invoke(new ConvertJobs(0, jobs.size(), true));
+                    List<SymbolIndex> indexes = new ArrayList<SymbolIndex>();
+                    for (Job job : jobs) {
+                        indexes.add(job.symbols);
+                    }
+                    SymbolIndex symbols = SymbolIndex.union(indexes);
+                    engine = new ConverterEngine(symbols);
+                    out.printf("Scanned the declarations in %.2f s: %s%n",
+                            (System.nanoTime() - start) / 1e9, symbols);
+                    options += "\narrays=" + new TreeSet<String>(symbols.getArrayNames())
+                            + "\ntypes=" + new TreeSet<String>(symbols.getTypeNames());
+                }
+                if (cacheDirectory != null) {
+                    try {
+                        cache = new ConversionCache(cacheDirectory, cacheBytes, options);
+                    } catch (IOException e) {
+                        System.err.println("Converting without the cache, which can't be used: "
+                                + e);
+                    }
+                }
+                pool.invoke(new ConvertJobs(0, jobs.size(), false));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (cache != null) {
+            try {
+                int evicted = cache.close();
+                out.printf("Cache: %d hits, %d misses, %.1f MB written, %d entries evicted%n",
+                        cache.getHits(), cache.getMisses(), cache.getBytesWritten() / 1e6,
+                        evicted);
+            } catch (IOException e) {
+                System.err.println("Can't trim the cache: " + e);
+            }
+        }
+
+        long bytes = 0;
+        int withErrors = 0;
+        int errors = 0;
+        List<Job> failed = new ArrayList<Job>();
+        for (Job job : jobs) {
+            bytes += job.bytes;
+            if (job.failure != null) {
+                failed.add(job);
+            } else if (job.diagnostics > 0) {
+                ++withErrors;
+                errors += job.diagnostics;
+            }
+        }
+        double seconds = Math.max(elapsed, 1) / 1e9;
+        out.printf("Converted %d files (%.1f MB) in %.2f s with %d threads:"
+                + " %.1f files/s, %.2f MB/s%n", jobs.size() - failed.size(), bytes / 1e6,
+                seconds, threads, jobs.size() / seconds, bytes / 1e6 / seconds);
+        if (engine.getMemoLookups() > 0) {
+            out.printf("Line memo: %d of %d assignments and calls reused (%.1f%%)%n",
+                    engine.getMemoHits(), engine.getMemoLookups(),
+                    100.0 * engine.getMemoHits() / engine.getMemoLookups());
+        }
+        long lookedAt = engine.getTokensLexed() + engine.getTokensReused();
+        if (lookedAt > 0) {
+            out.printf("Tokens: %d lexed, %d looked at again without lexing (%.1f%%)%n",
+                    engine.getTokensLexed(), engine.getTokensReused(),
+                    100.0 * engine.getTokensReused() / lookedAt);
+        }
+        if (withErrors > 0) {
+            out.printf("%d files had errors that were skipped (%d in all), marked CAN'T CONVERT%n",
+                    withErrors, errors);
+        }
+        if (!failed.isEmpty()) {
+            out.printf("%d files failed:%n", failed.size());
+            for (Job job : failed.subList(0, Math.min(failed.size(), FAILURES_SHOWN))) {
+                out.printf("  %s: %s%n", job.source, job.failure);
+            }
+        }
+        List<Job> slowest = new ArrayList<Job>(jobs);
+        Collections.sort(slowest, new Comparator<Job>() {
+            @Override
+            public int compare(Job a, Job b) {
+                return Long.compare(b.nanos, a.nanos);
+            }
+        });
+        if (!slowest.isEmpty()) {
+            out.println("Slowest files:");
+            for (Job job : slowest.subList(0, Math.min(slowest.size(), SLOWEST_SHOWN))) {
+                out.printf("  %8.3f s  %s (%d bytes)%n", job.nanos / 1e9, job.source, job.bytes);
+            }
+        }
+        return failed.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Scans the declarations in one file, for --project. A file that can't be
+     * read is a failure, and is not converted.
+     */
+    private void scan(Job job) {
+        if (job.failure != null) {
+            return;
+        }
+        try {
+            job.symbols = SymbolIndex.scan(lines(readBytes(job)));
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            job.failure = e.toString();
+        }
+    }
+
+    private byte[] readBytes(Job job) throws IOException {
+        byte[] bytes = Files.readAllBytes(job.source);
+        job.bytes = bytes.length;
+        return bytes;
+    }
+
+    private List<String> lines(byte[] bytes) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(bytes), charset));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Converts one file, carrying on past errors in it, and writes out the
+     * JavaScript, taking it from the cache if it is there. Anything that stops
+     * the file being converted is recorded in the job instead of being thrown,
+     * so the rest of the batch goes on.
+     */
+    private void convert(Job job) {
+        if (job.failure != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = readBytes(job);
+            String key = null;
+            ConversionCache.Result cached = null;
+            if (cache != null) {
+                key = cache.key(bytes);
+                cached = cache.get(key);
+            }
+            if (cached != null) {
+                job.diagnostics = cached.diagnosticCount;
+                write(job, cached.jsCode);
+            } else {
+                List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+                String jsCode = engine.convert(lines(bytes), diagnostics, budget);
+                job.diagnostics = diagnostics.size();
+                write(job, jsCode);
+                if (cache != null) {
+                    cache.put(key, jsCode, diagnostics);
+                }
+            }
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            job.failure = e.toString();
+        }
+        job.nanos = System.nanoTime() - start;
+    }
+
+    private static void write(Job job, String jsCode) throws IOException {
+        Path directory = job.target.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        Files.write(job.target, jsCode.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: ConversionCache.java
+ * Date and Time: Oct 18, 2026 3:40:52 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import com.google.vb2js.ConverterEngine;
+import com.google.vb2js.Diagnostic;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Conversions kept on disk from one batch run to the next, so that a file
+ * that has not changed is not converted again. An entry is found by the
+ * SHA-256 of the file's bytes, the converter itself (its class files) and the
+ * options that change the output, so a new converter or other options just
+ * miss. Each entry is a file holding the JavaScript and the diagnostics,
+ * deflated, at DIR/ab/abcd..., ab being the start of its hash. Only the
+ * number of diagnostics is read back, which is all a batch run reports.
+ *
+ * Any number of threads and processes can share a cache. An entry is written
+ * to a temporary file and moved into place, so it is seen whole or not at
+ * all; an entry that can't be read is a miss. Reading an entry marks it as
+ * used, by its modified time, and close() removes the entries used longest
+ * ago until the cache is within its size.
+ *
+ * @author raliclo
+ */
+final class ConversionCache {
+
+    /** Starts every entry, so that anything else in the directory is a miss */
+    private static final int MAGIC = 0x76623263;
+
+    /** Length of a key, a SHA-256 in hex, and so of the name of an entry */
+    private static final int KEY_LENGTH = 64;
+
+    /** What the cache fills up to, at most, when it evicts */
+    private static final double FILL_AFTER_EVICTION = 0.9;
+
+    /** A conversion as kept in the cache, as much of it as a batch run needs */
+    static final class Result {
+
+        final String jsCode;
+        final int diagnosticCount;
+
+        private Result(String jsCode, int diagnosticCount) {
+            this.jsCode = jsCode;
+            this.diagnosticCount = diagnosticCount;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /** Digest of the converter and the options, which each key starts from */
+    private final MessageDigest prefix;
+
+    /** Tells this cache's temporary files from those of other processes */
+    private final String instance = Long.toHexString(new Random().nextLong());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Opens the cache in directory, making it if need be, for conversions
+     * with options (the charset, say, as a string). close() trims it to
+     * maxBytes.
+     */
+    ConversionCache(Path directory, long maxBytes, String options) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        try {
+            prefix = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from the JDK", e);
+        }
+        prefix.update(converterDigest());
+        prefix.update(options.getBytes(StandardCharsets.UTF_8));
+        prefix.update((byte) 0);
+    }
+
+    /**
+     * Returns the digest of the converter's class files: of the jar holding
+     * them, or of the classes under com/google/vb2js when run from a
+     * directory.
+     */
+    private static byte[] converterDigest() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from the JDK", e);
+        }
+        CodeSource source = ConverterEngine.class.getProtectionDomain().getCodeSource();
+        URL location = source == null ? null : source.getLocation();
+        Path path;
+        try {
+            path = location == null ? null : Paths.get(location.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            path = null;
+        }
+        if (path == null) {
+            throw new IOException("Can't find the converter's classes to tell its version");
+        }
+        if (Files.isDirectory(path)) {
+            final List<Path> classes = new ArrayList<Path>();
+            Path root = path.resolve("com/google/vb2js");
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (file.toString().endsWith(".class")) {
+                        classes.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(classes);
+            for (Path file : classes) {
+                digest.update(root.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(file));
+            }
+        } else {
+            digest.update(Files.readAllBytes(path));
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the key of the conversion of a file with these bytes.
+     */
+    String key(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) prefix.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 digests can't be copied", e);
+        }
+        byte[] hash = digest.digest(bytes);
+        StringBuilder key = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the conversion kept under key, or null if there is none (or it
+     * can't be read).
+     */
+    Result get(String key) {
+        Path entry = entry(key);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(Files.newInputStream(entry))))) {
+            if (in.readInt() != MAGIC) {
+                misses.incrementAndGet();
+                return null;
+            }
+            String jsCode = Protocol.readString(in);
+            int diagnosticCount = in.readInt(); // the diagnostics themselves are not needed
+            touch(entry);
+            hits.incrementAndGet();
+            return new Result(jsCode, diagnosticCount);
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Keeps a conversion under key. A cache that can't be written to only
+     * means the file is converted again next time, so failures are ignored.
+     */
+    void put(String key, String jsCode, List<Diagnostic> diagnostics) {
+        Path entry = entry(key);
+        Path temporary = null;
+        try {
+            Files.createDirectories(entry.getParent());
+            Path file = entry.resolveSibling(
+                    key + "." + instance + "." + Thread.currentThread().getId() + ".tmp");
+            OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            temporary = file;
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(stream, deflater)))) {
+                out.writeInt(MAGIC);
+                Protocol.writeString(out, jsCode);
+                out.writeInt(diagnostics.size());
+                for (Diagnostic diagnostic : diagnostics) {
+                    out.writeInt(diagnostic.getLineNumber());
+                    Protocol.writeString(out, diagnostic.getMessage());
+                    Protocol.writeString(out, diagnostic.getLine());
+                }
+            } finally {
+                deflater.end();
+            }
+            long size = Files.size(temporary);
+            try {
+                Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            bytesWritten.addAndGet(size);
+        } catch (IOException | RuntimeException e) {
+            // converted again next time
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException | RuntimeException e) {
+                    // left for the next close() to sweep up
+                }
+            }
+        }
+    }
+
+    private Path entry(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // only makes it more likely to be evicted
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Removes the entries used longest ago, and temporary files left by
+     * writers that died, until the cache is back within its size. Returns
+     * how many entries were removed. Only files laid out as entries are
+     * (DIR/ab/abcd..., the whole name a SHA-256 in hex) or as their
+     * temporary files are counted or removed, and an entry only once it is
+     * seen to start with MAGIC; anything else in the directory is left
+     * alone.
+     */
+    int close() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        final List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+        long staleBefore = System.currentTimeMillis() - 24 * 3600 * 1000L;
+        long total = 0;
+        try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory)) {
+            for (Path subdirectory : subdirectories) {
+                String start = subdirectory.getFileName().toString();
+                if (start.length() != 2 || !isHex(start, 0, 2)
+                        || !Files.isDirectory(subdirectory, LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(subdirectory)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (!name.startsWith(start) || !isHex(name, 0, KEY_LENGTH)) {
+                            continue;
+                        }
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(file, BasicFileAttributes.class,
+                                    LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            continue; // gone already
+                        }
+                        if (!attrs.isRegularFile()) {
+                            continue;
+                        } else if (name.length() == KEY_LENGTH) {
+                            paths.add(file);
+                            attributes.add(attrs);
+                            total += attrs.size();
+                        } else if (isTemporary(name)
+                                && attrs.lastModifiedTime().toMillis() < staleBefore) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                } catch (IOException e) {
+                    // a subdirectory that can't be listed holds nothing to evict
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return 0;
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < paths.size(); ++i) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return attributes.get(a).lastModifiedTime().compareTo(
+                        attributes.get(b).lastModifiedTime());
+            }
+        });
+        long target = (long) (maxBytes * FILL_AFTER_EVICTION);
+        int evicted = 0;
+        for (int i : order) {
+            if (total <= target) {
+                break;
+            }
+            Path entry = paths.get(i);
+            if (!isEntry(entry)) {
+                continue;
+            }
+            try {
+                Files.delete(entry);
+                ++evicted;
+            } catch (NoSuchFileException e) {
+                // evicted by another process
+            }
+            total -= attributes.get(i).size();
+        }
+        return evicted;
+    }
+
+    /**
+     * Tests whether name is that of a temporary file put() writes:
+     * key.instance.thread.tmp, instance in hex and thread in decimal.
+     */
+    private static boolean isTemporary(String name) {
+        if (!name.endsWith(".tmp") || name.length() <= KEY_LENGTH
+                || name.charAt(KEY_LENGTH) != '.') {
+            return false;
+        }
+        int dot = name.indexOf('.', KEY_LENGTH + 1);
+        int end = name.length() - 4;
+        if (dot <= KEY_LENGTH + 1 || dot + 1 >= end || !isHex(name, KEY_LENGTH + 1, dot)) {
+            return false;
+        }
+        for (int i = dot + 1; i < end; ++i) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Tests whether name has lower-case hex digits from start to end */
+    private static boolean isHex(String name, int start, int end) {
+        if (name.length() < end) {
+            return false;
+        }
+        for (int i = start; i < end; ++i) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Tests whether file starts as an entry does, with MAGIC once inflated */
+    private static boolean isEntry(Path file) {
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(Files.newInputStream(file)))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: ConversionClient.java
+ * Date and Time: Oct 18, 2026 2:26:19 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The client for ConversionServer: sends it each file named, over one
+ * connection, and prints the JavaScript that comes back. Errors that were
+ * skipped over go to standard error as file:line: message. It only uses the
+ * JDK and Protocol, so the converter is not loaded.
+ *
+ * @author raliclo
+ */
+final class ConversionClient {
+
+    private static final String USAGE =
+            "usage: myVB2JS --client [--port N] [--charset NAME] FILE...";
+
+    /**
+     * Converts the files named in args, after --client, and returns the exit
+     * status: 0 if all were converted, 1 if some were not or the daemon can't
+     * be reached, 2 if the arguments are wrong.
+     */
+    static int run(String[] args, PrintStream out) {
+        int port = Protocol.DEFAULT_PORT;
+        Charset charset = Charset.defaultCharset();
+        List<String> files = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                if (!args[i].startsWith("--")) {
+                    files.add(args[i]);
+                } else if (i + 1 == args.length) {
+                    files.clear();
+                    break;
+                } else if (args[i].equals("--port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--charset")) {
+                    charset = Charset.forName(args[++i]);
+                } else {
+                    files.clear();
+                    break;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            files.clear();
+        }
+        if (files.isEmpty()) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        int status = 0;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            for (String file : files) {
+                String vbaCode;
+                try {
+                    vbaCode = new String(Files.readAllBytes(Paths.get(file)), charset);
+                } catch (IOException e) {
+                    System.err.println(file + ": can't read: " + e);
+                    status = 1;
+                    continue;
+                }
+                Protocol.writeString(request, vbaCode);
+                request.flush();
+                if (in.readByte() != Protocol.OK) {
+                    System.err.println(file + ": can't convert: " + Protocol.readString(in));
+                    status = 1;
+                    continue;
+                }
+                out.print(Protocol.readString(in));
+                for (int n = in.readInt(); n > 0; --n) {
+                    int lineNumber = in.readInt();
+                    String message = Protocol.readString(in);
+                    Protocol.readString(in); // the text of the line
+                    System.err.println(file + ":" + lineNumber + ": " + message);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Can't talk to the daemon on port " + port + ": " + e);
+            return 1;
+        }
+        out.flush();
+        return status;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: ConversionServer.java
+ * Date and Time: Oct 18, 2026 2:11:03 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import com.google.vb2js.Budget;
+import com.google.vb2js.ConverterEngine;
+import com.google.vb2js.Diagnostic;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A conversion daemon, so that converting a file does not pay for starting a
+ * JVM and warming it up each time. It listens on a port of the loopback
+ * address only, and serves each connection on a thread of a fixed pool of
+ * --connections threads, speaking Protocol. All connections share one
+ * ConverterEngine, which keeps its state per thread, so the pool's threads
+ * stay warm from one connection to the next. Errors in a file are skipped
+ * over and sent back with the JavaScript, as --batch does. It runs until
+ * killed.
+ *
+ * What it holds at once is bounded: at most --connections connections are
+ * served (more are closed as soon as they are accepted, since the pool has
+ * no queue), a request longer than --max-request MB is passed over and
+ * answered FAILED, and only as many requests as there are processors, the
+ * permits of a semaphore, are read and converted at a time; the others wait,
+ * with only their length read.
+ *
+ * @author raliclo
+ */
+final class ConversionServer {
+
+    private static final String USAGE =
+            "usage: myVB2JS --daemon [--port N] [--timeout SECONDS] [--connections N]"
+            + " [--max-request MB]";
+
+    private final ConverterEngine engine = new ConverterEngine();
+    private int port = Protocol.DEFAULT_PORT;
+    private Budget budget = Budget.UNLIMITED.withTimeout(60, TimeUnit.SECONDS);
+    private int maxConnections = 32;
+    private int maxRequestBytes = 16 << 20;
+
+    /** Taken while a request is read, converted and answered */
+    private final Semaphore conversions =
+            new Semaphore(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Runs the daemon with the arguments after --daemon. Returns only if it
+     * can't start: 2 if the arguments are wrong, 1 if the port can't be had.
+     */
+    static int run(String[] args, PrintStream out) {
+        ConversionServer server = new ConversionServer();
+        try {
+            if (!server.parseArguments(args)) {
+                System.err.println(USAGE);
+                return 2;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        try {
+            server.serve(out);
+        } catch (IOException e) {
+            System.err.println("Can't listen on port " + server.port + ": " + e);
+        }
+        return 1;
+    }
+
+    private boolean parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (i + 1 == args.length) {
+                return false;
+            } else if (arg.equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--timeout")) {
+                budget = Budget.UNLIMITED.withTimeout(Long.parseLong(args[++i]), TimeUnit.SECONDS);
+            } else if (arg.equals("--connections")) {
+                maxConnections = Integer.parseInt(args[++i]);
+                if (maxConnections < 1) {
+                    return false;
+                }
+            } else if (arg.equals("--max-request")) {
+                long megabytes = Long.parseLong(args[++i]);
+                if (megabytes < 1 || megabytes << 20 > Protocol.MAX_LENGTH) {
+                    return false;
+                }
+                maxRequestBytes = (int) (megabytes << 20);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void serve(PrintStream out) throws IOException {
+        ExecutorService connections = new ThreadPoolExecutor(maxConnections, maxConnections,
+                0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "vb2js-connection");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try (ServerSocket serverSocket =
+                new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            out.printf("Listening on %s:%d%n", serverSocket.getInetAddress().getHostAddress(),
+                    serverSocket.getLocalPort());
+            out.flush();
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                try {
+                    connections.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    socket.close(); // as many connections as allowed are open
+                }
+            }
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    /**
+     * Answers the requests on one connection until the client closes it. A
+     * connection that breaks off, or sends something that isn't a request, is
+     * just closed.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                int length;
+                try {
+                    length = Protocol.readLength(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                byte[] reply;
+                if (length > maxRequestBytes) {
+                    Protocol.skip(in, length);
+                    reply = failed("Request of " + length + " bytes is longer than the "
+                            + (maxRequestBytes >> 20) + " MB allowed");
+                } else {
+                    conversions.acquireUninterruptibly();
+                    try {
+                        reply = respond(Protocol.readString(in, length));
+                    } finally {
+                        conversions.release();
+                    }
+                }
+                out.write(reply);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away; nothing to answer
+        }
+    }
+
+    /**
+     * Returns the whole reply to a request, built before any of it is sent,
+     * so that a conversion that fails part-way is answered FAILED and not
+     * with half an OK.
+     */
+    private byte[] respond(String vbaCode) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(reply);
+        try {
+            List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+            String jsCode = engine.convert(lines(vbaCode), diagnostics, budget);
+            out.writeByte(Protocol.OK);
+            Protocol.writeString(out, jsCode);
+            out.writeInt(diagnostics.size());
+            for (Diagnostic diagnostic : diagnostics) {
+                out.writeInt(diagnostic.getLineNumber());
+                Protocol.writeString(out, diagnostic.getMessage());
+                Protocol.writeString(out, diagnostic.getLine());
+            }
+        } catch (RuntimeException | StackOverflowError e) {
+            return failed(e.toString());
+        }
+        return reply.toByteArray();
+    }
+
+    private static byte[] failed(String reason) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(reply);
+        out.writeByte(Protocol.FAILED);
+        Protocol.writeString(out, reason);
+        return reply.toByteArray();
+    }
+
+    private static List<String> lines(String vbaCode) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new StringReader(vbaCode));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: Protocol.java
+ * Date and Time: Oct 18, 2026 2:05:47 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What ConversionServer and ConversionClient say to each other. A connection
+ * carries any number of requests, each answered before the next one is read:
+ *
+ * <pre>
+ * request:  string vba
+ * response: byte OK, string javaScript, int n, n times (int line, string message, string text)
+ *       or: byte FAILED, string reason
+ * </pre>
+ *
+ * An int is 4 bytes, big-endian, as DataOutputStream writes it; a string is an
+ * int length followed by that many bytes of UTF-8. The n triples are the
+ * errors that were skipped over, as line number (from 1), message and the
+ * text of the line.
+ *
+ * This class only uses java.io, so that a client does not load the converter.
+ *
+ * @author raliclo
+ */
+final class Protocol {
+
+    static final int DEFAULT_PORT = 7531;
+
+    /** The request was converted, perhaps with errors skipped over */
+    static final byte OK = 0;
+
+    /** The request could not be converted at all */
+    static final byte FAILED = 1;
+
+    /**
+     * Longest string taken, in bytes, so a bad length can't run a side out of
+     * memory. Far above any real module, and its JavaScript; the daemon takes
+     * requests of at most --max-request MB, which is less.
+     */
+    static final int MAX_LENGTH = 64 << 20;
+
+    private Protocol() {
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return readString(in, readLength(in));
+    }
+
+    /**
+     * Reads the length that starts a string, for reading the rest of it with
+     * readString(in, length) or passing over it with skip().
+     */
+    static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Bad string length: " + length);
+        }
+        return length;
+    }
+
+    static String readString(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Passes over the length bytes of a string, without holding them */
+    static void skip(DataInputStream in, int length) throws IOException {
+        for (int left = length; left > 0; ) {
+            int skipped = in.skipBytes(left);
+            if (skipped == 0) {
+                in.readByte(); // throws EOFException at the end
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+}
@@ -23,10 +23,11 @@
 package myVB2JS;
 
 import com.google.vb2js.VbaJsConverter;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  *
@@ -35,31 +36,71 @@ import java.util.ArrayList;
 public class myVB2JS {
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments: a file to convert, or --batch,
+     * --daemon or --client and the arguments BatchConversion,
+     * ConversionServer or ConversionClient takes
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].startsWith("--")) {
+            String[] rest = Arrays.copyOfRange(args, 1, args.length);
+            int status;
+            if (args[0].equals("--batch")) {
+                status = BatchConversion.run(rest, System.out);
+            } else if (args[0].equals("--daemon")) {
+                status = ConversionServer.run(rest, System.out);
+            } else if (args[0].equals("--client")) {
+                status = ConversionClient.run(rest, System.out);
+            } else {
+                System.err.println("usage: myVB2JS FILE | --batch ... | --daemon ..."
+                        + " | --client ...");
+                status = 2;
+            }
+            if (status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
+
         // setup variable
 //        args = new String[1];
 //        args[0] = "./test/test.vb";
-        ArrayList<String> vbCode = new ArrayList<>();
+        String jsCode = "";
 
         System.out.println("[VB] Before Conversion");
         if (args.length == 1) {
-            try (BufferedReader br = new BufferedReader(new FileReader(args[0]))) {
-
-                String sCurrentLine;
-
-                while ((sCurrentLine = br.readLine()) != null) {
-                    System.out.println(sCurrentLine);
-                    vbCode.add(sCurrentLine);
-                }
-
+            try {
+                // the file is mapped once, shown and converted from the same text
+                CharSequence vbaCode = VbaJsConverter.read(Paths.get(args[0]),
+                        Charset.defaultCharset());
+                printLines(vbaCode, System.out);
+                jsCode = VbaJsConverter.convert(vbaCode);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
         System.out.println("\n---[VB -> JS] Conversion---\n");
         System.out.println("[JS] After Conversion");
-        System.out.println(VbaJsConverter.convert(vbCode));
+        System.out.println(jsCode);
+    }
+
+    /**
+     * Prints text a line at a time, split where BufferedReader.readLine()
+     * splits it: at \n, \r or \r\n, with no empty line after a final line
+     * terminator.
+     */
+    private static void printLines(CharSequence text, PrintStream out) {
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+                ++end;
+            }
+            out.append(text, start, end).println();
+            start = end + 1;
+            if (end + 1 < length && text.charAt(end) == '\r' && text.charAt(end + 1) == '\n') {
+                ++start;
+            }
+        }
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks Budget: that long lines which the old limit of 1000 peeks a line took for a loop
+ * now convert, that running out of steps or time stops a conversion with a
+ * BudgetExceededException (when carrying on past errors too), that a budget large enough
+ * does not change the result, and that an engine converts as before after a conversion it
+ * stopped. Exits with an exception if a check fails.
+ */
+public final class BudgetCheck {
+
+  private BudgetCheck() {
+  }
+
+  public static void main(String[] args) {
+    checkLongLines();
+
+    List<String> module = module(1000);
+    String expected = VbaJsConverter.convert(module);
+    Budget large = Budget.UNLIMITED.withMaxSteps(100000000L).withTimeout(1, TimeUnit.MINUTES);
+    Preconditions.checkState(expected.equals(VbaJsConverter.convert(module, large)),
+        "A budget large enough changed the result");
+
+    ConverterEngine engine = new ConverterEngine();
+    Budget fewSteps = Budget.UNLIMITED.withMaxSteps(1000);
+    Budget pastDeadline = Budget.UNLIMITED.withDeadline(System.nanoTime() - 1);
+    for (Budget budget : new Budget[] { fewSteps, pastDeadline }) {
+      checkExceeded(engine, module, budget, false);
+      checkExceeded(engine, module, budget, true);
+      Preconditions.checkState(expected.equals(engine.convert(module)),
+          "An engine converted otherwise after running out of budget");
+    }
+    System.out.println("BudgetCheck: long lines, steps, deadline and recovery");
+  }
+
+  /**
+   * An Array(...) of 2000 elements and an If of 800 conditions.
+   */
+  private static void checkLongLines() {
+    StringBuilder array = new StringBuilder("x = Array(1");
+    for (int i = 2; i <= 2000; ++i) {
+      array.append(", ").append(i);
+    }
+    String jsCode = VbaJsConverter.convert(Collections.singletonList(array.append(")").toString()));
+    Preconditions.checkState(jsCode.contains(", 2000);"), "Array(...) converted as:\n%s", jsCode);
+
+    StringBuilder condition = new StringBuilder("If a0 = 0");
+    for (int i = 1; i < 800; ++i) {
+      condition.append(" Or a").append(i).append(" = ").append(i);
+    }
+    condition.append(" Then");
+    jsCode = VbaJsConverter.convert(Lists.newArrayList(condition.toString(), "y = 1", "End If"));
+    Preconditions.checkState(jsCode.contains("a799 == 799"), "If converted as:\n%s", jsCode);
+  }
+
+  private static void checkExceeded(ConverterEngine engine, List<String> module, Budget budget,
+      boolean isRecovering) {
+    try {
+      if (isRecovering) {
+        engine.convert(module, Lists.<Diagnostic>newArrayList(), budget);
+      } else {
+        engine.convert(module, budget);
+      }
+    } catch (BudgetExceededException e) {
+      return;
+    }
+    throw new AssertionError("Converted within a budget too small"
+        + (isRecovering ? ", carrying on past errors" : ""));
+  }
+
+  /**
+   * Returns a module of count Subs.
+   */
+  private static List<String> module(int count) {
+    List<String> lines = Lists.newArrayList("Dim total As Long");
+    for (int i = 0; i < count; ++i) {
+      lines.add("Sub Add" + i + "(n)");
+      lines.add("  If n > " + i + " Then total = total + n * " + i + " Else total = 0");
+      lines.add("End Sub");
+    }
+    return lines;
+  }
+}
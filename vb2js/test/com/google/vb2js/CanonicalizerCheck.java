@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Checks Canonicalizer against the chain of replaceAll calls that Line.canonicalize() used to
+ * make, on strings put together at random from the words the rules look for, pieces of them
+ * and blanks. Each string must come out as the chain made it, and as the same String when
+ * the chain left it as it was. Takes the number of strings as an argument; exits with an
+ * exception on a mismatch.
+ */
+public final class CanonicalizerCheck {
+
+  /** What the strings are made of */
+  private static final String[] PIECES = {
+    "Property", "Get", "Let", "Set", "End", "Public", "Private", "Friend", "Static", "Global",
+    "Sub", "Function", "Dim", "Const", "Declare", "Prop", "Pub", "End Prop", "Publ", "x",
+    "(", " ", " ", "  ", "public", "property get"
+  };
+
+  /** The old chain: each pattern in turn is replaced by what is at the same index below */
+  private static final Pattern[] RULES = {
+    Pattern.compile("Property Get "),
+    Pattern.compile("Property Let "),
+    Pattern.compile("Property Set "),
+    Pattern.compile("End Property"),
+    Pattern.compile("(Public|Private|Friend) +Sub"),
+    Pattern.compile("(Public|Private|Friend) +Function"),
+    Pattern.compile("(Public|Private|Friend) +Dim"),
+    Pattern.compile("(Public|Private|Friend) +Global"),
+    Pattern.compile("(Public|Private|Friend|Global) +Const"),
+    Pattern.compile("(Public|Private|Friend) +Declare"),
+    Pattern.compile("(Public|Private|Static)")
+  };
+
+  private static final String[] REPLACEMENTS = {
+    "Function Get", "Function Let", "Function Set", "End Function", "Sub", "Function", "Dim",
+    "Global", "Const", "Declare", "Dim"
+  };
+
+  private CanonicalizerCheck() {
+  }
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Random random = new Random(6);
+    StringBuilder text = new StringBuilder();
+    for (int n = 0; n < count; ++n) {
+      text.setLength(0);
+      for (int i = random.nextInt(8); i > 0; --i) {
+        text.append(PIECES[random.nextInt(PIECES.length)]);
+      }
+      String line = text.toString();
+      String expected = canonicalizeOld(line);
+      String actual = Canonicalizer.canonicalize(line);
+      if (!expected.equals(actual)) {
+        throw new AssertionError("[" + line + "]: the replaceAll chain gives [" + expected
+            + "], Canonicalizer [" + actual + "]");
+      }
+      if (expected.equals(line) && actual != line) {
+        throw new AssertionError("[" + line + "]: Canonicalizer made a copy of a line it left"
+            + " as it was");
+      }
+    }
+    System.out.println("CanonicalizerCheck: " + count + " strings, each canonicalized as the"
+        + " replaceAll chain did");
+  }
+
+  /**
+   * Makes the replaceAll calls of the old chain in order, with the patterns compiled once.
+   */
+  private static String canonicalizeOld(String str) {
+    for (int i = 0; i < RULES.length; ++i) {
+      str = RULES[i].matcher(str).replaceAll(REPLACEMENTS[i]);
+    }
+    return str;
+  }
+}
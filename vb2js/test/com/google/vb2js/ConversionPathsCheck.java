@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the ways of converting a module all give what VbaJsConverter.convert() gives
+ * on its lines: from a String, from a Reader, and from a file mapped in a single-byte
+ * charset and in UTF-8, with its lines ending in \r\n; with its Subs and Functions on
+ * threads of their own; with one ConverterEngine shared by several threads; one procedure
+ * at a time through a ModuleIndex, each as it is in the whole; and again and again through
+ * an IncrementalConverter while lines are edited at random, errors and the line numbers
+ * they give included. The module is the Sub of test/test.vb and a few procedures after it.
+ * Takes the directory of test.vb and the number of edits as arguments; exits with an
+ * exception if a check fails.
+ */
+public final class ConversionPathsCheck {
+
+  private static final List<String> AFTER = ImmutableList.of(
+      "",
+      "Dim total As Long",
+      "",
+      "Function Twice(n)",
+      "  Twice = n * 2",
+      "End Function",
+      "",
+      "Sub AddUp(values)",
+      "  For Each v In values",
+      "    If v > 0 Then total = total + Twice(v) Else total = total - 1",
+      "  Next",
+      "End Sub");
+
+  /** Lines the edits put in, some of them errors, one continued onto the next line */
+  private static final String[] EDITS = {
+    "x = 1", "y = \"abc", "If x Then", "End If", "End Sub", "Sub Other()", "Function F(a)",
+    "End Function", "Dim q As Integer", "total = total + _", "For i = 1 To 3", "Next",
+    "If a Then b = 1 Else b = 2", ".Value = 2", "' a comment"
+  };
+
+  private ConversionPathsCheck() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    int editCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    List<String> module = Lists.newArrayList(
+        "Sub CopyArray(SourceArray, DestArray, startingpoint, numberofvalues)");
+    module.addAll(Files.readAllLines(Paths.get(directory, "test.vb"), StandardCharsets.UTF_8));
+    module.addAll(AFTER);
+    final String expected = VbaJsConverter.convert(module);
+
+    String text = Joiner.on('\n').join(module);
+    check(VbaJsConverter.convert(text), expected, "a String");
+    StringWriter writer = new StringWriter();
+    VbaJsConverter.convert(new StringReader(text), writer);
+    check(writer.toString(), expected, "a Reader");
+    checkFile(text, StandardCharsets.ISO_8859_1, expected);
+    checkFile(text, StandardCharsets.UTF_8, expected);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      check(VbaJsConverter.convert(module, executor), expected, "procedures in parallel");
+      checkSharedEngine(module, expected, executor);
+    } finally {
+      executor.shutdown();
+    }
+
+    ModuleIndex index = new ConverterEngine().index(module);
+    Preconditions.checkState(
+        index.getProcedureNames().equals(ImmutableList.of("CopyArray", "Twice", "AddUp")),
+        "Procedures found: %s", index.getProcedureNames());
+    for (String name : index.getProcedureNames()) {
+      String jsCode = index.convertProcedure(name);
+      Preconditions.checkState(expected.contains(jsCode), "%s converted alone as:\n%s", name,
+          jsCode);
+    }
+
+    checkEdits(module, editCount);
+    System.out.println("ConversionPathsCheck: every path as convert(), " + editCount + " edits");
+  }
+
+  /**
+   * Converts text from a file in charset, with lines ending in \r\n: mapped by
+   * convert(Path, Charset), and read by read() and then converted.
+   */
+  private static void checkFile(String text, Charset charset, String expected)
+      throws Exception {
+    Path file = Files.createTempFile("ConversionPathsCheck", ".vb");
+    try {
+      Files.write(file, text.replace("\n", "\r\n").getBytes(charset));
+      check(VbaJsConverter.convert(file, charset), expected, "a file in " + charset);
+      check(VbaJsConverter.convert(VbaJsConverter.read(file, charset)), expected,
+          "the text read() gives of a file in " + charset);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Converts module on every thread of executor at once, with one engine, many times.
+   */
+  private static void checkSharedEngine(final List<String> module, final String expected,
+      ExecutorService executor) throws Exception {
+    final ConverterEngine engine = new ConverterEngine();
+    List<Future<String>> results = Lists.newArrayList();
+    for (int i = 0; i < 4; ++i) {
+      results.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          for (int round = 0; round < 50; ++round) {
+            String jsCode = engine.convert(module);
+            if (!jsCode.equals(expected)) {
+              return jsCode;
+            }
+          }
+          return expected;
+        }
+      }));
+    }
+    for (Future<String> result : results) {
+      check(result.get(), expected, "one engine on several threads");
+    }
+  }
+
+  /**
+   * Edits module at random through an IncrementalConverter, converting it after each edit
+   * and comparing with converting its lines.
+   */
+  private static void checkEdits(List<String> module, int count) {
+    Random random = new Random(24);
+    List<String> lines = Lists.newArrayList(module);
+    IncrementalConverter converter = new IncrementalConverter(lines);
+    for (int n = 0; n < count; ++n) {
+      int first = random.nextInt(lines.size() + 1);
+      int last = Math.min(lines.size(), first + random.nextInt(3));
+      List<String> newLines = Lists.newArrayList();
+      for (int i = random.nextInt(3); i > 0; --i) {
+        newLines.add(EDITS[random.nextInt(EDITS.length)]);
+      }
+      if (newLines.isEmpty() && first == last) {
+        continue;
+      }
+      lines.subList(first, last).clear();
+      lines.addAll(first, newLines);
+      converter.edit(first, last, Joiner.on('\n').join(newLines));
+      if (lines.isEmpty()) {
+        lines.addAll(module);
+        converter = new IncrementalConverter(lines);
+      }
+      check(convert(converter), convert(lines), "edit " + n + " of the IncrementalConverter");
+    }
+  }
+
+  private static String convert(IncrementalConverter converter) {
+    try {
+      return converter.convert();
+    } catch (ParseException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static String convert(List<String> lines) {
+    try {
+      return VbaJsConverter.convert(lines);
+    } catch (ParseException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static void check(String actual, String expected, String what) {
+    if (!actual.equals(expected)) {
+      throw new AssertionError("Converting through " + what + " gave:\n" + actual
+          + "\ninstead of:\n" + expected);
+    }
+  }
+}
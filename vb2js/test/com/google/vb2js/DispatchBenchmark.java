@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times finding the kind of each statement of a large module from its first token, as
+ * Parser.parseStatement() does: with the chain of equals() calls it used to make; with a
+ * map from the word to the kind and a switch; with the keyword ID the Lexer already found,
+ * through a table indexed by ID (KEYWORDS_BY_ID, what Parser does now); and the same with a
+ * StatementHandler registered, which costs a lookup in StatementHandlers for each
+ * assignment and call. The tables are built here as Parser builds its own. Prints the best
+ * time per statement out of a number of rounds. Takes the directory of test.vb, the number
+ * of copies of its Sub in the module and the number of rounds as arguments.
+ */
+public final class DispatchBenchmark {
+
+  /** The kinds of statement, in the order the old chain tested for them */
+  private static final int EMPTY = 0;
+  private static final int DIM = 1;
+  private static final int IF = 2;
+  private static final int FOR = 3;
+  private static final int DO = 4;
+  private static final int WHILE = 5;
+  private static final int SUB = 6;
+  private static final int FUNCTION = 7;
+  private static final int CALL = 8;
+  private static final int SELECT = 9;
+  private static final int EXIT = 10;
+  private static final int WITH = 11;
+  private static final int TYPE = 12;
+  private static final int PUNT = 13;
+  private static final int ON_ERROR = 14;
+  private static final int ASSIGNMENT_OR_CALL = 15;
+  private static final int OTHER = 16;
+  private static final int HANDLED = 17;
+
+  /** Parser.KEYWORDS */
+  private static final ImmutableMap<String, Integer> KINDS =
+      ImmutableMap.<String, Integer>builder()
+          .put("Dim", DIM)
+          .put("ReDim", DIM)
+          .put("Global", DIM)
+          .put("Const", DIM)
+          .put("If", IF)
+          .put("For", FOR)
+          .put("Do", DO)
+          .put("While", WHILE)
+          .put("Sub", SUB)
+          .put("Function", FUNCTION)
+          .put("Call", CALL)
+          .put("Select", SELECT)
+          .put("Exit", EXIT)
+          .put("With", WITH)
+          .put("Type", TYPE)
+          .put("On Error", ON_ERROR)
+          .build();
+
+  /** Parser.KEYWORDS_BY_ID and Parser.OTHER_KEYWORDS */
+  private static final int[] KINDS_BY_ID = new int[Keywords.count()];
+  private static final ImmutableMap<String, Integer> OTHER_KINDS;
+
+  static {
+    ImmutableMap.Builder<String, Integer> others = ImmutableMap.builder();
+    for (Map.Entry<String, Integer> entry : KINDS.entrySet()) {
+      String name = entry.getKey();
+      int id = Keywords.find(name, 0, name.length());
+      if (id == Keywords.NONE) {
+        others.put(name, entry.getValue());
+      } else {
+        KINDS_BY_ID[id] = entry.getValue();
+      }
+    }
+    OTHER_KINDS = others.build();
+  }
+
+  /** The first token of a statement, as Parser.parseStatement() sees it */
+  private static final class First {
+    private final String peek;
+    private final int type;
+    private final int keyword;
+
+    private First(String peek, int type, int keyword) {
+      this.peek = peek;
+      this.type = type;
+      this.keyword = keyword;
+    }
+  }
+
+  private DispatchBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    int copies = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+    Line line = new TranslationUnit().getCurrentLine();
+    List<First> statements = Lists.newArrayList();
+    for (String text : SampleModules.copyArrays(directory, copies)) {
+      String peek = line.parseLine(text).peek();
+      statements.add(new First(peek, line.peekTokenType(), line.peekKeyword()));
+    }
+    ImmutableMap<String, StatementHandler> noHandlers = ImmutableMap.of();
+    ImmutableMap<String, StatementHandler> handlers = ImmutableMap.<String, StatementHandler>of(
+        "open", new StatementHandler() {
+          @Override
+          public String convert(String statement) {
+            return null;
+          }
+        });
+
+    long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+    long sink = 0;
+    for (int round = 0; round < rounds; ++round) {
+      for (int way = 0; way < best.length; ++way) {
+        long start = System.nanoTime();
+        for (First first : statements) {
+          switch (way) {
+            case 0:
+              sink += dispatchByChain(first);
+              break;
+            case 1:
+              sink += dispatchByMap(first);
+              break;
+            case 2:
+              sink += dispatchById(first, noHandlers);
+              break;
+            default:
+              sink += dispatchById(first, handlers);
+              break;
+          }
+        }
+        best[way] = Math.min(best[way], System.nanoTime() - start);
+      }
+    }
+
+    double count = statements.size();
+    System.out.printf("DispatchBenchmark: %d statements, best of %d rounds, per statement:%n",
+        statements.size(), rounds);
+    System.out.printf("  equals() chain      %6.1f ns%n", best[0] / count);
+    System.out.printf("  map and switch      %6.1f ns%n", best[1] / count);
+    System.out.printf("  keyword ID table    %6.1f ns%n", best[2] / count);
+    System.out.printf("  and one handler     %6.1f ns%n", best[3] / count);
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  /**
+   * The chain Parser.parseStatement() used to be.
+   */
+  private static int dispatchByChain(First first) {
+    String peek = first.peek;
+    if (peek.isEmpty()) {
+      return EMPTY;
+    } else if (peek.equals("Dim") || peek.equals("ReDim")
+        || peek.equals("Global") || peek.equals("Const")) {
+      return DIM;
+    } else if (peek.equals("If")) {
+      return IF;
+    } else if (peek.equals("For")) {
+      return FOR;
+    } else if (peek.equals("Do")) {
+      return DO;
+    } else if (peek.equals("While")) {
+      return WHILE;
+    } else if (peek.equals("Sub")) {
+      return SUB;
+    } else if (peek.equals("Function")) {
+      return FUNCTION;
+    } else if (peek.equals("Call")) {
+      return CALL;
+    } else if (peek.equals("Select")) {
+      return SELECT;
+    } else if (peek.equals("Exit")) {
+      return EXIT;
+    } else if (peek.equals("With")) {
+      return WITH;
+    } else if (peek.equals("Type")) {
+      return TYPE;
+    } else if (first.type == Lexer.PUNT) {
+      return PUNT;
+    } else if (peek.equals("On Error")) {
+      return ON_ERROR;
+    } else if (first.type == Lexer.ID || peek.equals(".")) {
+      return ASSIGNMENT_OR_CALL;
+    } else {
+      return OTHER;
+    }
+  }
+
+  private static int dispatchByMap(First first) {
+    if (first.peek.isEmpty()) {
+      return EMPTY;
+    }
+    Integer kind = KINDS.get(first.peek);
+    return kind != null ? kind : dispatchOther(first);
+  }
+
+  /**
+   * What Parser.parseStatement() does: the kind by keyword ID, or by name for the few
+   * statement words that are not keywords, then the StatementHandler of the first word if
+   * any are registered.
+   */
+  private static int dispatchById(First first, ImmutableMap<String, StatementHandler> handlers) {
+    if (first.peek.isEmpty()) {
+      return EMPTY;
+    }
+    int kind = first.keyword != Keywords.NONE ? KINDS_BY_ID[first.keyword] : 0;
+    if (kind == 0 && first.keyword == Keywords.NONE) {
+      Integer other = OTHER_KINDS.get(first.peek);
+      kind = other != null ? other : 0;
+    }
+    if (kind != 0) {
+      return kind;
+    }
+    if (!handlers.isEmpty() && (first.type == Lexer.PUNT || first.type == Lexer.ID)) {
+      int space = first.peek.indexOf(' ');
+      String word = space < 0 ? first.peek : first.peek.substring(0, space);
+      if (handlers.get(Ascii.toLowerCase(word)) != null) {
+        return HANDLED;
+      }
+    }
+    return dispatchOther(first);
+  }
+
+  private static int dispatchOther(First first) {
+    if (first.type == Lexer.PUNT) {
+      return PUNT;
+    } else if (first.type == Lexer.ID || first.peek.equals(".")) {
+      return ASSIGNMENT_OR_CALL;
+    }
+    return OTHER;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Times the throughput of one ConverterEngine shared by 1, 2, 4 and so on up to N threads
+ * of one pool, which share out a number of conversions of the same module, against a new
+ * ConverterEngine for each conversion, which starts with none of the state an engine keeps
+ * for each thread. Each round runs every number of threads in turn, so that they all see
+ * the JIT at much the same stage. For each number of threads, prints the best
+ * conversions a second out of the rounds both ways, and the speedup of the shared engine
+ * over one thread. Takes the directory of test.vb, N (by default twice the processors),
+ * the number of copies of its Sub in the module, the number of conversions that the threads
+ * share out and the number of rounds as arguments.
+ */
+public final class EngineBenchmark {
+
+  /** Rounds run first and not counted, while the JIT compiles the converter */
+  private static final int WARM_UP_ROUNDS = 6;
+
+  private EngineBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    int maxThreads = args.length > 1
+        ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+    int copies = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    int conversionCount = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+    int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+    List<String> module = SampleModules.copyArrays(directory, copies);
+    ConverterEngine engine = new ConverterEngine();
+    String expected = engine.convert(module);
+
+    System.out.printf("EngineBenchmark: %d lines, %d conversions shared out, best of %d"
+        + " rounds, %d processors%n", module.size(), conversionCount, rounds,
+        Runtime.getRuntime().availableProcessors());
+    System.out.println("  threads, conversions/s with a shared engine (speedup),"
+        + " and with a new engine each time");
+    List<Integer> threadCounts = Lists.newArrayList();
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    double[] shared = new double[threadCounts.size()];
+    double[] fresh = new double[threadCounts.size()];
+    ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+    try {
+      for (int round = -WARM_UP_ROUNDS; round < rounds; ++round) {
+        for (int i = 0; i < threadCounts.size(); ++i) {
+          int threads = threadCounts.get(i);
+          double withShared = run(executor, engine, module, expected, threads, conversionCount);
+          double withFresh = run(executor, null, module, expected, threads, conversionCount);
+          if (round >= 0) {
+            shared[i] = Math.max(shared[i], withShared);
+            fresh[i] = Math.max(fresh[i], withFresh);
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    for (int i = 0; i < threadCounts.size(); ++i) {
+      System.out.printf("  %7d %12.1f (%4.2fx) %12.1f%n", threadCounts.get(i), shared[i],
+          shared[i] / shared[0], fresh[i]);
+    }
+  }
+
+  /**
+   * Converts module count times, shared out among threads threads of executor, with engine,
+   * or with a new engine each time if it is null, and returns the conversions a second.
+   */
+  private static double run(ExecutorService executor, final ConverterEngine engine,
+      final List<String> module, final String expected, int threads, final int count)
+      throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Void>> results = Lists.newArrayList();
+    for (int t = 0; t < threads; ++t) {
+      final int share = count / threads + (t < count % threads ? 1 : 0);
+      results.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws InterruptedException {
+          start.await();
+          for (int n = 0; n < share; ++n) {
+            ConverterEngine converter = engine != null ? engine : new ConverterEngine();
+            if (!converter.convert(module).equals(expected)) {
+              throw new AssertionError("A conversion on " + Thread.currentThread()
+                  + " gave something else");
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    long startTime = System.nanoTime();
+    start.countDown();
+    for (Future<Void> result : results) {
+      result.get();
+    }
+    return count / ((System.nanoTime() - startTime) / 1e9);
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that one ConverterEngine gives every thread what it gives one thread alone: many
+ * threads at once convert modules picked at random, some of them with errors, some run out
+ * of their budget of steps or past their deadline, some carrying on past errors, and each
+ * result, exception or diagnostics is compared with converting the same module the same
+ * way one at a time, on an engine of its own. Then the shared engine converts each module
+ * once more, alone, to show that none of this left anything behind in it. Takes the
+ * directory of test.vb, the number of threads and the number of conversions on each as
+ * arguments; exits with an exception if a check fails.
+ */
+public final class EngineStressCheck {
+
+  /** The ways a module is converted */
+  private enum Way {
+    PLAIN, RECOVERING, FEW_STEPS, PAST_DEADLINE
+  }
+
+  /** A module with a Type and arrays, whose lines convert otherwise once they are known */
+  private static final List<String> DECLARATIONS = ImmutableList.of(
+      "Type Point",
+      "  X As Long",
+      "  Y As Long",
+      "End Type",
+      "Dim grid(10)",
+      "Sub Fill(p As Point)",
+      "  grid(1) = p.X",
+      "  x(1) = 2",
+      "  Dim x(5)",
+      "  x(1) = 2",
+      "End Sub");
+
+  /** Pieces of statements the modules with errors are put together from */
+  private static final String[] PIECES = {
+    "If x Then", "End If", "x = 1", "y = \"abc", "Sub S()", "End Sub", "Function F(a)",
+    "End Function", "For i = 1 To 3", "Next", "Do", "Loop", "Dim q(3)", "q(1) = 2",
+    "total = total + _", ".Value = 2", "With ws", "End With", "Select Case x", "Case 1"
+  };
+
+  private static final Budget FEW_STEPS = Budget.UNLIMITED.withMaxSteps(2000);
+
+  private EngineStressCheck() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int conversionCount = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+
+    final List<List<String>> modules = Lists.newArrayList();
+    for (int count = 1; count <= 4; ++count) {
+      modules.add(SampleModules.copyArrays(directory, count));
+    }
+    modules.add(DECLARATIONS);
+    Random random = new Random(17);
+    for (int i = 0; i < 40; ++i) {
+      List<String> module = Lists.newArrayList();
+      for (int n = 1 + random.nextInt(30); n > 0; --n) {
+        module.add(PIECES[random.nextInt(PIECES.length)]);
+      }
+      modules.add(module);
+    }
+
+    final Way[] ways = Way.values();
+    final String[][] expected = new String[modules.size()][ways.length];
+    for (int m = 0; m < modules.size(); ++m) {
+      for (Way way : ways) {
+        expected[m][way.ordinal()] = convert(new ConverterEngine(), modules.get(m), way);
+      }
+    }
+
+    final ConverterEngine engine = new ConverterEngine();
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    List<Future<String>> results = Lists.newArrayList();
+    try {
+      for (int t = 0; t < threadCount; ++t) {
+        final Random threadRandom = new Random(t);
+        final int count = conversionCount;
+        results.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws InterruptedException {
+            start.await();
+            for (int n = 0; n < count; ++n) {
+              int m = threadRandom.nextInt(modules.size());
+              Way way = ways[threadRandom.nextInt(ways.length)];
+              String actual = convert(engine, modules.get(m), way);
+              if (!actual.equals(expected[m][way.ordinal()])) {
+                return "Module " + m + " converted " + way + " on a shared engine as:\n"
+                    + actual + "\ninstead of:\n" + expected[m][way.ordinal()];
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<String> result : results) {
+        if (result.get() != null) {
+          throw new AssertionError(result.get());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (int m = 0; m < modules.size(); ++m) {
+      String actual = convert(engine, modules.get(m), Way.PLAIN);
+      if (!actual.equals(expected[m][Way.PLAIN.ordinal()])) {
+        throw new AssertionError("Module " + m + " converted afterwards as:\n" + actual);
+      }
+    }
+    System.out.printf("EngineStressCheck: %d threads, %d conversions each, of %d modules"
+        + " in %d ways%n", threadCount, conversionCount, modules.size(), ways.length);
+  }
+
+  /**
+   * Returns the JavaScript for module, converted way on engine, with the diagnostics, or
+   * the exception it threw.
+   */
+  private static String convert(ConverterEngine engine, List<String> module, Way way) {
+    try {
+      switch (way) {
+        case PLAIN:
+          return engine.convert(module);
+        case RECOVERING:
+          List<Diagnostic> diagnostics = Lists.newArrayList();
+          String jsCode = engine.convert(module, diagnostics);
+          return jsCode + Joiner.on('\n').join(diagnostics);
+        case FEW_STEPS:
+          return engine.convert(module, FEW_STEPS);
+        default:
+          return engine.convert(module, Budget.UNLIMITED.withDeadline(System.nanoTime() - 1));
+      }
+    } catch (ParseException | BudgetExceededException e) {
+      return e.toString();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times Line.getExpression() on expressions put together at random from names, numbers,
+ * strings, calls and every binary operator, some in parentheses or after Not: each line is
+ * parsed by parseLine() and its expression by getExpression(), which is where the
+ * precedence climbing over BINARY_OPS is. Prints the best time per expression out of a
+ * number of rounds, with the time parseLine() alone takes. It only uses what Line had
+ * before the precedence climbing replaced getArg(), getLogic() and the rest, so it can be
+ * compiled against that tree too, to time it the same way. Takes the number of rounds and
+ * of expressions as arguments.
+ */
+public final class ExpressionBenchmark {
+
+  private static final String[] OPERATORS = {
+    "And", "Or", "Xor", "<", ">", "=", "<=", ">=", "<>", "Like", "+", "-", "*", "/", "\\",
+    "Mod", "&"
+  };
+
+  private static final String[] OPERANDS = {
+    "a", "total", "lngCnt", "12", "3.5", "\"abc\"", "f(x, 2)", "UBound(SourceArray)",
+    "ws.Cells(i, 2).Value", "arr(i + 1)"
+  };
+
+  private ExpressionBenchmark() {
+  }
+
+  public static void main(String[] args) {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    Random random = new Random(10);
+    List<String> expressions = Lists.newArrayList();
+    int length = 0;
+    for (int i = 0; i < count; ++i) {
+      String expression = expression(random, 2);
+      expressions.add(expression);
+      length += expression.length();
+    }
+
+    Line line = new TranslationUnit().getCurrentLine();
+    long parseTime = Long.MAX_VALUE;
+    long expressionTime = Long.MAX_VALUE;
+    long sink = 0;
+    for (int round = 0; round < rounds; ++round) {
+      long start = System.nanoTime();
+      for (String expression : expressions) {
+        sink += line.parseLine(expression).getLine().length();
+      }
+      parseTime = Math.min(parseTime, System.nanoTime() - start);
+      start = System.nanoTime();
+      for (String expression : expressions) {
+        line.parseLine(expression);
+        sink += line.getExpression().hashCode();
+      }
+      expressionTime = Math.min(expressionTime, System.nanoTime() - start);
+    }
+    System.out.printf("ExpressionBenchmark: %d expressions of %d characters on average,"
+        + " best of %d rounds%n", count, length / count, rounds);
+    System.out.printf("  parseLine() %.2f us, and getExpression() %.2f us, per expression%n",
+        parseTime / 1e3 / count, expressionTime / 1e3 / count);
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  /**
+   * Returns an expression of up to depth levels of operators.
+   */
+  private static String expression(Random random, int depth) {
+    if (depth == 0) {
+      return OPERANDS[random.nextInt(OPERANDS.length)];
+    }
+    StringBuilder expression = new StringBuilder();
+    for (int i = 1 + random.nextInt(4); i > 0; --i) {
+      if (expression.length() > 0) {
+        expression.append(' ').append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ');
+      }
+      switch (random.nextInt(4)) {
+        case 0:
+          expression.append('(').append(expression(random, depth - 1)).append(')');
+          break;
+        case 1:
+          expression.append("Not ").append(OPERANDS[random.nextInt(OPERANDS.length)]);
+          break;
+        default:
+          expression.append(expression(random, depth - 1));
+          break;
+      }
+    }
+    return expression.toString();
+  }
+}
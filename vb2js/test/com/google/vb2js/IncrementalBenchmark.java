@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times editing one line of modules of 1000 to 90000 lines through an IncrementalConverter,
+ * as an editor does on each keystroke, against converting the whole module again with
+ * VbaJsConverter.convert(). For each size, prints the time a full conversion takes, and
+ * the median time of edit() and of edit() and convert() together, over a number of edits
+ * of a line in a Sub in the middle of the module. Takes the directory of test.vb and the
+ * number of edits as arguments.
+ */
+public final class IncrementalBenchmark {
+
+  /** Sizes of the modules, in copies of the Sub of test.vb (57 lines each) */
+  private static final int[] SUBS = { 20, 100, 400, 1600 };
+
+  private IncrementalBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    int editCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    System.out.println("IncrementalBenchmark: lines, full convert() ms, edit() us,"
+        + " edit() and convert() ms");
+    for (int count : SUBS) {
+      List<String> module = SampleModules.copyArrays(directory, count);
+      long full = Long.MAX_VALUE;
+      for (int run = 0; run < 3; ++run) {
+        long start = System.nanoTime();
+        VbaJsConverter.convert(module);
+        full = Math.min(full, System.nanoTime() - start);
+      }
+
+      IncrementalConverter converter = new IncrementalConverter(module);
+      converter.convert();
+      long[] edits = new long[editCount];
+      long[] editsAndConverts = new long[editCount];
+      int line = SampleModules.lineOf(module, count / 2);
+      String jsCode = null;
+      for (int n = 0; n < editCount; ++n) {
+        String newLine = "startingpoint = " + (n + 2);
+        long start = System.nanoTime();
+        converter.edit(line, line + 1, newLine);
+        edits[n] = System.nanoTime() - start;
+        jsCode = converter.convert();
+        editsAndConverts[n] = System.nanoTime() - start;
+        module.set(line, newLine);
+      }
+      if (!jsCode.equals(VbaJsConverter.convert(module))) {
+        throw new AssertionError("The IncrementalConverter converted " + module.size()
+            + " lines otherwise than convert()");
+      }
+      System.out.printf("  %6d lines: %9.2f ms %9.1f us %9.2f ms%n", module.size(), full / 1e6,
+          median(edits) / 1e3, median(editsAndConverts) / 1e6);
+    }
+  }
+
+  private static long median(long[] times) {
+    long[] sorted = times.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
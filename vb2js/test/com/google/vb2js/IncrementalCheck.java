@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Checks the ProcedureCache of an IncrementalConverter, on a module of a number of copies
+ * of the Sub of test.vb: that after a line of one Sub is changed, or a line added to it,
+ * the module converts byte for byte as convert() converts it, with only that Sub translated
+ * and every other taken from the cache; and that after a Dim of an array or a Type is added
+ * before the Subs, every Sub is translated again, and after a Dim is added in the middle,
+ * every Sub after it. The arrays are named as the Sub's arguments are, so that they change
+ * its JavaScript. Takes the directory of test.vb and the number of copies (400 by
+ * default) as arguments. Exits with an exception if a check fails.
+ */
+public final class IncrementalCheck {
+
+  private IncrementalCheck() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+    List<String> module = SampleModules.copyArrays(directory, count);
+    IncrementalConverter converter = new IncrementalConverter(module);
+    check(converter, module, 0, count, "at first");
+
+    int edited = count / 2;
+    int line = SampleModules.lineOf(module, edited);
+    replace(converter, module, line, line + 1, "startingpoint = 2");
+    check(converter, module, count - 1, 1, "after a line of one Sub changed");
+
+    line = SampleModules.lineOf(module, count - 1);
+    replace(converter, module, line, line, "total = total + 1");
+    check(converter, module, count - 1, 1, "after a line was added to the last Sub");
+
+    check(converter, module, count, 0, "unchanged");
+
+    replace(converter, module, 1, 1, "Dim SourceArray(10)");
+    check(converter, module, 0, count, "after a Dim of an array before the Subs");
+
+    replace(converter, module, 1, 1, "Type Point\nx As Long\ny As Long\nEnd Type");
+    check(converter, module, 0, count, "after a Type before the Subs");
+
+    line = SampleModules.lineOf(module, edited);
+    replace(converter, module, line, line + 1, "startingpoint = 3");
+    check(converter, module, count - 1, 1, "after a line of one Sub changed again");
+
+    int start = module.indexOf(
+        "Sub CopyArray" + edited + "(SourceArray, DestArray, startingpoint, numberofvalues)");
+    replace(converter, module, start, start, "Dim DestArray(5)");
+    check(converter, module, edited, count - edited, "after a Dim of an array in the middle");
+
+    System.out.println("IncrementalCheck: " + module.size() + " lines, " + count
+        + " Subs, each edit against convert()");
+  }
+
+  /**
+   * Replaces lines from to to (exclusive) of module by newText, in module and in
+   * converter.
+   */
+  private static void replace(IncrementalConverter converter, List<String> module, int from,
+      int to, String newText) {
+    converter.edit(from, to, newText);
+    module.subList(from, to).clear();
+    module.addAll(from, Lists.newArrayList(SourceText.lines(newText)));
+  }
+
+  /**
+   * Checks that converter converts module as convert() does, taking hits Subs from its
+   * cache and translating misses.
+   */
+  private static void check(IncrementalConverter converter, List<String> module, long hits,
+      long misses, String when) {
+    long hitsBefore = converter.getProcedureHits();
+    long missesBefore = converter.getProcedureMisses();
+    String jsCode = converter.convert();
+    String expected = VbaJsConverter.convert(module);
+    if (!jsCode.equals(expected)) {
+      throw new AssertionError("The IncrementalConverter converted " + module.size()
+          + " lines otherwise than convert() " + when + ", from line "
+          + firstDifference(jsCode, expected));
+    }
+    long hitCount = converter.getProcedureHits() - hitsBefore;
+    long missCount = converter.getProcedureMisses() - missesBefore;
+    Preconditions.checkState(hitCount == hits && missCount == misses,
+        "%s, %s Subs came from the cache and %s were translated instead of %s and %s", when,
+        hitCount, missCount, hits, misses);
+  }
+
+  private static int firstDifference(String jsCode, String expected) {
+    int i = 0;
+    while (i < jsCode.length() && i < expected.length()
+        && jsCode.charAt(i) == expected.charAt(i)) {
+      ++i;
+    }
+    return CharMatcher.is('\n').countIn(jsCode.substring(0, i)) + 1;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times lexing the lines of VB files, as Line has them after parseLine(), with the cascade of
+ * regular expressions Line.getToken() used to try (LexerCheck.TYPES) and with Lexer; and
+ * looking up the words among their tokens in the map of lower-cased keywords Keywords used
+ * to have (LexerCheck.IDS) and with Keywords.find(). Prints the best time per token of each
+ * out of a number of rounds. Takes the number of rounds and the files (test/test.vb by
+ * default) as arguments.
+ */
+public final class LexerBenchmark {
+
+  /** Each round goes over the lines until it has lexed this many tokens */
+  private static final int TOKENS_PER_ROUND = 1000000;
+
+  private LexerBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    List<String> lines = Lists.newArrayList();
+    for (int i = 1; i < Math.max(args.length, 2); ++i) {
+      String file = i < args.length ? args[i] : Paths.get("test", "test.vb").toString();
+      for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+        lines.add(new Line().parseLine(line).getConverted());
+      }
+    }
+
+    Lexer lexer = new Lexer();
+    List<int[]> words = Lists.newArrayList();
+    int tokensPerPass = 0;
+    for (int i = 0; i < lines.size(); ++i) {
+      String line = lines.get(i);
+      for (int start = skipBlanks(line, 0); start < line.length();
+          start = skipBlanks(line, start + lexer.getLength())) {
+        lexer.scan(line, start);
+        ++tokensPerPass;
+        if (line.charAt(start) < 128 && Character.isLetter(line.charAt(start))) {
+          words.add(new int[] { i, start, start + lexer.getLength() });
+        }
+      }
+    }
+    if (tokensPerPass == 0) {
+      throw new IllegalArgumentException("No tokens to lex");
+    }
+    int passes = Math.max(1, TOKENS_PER_ROUND / tokensPerPass);
+
+    long regexTime = Long.MAX_VALUE;
+    long lexerTime = Long.MAX_VALUE;
+    long mapTime = Long.MAX_VALUE;
+    long findTime = Long.MAX_VALUE;
+    long sink = 0;
+    for (int round = 0; round < rounds; ++round) {
+      long start = System.nanoTime();
+      sink += lexWithRegexes(lines, passes);
+      regexTime = Math.min(regexTime, System.nanoTime() - start);
+      start = System.nanoTime();
+      sink += lexWithLexer(lines, passes, lexer);
+      lexerTime = Math.min(lexerTime, System.nanoTime() - start);
+      start = System.nanoTime();
+      sink += findWithMap(lines, words, passes);
+      mapTime = Math.min(mapTime, System.nanoTime() - start);
+      start = System.nanoTime();
+      sink += findWithKeywords(lines, words, passes);
+      findTime = Math.min(findTime, System.nanoTime() - start);
+    }
+
+    long tokens = (long) tokensPerPass * passes;
+    long lookups = (long) words.size() * passes;
+    System.out.printf("LexerBenchmark: %d lines, %d tokens, %d words, best of %d rounds%n",
+        lines.size(), tokensPerPass, words.size(), rounds);
+    System.out.printf("  lexing:   regex table %.1f ns/token, Lexer %.1f ns/token (%.1fx)%n",
+        (double) regexTime / tokens, (double) lexerTime / tokens, (double) regexTime / lexerTime);
+    if (lookups > 0) {
+      System.out.printf("  keywords: map %.1f ns/word, Keywords.find() %.1f ns/word (%.1fx)%n",
+          (double) mapTime / lookups, (double) findTime / lookups, (double) mapTime / findTime);
+    }
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  /**
+   * Lexes each line passes times as Line.getToken() used to: the rest of the line is matched
+   * against each pattern of the table in turn, until one matches at its start.
+   */
+  private static long lexWithRegexes(List<String> lines, int passes) {
+    long kinds = 0;
+    for (int pass = 0; pass < passes; ++pass) {
+      for (String line : lines) {
+        int start = skipBlanks(line, 0);
+        while (start < line.length()) {
+          CharSequence rest = line.substring(start);
+          int end = 1;
+          for (Map.Entry<Pattern, Integer> type : LexerCheck.TYPES.entrySet()) {
+            Matcher matcher = type.getKey().matcher(rest);
+            if (matcher.lookingAt()) {
+              kinds += type.getValue();
+              end = Math.max(1, matcher.end());
+              break;
+            }
+          }
+          start = skipBlanks(line, start + end);
+        }
+      }
+    }
+    return kinds;
+  }
+
+  private static long lexWithLexer(List<String> lines, int passes, Lexer lexer) {
+    long kinds = 0;
+    for (int pass = 0; pass < passes; ++pass) {
+      for (String line : lines) {
+        int start = skipBlanks(line, 0);
+        while (start < line.length()) {
+          lexer.scan(line, start);
+          kinds += lexer.getKind();
+          start = skipBlanks(line, start + Math.max(1, lexer.getLength()));
+        }
+      }
+    }
+    return kinds;
+  }
+
+  /**
+   * Looks up each word as Keywords.find() used to: a new String of the word, and another of
+   * its lower case, for the map.
+   */
+  private static long findWithMap(List<String> lines, List<int[]> words, int passes) {
+    long ids = 0;
+    for (int pass = 0; pass < passes; ++pass) {
+      for (int[] word : words) {
+        Integer id = LexerCheck.IDS.get(
+            lines.get(word[0]).subSequence(word[1], word[2]).toString().toLowerCase());
+        ids += id == null ? Keywords.NONE : id;
+      }
+    }
+    return ids;
+  }
+
+  private static long findWithKeywords(List<String> lines, List<int[]> words, int passes) {
+    long ids = 0;
+    for (int pass = 0; pass < passes; ++pass) {
+      for (int[] word : words) {
+        ids += Keywords.find(lines.get(word[0]), word[1], word[2]);
+      }
+    }
+    return ids;
+  }
+
+  private static int skipBlanks(String line, int start) {
+    while (start < line.length() && line.charAt(start) <= ' ') {
+      ++start;
+    }
+    return start;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks Lexer against the cascade of regular expressions that Line.getToken() used to try
+ * in order, on strings put together at random from keywords, operators, digits, quotes,
+ * line terminators and letters that only match case-insensitively or outside ASCII. For
+ * each string, the first token must be of the same kind and length, or not match at all in
+ * both; and where it starts with an ASCII letter, Keywords.find() must find the keyword that
+ * the map Keywords used to look up its lower case in finds. Takes the number of strings as
+ * an argument; exits with an exception on a mismatch.
+ */
+public final class LexerCheck {
+
+  /** The old table, in order of priority: the first pattern to match at the start wins */
+  static final Map<Pattern, Integer> TYPES = Maps.newLinkedHashMap();
+
+  static {
+    TYPES.put(Pattern.compile("(?i)\\b(Mod|Is|Not|AndAlso|And|OrElse|Or|Xor|Eqv|Like|New)\\b"),
+        Lexer.OP);
+    TYPES.put(Pattern.compile("(?i)\\b(End +(If|Sub|Function|While|With|Select))\\b"),
+        Lexer.ENDXX);
+    TYPES.put(Pattern.compile("(?i)\\b(Exit)\\b"), Lexer.EXIT);
+    TYPES.put(Pattern.compile("(?i)\\b(Private|Public|Static|Let|Set)\\b"), Lexer.TOSS);
+    TYPES.put(Pattern.compile("(?i)\\b(Attribute|Option|Declare)\\b"), Lexer.PUNT);
+    TYPES.put(Pattern.compile("(?i)\\b(Open .* For |Close #\\w+)\\b"), Lexer.PUNT);
+    TYPES.put(Pattern.compile("(?i)\\b(Print #|Line Input #)\\b"), Lexer.PUNT);
+    TYPES.put(Pattern.compile("(?i)\\b(On Error (Resume Next|GoTo 0)|Resume|GoTo)\\b"),
+        Lexer.PUNT);
+    TYPES.put(Pattern.compile("(?i)\\b(On Error)\\b"), Lexer.ONERROR);
+    TYPES.put(Pattern.compile("(?i)\\b(Then|Else|To|Downto|Step|As|ByVal|ByRef)\\b"), Lexer.KEY);
+    TYPES.put(Pattern.compile("(?i)\\b(Type|End Type)\\b"), Lexer.TYPE);
+    TYPES.put(Pattern.compile("[a-zA-Z](\\w)*\\$?"), Lexer.ID);
+    TYPES.put(Pattern.compile("#\\d+/\\d+/\\d+#"), Lexer.DATE);
+    TYPES.put(Pattern.compile("((\\d+\\.?\\d*)|(\\.\\d+))([eE][-+]?\\d+)?[&#]?"), Lexer.NUM);
+    TYPES.put(Pattern.compile("&H[a-fA-F0-9]+"), Lexer.HEX);
+    TYPES.put(Pattern.compile("<>|<=|>=|:="), Lexer.OP);
+    TYPES.put(Pattern.compile("[*^/\\\\+\\-&=><]"), Lexer.OP);
+    TYPES.put(Pattern.compile("\"[^\"]*\""), Lexer.STR);
+    TYPES.put(Pattern.compile("\".*"), Lexer.COMMENT);
+    TYPES.put(Pattern.compile("."), Lexer.CHR);
+    TYPES.put(Pattern.compile("^$"), Lexer.END);
+  }
+
+  /** The old keyword table: the ID of each keyword, by its lower case */
+  static final Map<String, Integer> IDS = Maps.newHashMap();
+
+  static {
+    for (int i = 0; i < Keywords.count(); ++i) {
+      IDS.put(Keywords.getName(i).toLowerCase(), i);
+    }
+  }
+
+  /** What the strings are made of */
+  private static final String[] PIECES = {
+    "Mod", "is", "IsNot", "Not", "AndAlso", "And", "orelse", "Or", "Xor", "Eqv", "Like", "New",
+    "End", "end", " ", "  ", "If", "Sub", "function", "While", "With", "Select", "Exit",
+    "Private", "Public", "Static", "Let", "Set", "Attribute", "Option", "Declare", "Open",
+    "For", "for", "Close", "#", "Print", "Line", "Input", "On", "Error", "Resume", "Next",
+    "GoTo", "0", "1", "9", "Then", "Else", "To", "Downto", "Step", "As", "ByVal", "ByRef",
+    "Type", "x", "_", "$", "/", ".", "e", "E", "-", "+", "&", "H", "h", "f", "G", "<", ">",
+    "=", ":", "*", "^", "\\", "\"", "'", "(", ")", "\n", "\r", "\u0085", "\t", "!",
+    "\u00e9", "e\u0301", "\uD83D\uDE00", "\uD800", "Z", "a1", "{", "\u2028", "\u0663",
+    "\u017f", "\u212a", "k", "s"
+  };
+
+  private LexerCheck() {
+  }
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Random random = new Random(7);
+    Lexer lexer = new Lexer();
+    StringBuilder text = new StringBuilder();
+    for (int n = 0; n < count; ++n) {
+      text.setLength(0);
+      for (int i = random.nextInt(8); i > 0; --i) {
+        String piece = PIECES[random.nextInt(PIECES.length)];
+        text.append(random.nextInt(4) == 0 ? swapCase(piece) : piece);
+      }
+      String expected = scanOld(text);
+      String actual = lexer.scan(text, 0) ? lexer.getKind() + ":" + lexer.getLength() : "none";
+      if (!expected.equals(actual)) {
+        throw new AssertionError("[" + text.toString().replace("\n", "\\n").replace("\r", "\\r")
+            + "]: the regex table gives " + expected + ", Lexer " + actual);
+      }
+      if (text.length() > 0 && text.charAt(0) < 128 && Character.isLetter(text.charAt(0))) {
+        checkKeyword(text, lexer.getLength());
+      }
+    }
+    System.out.println("LexerCheck: " + count + " strings, each lexed as the regex table did"
+        + " and its keywords found as the map did");
+  }
+
+  /**
+   * Checks that Keywords.find() finds the keyword in text[0, end) that the old map does. The
+   * map is looked up with the ASCII letters in lower case, since Keywords.find() leaves other
+   * letters be.
+   */
+  private static void checkKeyword(CharSequence text, int end) {
+    Integer expected = IDS.get(Ascii.toLowerCase(text.subSequence(0, end)));
+    int actual = Keywords.find(text, 0, end);
+    if (actual != (expected == null ? Keywords.NONE : expected)) {
+      throw new AssertionError("[" + text.subSequence(0, end) + "]: the map gives keyword "
+          + expected + ", Keywords.find() " + actual);
+    }
+  }
+
+  /**
+   * Returns the kind and length of the first token of text as the old table finds it, or
+   * "none".
+   */
+  private static String scanOld(CharSequence text) {
+    for (Map.Entry<Pattern, Integer> type : TYPES.entrySet()) {
+      Matcher matcher = type.getKey().matcher(text);
+      if (matcher.lookingAt()) {
+        return type.getValue() + ":" + matcher.end();
+      }
+    }
+    return "none";
+  }
+
+  private static String swapCase(String piece) {
+    StringBuilder swapped = new StringBuilder(piece.length());
+    for (char c : piece.toCharArray()) {
+      swapped.append(Ascii.isUpperCase(c) ? Ascii.toLowerCase(c) : Ascii.toUpperCase(c));
+    }
+    return swapped.toString();
+  }
+}
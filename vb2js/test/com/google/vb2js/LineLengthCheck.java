@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the time to convert a line grows in proportion to its length: a string, an
+ * Array(...), a chain of & and a comment, each 100 bytes to 1 MB long. Lines of 100 KB and
+ * 1 MB take at most MAX_GROWTH times as long as lines a hundredth as long, and a line of
+ * 1 MB converts within LIMIT_MS. Each timing is the best of several, after a round to warm
+ * up. Prints the timings; exits with an exception if a check fails.
+ */
+public final class LineLengthCheck {
+
+  private static final int LONGEST = 1000000;
+
+  /**
+   * A hundred times as long may take this many times as long. Linear growth gives 100 to
+   * 300 here, as longer lines fit in the caches less well; quadratic growth gives 10000.
+   */
+  private static final double MAX_GROWTH = 1000;
+
+  private static final long LIMIT_MS = 10000;
+
+  private enum Kind {
+    STRING {
+      @Override
+      String line(int length) {
+        StringBuilder line = new StringBuilder("x = \"");
+        while (line.length() < length - 1) {
+          line.append('a');
+        }
+        return line.append('"').toString();
+      }
+    },
+    ARRAY {
+      @Override
+      String line(int length) {
+        StringBuilder line = new StringBuilder("x = Array(1");
+        for (int i = 2; line.length() < length - 1; ++i) {
+          line.append(", ").append(i);
+        }
+        return line.append(')').toString();
+      }
+    },
+    CONCATENATION {
+      @Override
+      String line(int length) {
+        StringBuilder line = new StringBuilder("x = \"a\"");
+        for (int i = 1; line.length() < length; ++i) {
+          line.append(" & y").append(i);
+        }
+        return line.toString();
+      }
+    },
+    COMMENT {
+      @Override
+      String line(int length) {
+        StringBuilder line = new StringBuilder("x = 1 ' ");
+        while (line.length() < length) {
+          line.append("c \" '");
+        }
+        return line.toString();
+      }
+    };
+
+    /** Returns a line of this kind about length characters long */
+    abstract String line(int length);
+  }
+
+  private LineLengthCheck() {
+  }
+
+  public static void main(String[] args) {
+    for (Kind kind : Kind.values()) {
+      for (int length = 100; length < LONGEST; length *= 10) {
+        time(kind, length);
+      }
+    }
+    for (Kind kind : Kind.values()) {
+      StringBuilder timings = new StringBuilder();
+      List<Long> times = Lists.newArrayList();
+      for (int length = 100; length <= LONGEST; length *= 10) {
+        long nanos = time(kind, length);
+        timings.append(String.format(" %.2f", nanos / 1e6));
+        if (times.size() >= 2 && nanos > MAX_GROWTH * times.get(times.size() - 2)) {
+          throw new AssertionError(kind + " of " + length + " took " + nanos / 1e6
+              + " ms, a hundredth as long " + times.get(times.size() - 2) / 1e6 + " ms");
+        }
+        if (length == LONGEST && TimeUnit.NANOSECONDS.toMillis(nanos) > LIMIT_MS) {
+          throw new AssertionError(kind + " of " + length + " took " + nanos / 1e6 + " ms");
+        }
+        times.add(nanos);
+      }
+      System.out.println("LineLengthCheck: " + kind + " of 100 B to 1 MB, in ms:" + timings);
+    }
+  }
+
+  /**
+   * Returns the shortest time converting a line of kind about length characters long took,
+   * out of a number of runs that is larger for shorter lines.
+   */
+  private static long time(Kind kind, int length) {
+    String line = kind.line(length);
+    long nanos = Long.MAX_VALUE;
+    for (int run = Math.max(5, Math.min(100, LONGEST / length)); run > 0; --run) {
+      long start = System.nanoTime();
+      String jsCode = VbaJsConverter.convert(Collections.singletonList(line));
+      nanos = Math.min(nanos, System.nanoTime() - start);
+      if (jsCode.length() < line.length() - line.length() / 10) {
+        throw new AssertionError(kind + " of " + length + " converted to " + jsCode.length()
+            + " characters");
+      }
+    }
+    return nanos;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Checks the LineMemo: that a line kept reads again as the declarations make it read,
+ * x(1) = 2 as a call before Dim x(5) and as an element after it, and as a call again in the
+ * next Sub once a local array is gone; and that the memo an engine keeps on a thread from
+ * one module to the next gives each module what a new engine does, whichever modules came
+ * before, with lines kept from another module found there. Exits with an exception if a
+ * check fails.
+ */
+public final class LineMemoCheck {
+
+  /** Modules whose lines read differently in each other, by what they declare */
+  private static final ImmutableList<String> MODULES = ImmutableList.of(
+      "Sub Plain()\n" + repeat("  x(1) = 2\n", 3) + "End Sub",
+      "Dim x(5)\nSub WithArray()\n" + repeat("  x(1) = 2\n", 3) + "End Sub",
+      "Sub WithA()\n  With a\n" + repeat("    .v = 1\n", 3) + "  End With\nEnd Sub",
+      "Sub WithB()\n  With b\n" + repeat("    .v = 1\n", 3) + "  End With\nEnd Sub",
+      "Function F()\n" + repeat("  F = 1\n", 3) + "End Function",
+      "Sub G()\n" + repeat("  F = 1\n", 3) + "End Sub");
+
+  private LineMemoCheck() {
+  }
+
+  public static void main(String[] args) {
+    checkDim();
+    checkWarmMemo();
+    System.out.println("LineMemoCheck: x(1) = 2 before and after Dim x(5), and "
+        + MODULES.size() + " modules on one engine's memo");
+  }
+
+  /**
+   * Converts x(1) = 2 three times before Dim x(5) and three times after, then a local array
+   * y three times in one Sub and y(1) = 2 three times in the next, on a new engine.
+   */
+  private static void checkDim() {
+    ConverterEngine engine = new ConverterEngine();
+    String jsCode = engine.convert(lines("Sub Before()\n" + repeat("  x(1) = 2\n", 3)
+        + "End Sub\nDim x(5)\nSub After()\n" + repeat("  x(1) = 2\n", 3) + "End Sub"));
+    checkState(jsCode, "function Before() {\n" + repeat("  x(1) = 2;\n", 3) + "}\n"
+        + "var x = new Array(5);\nfunction After() {\n" + repeat("  x[1] = 2;\n", 3) + "}\n");
+    Preconditions.checkState(engine.getMemoHits() >= 2,
+        "x(1) = 2 was found in the memo %s times", engine.getMemoHits());
+
+    long hits = engine.getMemoHits();
+    jsCode = engine.convert(lines("Sub Local()\n  Dim y(3)\n" + repeat("  y(1) = 2\n", 3)
+        + "End Sub\nSub Next()\n" + repeat("  y(1) = 2\n", 3) + "End Sub"));
+    Preconditions.checkState(jsCode.contains(repeat("  y[1] = 2;\n", 3) + "}")
+        && jsCode.contains("function Next() {\n" + repeat("  y(1) = 2;\n", 3) + "}"),
+        "A local array converted as:\n%s", jsCode);
+    Preconditions.checkState(engine.getMemoHits() > hits, "y(1) = 2 was not found in the memo");
+  }
+
+  /**
+   * Converts each of MODULES after each, on one engine and so one memo, and x(1) = 2 alone
+   * after a module kept it.
+   */
+  private static void checkWarmMemo() {
+    List<String> expected = Lists.newArrayList();
+    for (String module : MODULES) {
+      expected.add(new ConverterEngine().convert(lines(module)));
+    }
+    ConverterEngine engine = new ConverterEngine();
+    for (int i = 0; i < MODULES.size(); ++i) {
+      for (int j = 0; j < MODULES.size(); ++j) {
+        checkState(engine.convert(lines(MODULES.get(i))), expected.get(i));
+        checkState(engine.convert(lines(MODULES.get(j))), expected.get(j));
+      }
+    }
+    Preconditions.checkState(engine.getMemoHits() > 0, "The memo was never used");
+
+    engine.convert(lines(MODULES.get(0)));
+    long hits = engine.getMemoHits();
+    checkState(engine.convert(lines("Sub Alone()\n  x(1) = 2\nEnd Sub")),
+        "function Alone() {\n  x(1) = 2;\n}\n");
+    Preconditions.checkState(engine.getMemoHits() == hits + 1,
+        "x(1) = 2 seen once was not found in a memo kept from another module");
+    checkState(engine.convert(lines("Dim x(5)\nSub Alone()\n  x(1) = 2\nEnd Sub")),
+        "var x = new Array(5);\nfunction Alone() {\n  x[1] = 2;\n}\n");
+    Preconditions.checkState(engine.getMemoHits() == hits + 1,
+        "x(1) = 2 after Dim x(5) was found in a memo kept from a module without it");
+  }
+
+  private static void checkState(String jsCode, String expected) {
+    Preconditions.checkState(jsCode.equals(expected), "Converted as:\n%s\ninstead of:\n%s",
+        jsCode, expected);
+  }
+
+  private static List<String> lines(String module) {
+    return Splitter.on('\n').splitToList(module);
+  }
+
+  private static String repeat(String line, int count) {
+    return Strings.repeat(line, count);
+  }
+}
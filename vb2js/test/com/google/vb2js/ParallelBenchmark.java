@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Times converting one large module with its Subs converted side by side, by
+ * convert(vbaCode, executor) on pools of 1, 2, 4 and so on up to N threads, against
+ * converting it in order with convert(vbaCode). Each round converts it every way in turn,
+ * on pools kept from one round to the next, so that they all see the JIT and the threads'
+ * state at much the same stage. Prints the best time of each out of the rounds, and its
+ * speedup over converting in order. Takes the directory of test.vb, N (by default twice
+ * the processors), the number of copies of its Sub in the module and the number of rounds
+ * as arguments.
+ */
+public final class ParallelBenchmark {
+
+  /** Rounds run first and not counted, while the JIT compiles the converter */
+  private static final int WARM_UP_ROUNDS = 3;
+
+  private ParallelBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    int maxThreads = args.length > 1
+        ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+    int copies = args.length > 2 ? Integer.parseInt(args[2]) : 400;
+    int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+    List<String> module = SampleModules.copyArrays(directory, copies);
+    ConverterEngine engine = new ConverterEngine();
+    String expected = engine.convert(module);
+
+    List<ExecutorService> pools = Lists.newArrayList();
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      pools.add(Executors.newFixedThreadPool(threads));
+    }
+    long inOrder = Long.MAX_VALUE;
+    long[] parallel = new long[pools.size()];
+    Arrays.fill(parallel, Long.MAX_VALUE);
+    try {
+      for (int round = -WARM_UP_ROUNDS; round < rounds; ++round) {
+        long start = System.nanoTime();
+        check(engine.convert(module), expected, "in order");
+        long time = System.nanoTime() - start;
+        if (round >= 0) {
+          inOrder = Math.min(inOrder, time);
+        }
+        for (int i = 0; i < pools.size(); ++i) {
+          start = System.nanoTime();
+          check(engine.convert(module, pools.get(i)), expected, "side by side");
+          time = System.nanoTime() - start;
+          if (round >= 0) {
+            parallel[i] = Math.min(parallel[i], time);
+          }
+        }
+      }
+    } finally {
+      for (ExecutorService pool : pools) {
+        pool.shutdown();
+      }
+    }
+
+    System.out.printf("ParallelBenchmark: %d lines, %d Subs, best of %d rounds, %d processors%n",
+        module.size(), copies, rounds, Runtime.getRuntime().availableProcessors());
+    System.out.printf("  in order:   %9.2f ms%n", inOrder / 1e6);
+    for (int i = 0, threads = 1; i < pools.size(); ++i, threads *= 2) {
+      System.out.printf("  %2d threads: %9.2f ms (%4.2fx)%n", threads, parallel[i] / 1e6,
+          (double) inOrder / parallel[i]);
+    }
+  }
+
+  private static void check(String jsCode, String expected, String how) {
+    if (!jsCode.equals(expected)) {
+      throw new AssertionError("Converting " + how + " gave something else");
+    }
+  }
+}
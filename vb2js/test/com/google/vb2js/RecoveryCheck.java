@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks convert(vbaCode, diagnostics), which carries on past errors: on a module with
+ * three errors, on a block left open at the end of file, and on programs put together at
+ * random from pieces of statements. Whatever the input, it returns; where convert(vbaCode)
+ * throws, or gives something else, it reports at least one error. Takes the number of
+ * random programs as an argument; exits with an exception if a check fails.
+ */
+public final class RecoveryCheck {
+
+  private static final List<String> MODULE = ImmutableList.of(
+      "Sub A()",
+      "  x = 1",
+      "  y = \"abc",
+      "  z = 2",
+      "End Sub",
+      "Sub B()",
+      "  If x Then",
+      "  .Value = 2",
+      "  End If",
+      "End Sub",
+      "Sub C()",
+      "  Do",
+      "    z = 2",
+      "End Sub",
+      "Function D()",
+      "  D = 3",
+      "End Function");
+
+  private static final String[] PIECES = {
+    "If ", "Then ", "Else ", "End If", "x", "y1", "arr(", ")", "(", ",", " ", "\"s\"", "'c",
+    "+", "-", "=", "And ", "Not ", ":", ".", "Dim ", "For ", "To ", "Next", "Do ", "Loop",
+    "While ", "Wend", "Sub ", "Function ", "End Sub", "End Function", "With ", "End With",
+    "Select Case ", "Case ", "Call ", "Exit ", "Type ", "End Type", "As ", "On Error ",
+    "GoTo ", "?", "$", "`", "1", "_"
+  };
+
+  /** Long enough for any of the programs; running out means a conversion loops */
+  private static final Budget BUDGET = Budget.UNLIMITED.withTimeout(10, TimeUnit.SECONDS);
+
+  private RecoveryCheck() {
+  }
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    checkModule();
+    checkOpenAtEndOfFile();
+    checkRandomPrograms(count);
+    System.out.println("RecoveryCheck: module, end of file and " + count + " random programs");
+  }
+
+  private static void checkModule() {
+    try {
+      VbaJsConverter.convert(MODULE);
+      throw new AssertionError("Module converted without errors");
+    } catch (ParseException e) {
+      Preconditions.checkState(e.getMessage().contains("at line 3"), e.getMessage());
+    }
+    List<Diagnostic> diagnostics = Lists.newArrayList();
+    String jsCode = VbaJsConverter.convert(MODULE, diagnostics);
+    List<Integer> lineNumbers = Lists.newArrayList();
+    for (Diagnostic diagnostic : diagnostics) {
+      lineNumbers.add(diagnostic.getLineNumber());
+    }
+    Preconditions.checkState(lineNumbers.equals(Arrays.asList(3, 8, 14)),
+        "Errors reported at lines %s", lineNumbers);
+    Preconditions.checkState(diagnostics.get(0).getLine().equals("y = \"abc"),
+        "First error on %s", diagnostics.get(0).getLine());
+    Preconditions.checkState(jsCode.split("CAN'T CONVERT", -1).length == 4,
+        "Not three errors in:\n%s", jsCode);
+    Preconditions.checkState(jsCode.contains("  x = 1;\n") && jsCode.contains("  z = 2;\n"),
+        "Lines around the error in A are missing:\n%s", jsCode);
+    String function = VbaJsConverter.convert(MODULE.subList(14, MODULE.size()));
+    Preconditions.checkState(jsCode.endsWith(function),
+        "Function D after the errors converted otherwise:\n%s", jsCode);
+  }
+
+  /**
+   * A For left open at the end of file inside another block: the error about the outer
+   * block is reported at the end of file.
+   */
+  private static void checkOpenAtEndOfFile() {
+    for (String block : new String[] { "Sub A", "If x Then", "Do", "With x" }) {
+      List<Diagnostic> diagnostics = Lists.newArrayList();
+      VbaJsConverter.convert(Arrays.asList(block, "For"), diagnostics);
+      Preconditions.checkState(diagnostics.size() == 1 && diagnostics.get(0).getLineNumber() == 3,
+          "%s, For: %s", block, diagnostics);
+    }
+  }
+
+  private static void checkRandomPrograms(int count) {
+    Random random = new Random(7);
+    for (int n = 0; n < count; ++n) {
+      List<String> program = Lists.newArrayList();
+      for (int i = 1 + random.nextInt(12); i > 0; --i) {
+        StringBuilder line = new StringBuilder();
+        for (int j = random.nextInt(6); j > 0; --j) {
+          line.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        program.add(line.toString());
+      }
+
+      String expected;
+      try {
+        expected = VbaJsConverter.convert(program, BUDGET);
+      } catch (ParseException e) {
+        expected = null;
+      }
+      List<Diagnostic> diagnostics = Lists.newArrayList();
+      String jsCode;
+      try {
+        jsCode = VbaJsConverter.convert(program, diagnostics, BUDGET);
+      } catch (RuntimeException e) {
+        throw new AssertionError("Program " + n + " " + program + " threw", e);
+      }
+      if (expected == null || !expected.equals(jsCode)) {
+        Preconditions.checkState(!diagnostics.isEmpty(),
+            "Program %s %s converted otherwise without reporting an error", n, program);
+      }
+    }
+  }
+}
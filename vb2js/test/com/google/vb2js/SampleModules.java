@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Modules for the checks and benchmarks, made of the Sub in test/test.vb.
+ */
+final class SampleModules {
+
+  /** The line of the Sub that lineOf() finds */
+  static final String EDITED_LINE = "startingpoint = 1";
+
+  private SampleModules() {
+  }
+
+  /**
+   * Returns the Sub of test.vb in directory, as the lines of a module, named CopyArray.
+   */
+  static List<String> copyArray(String directory) throws IOException {
+    List<String> lines = Lists.newArrayList(
+        "Sub CopyArray(SourceArray, DestArray, startingpoint, numberofvalues)");
+    lines.addAll(Files.readAllLines(Paths.get(directory, "test.vb"), StandardCharsets.UTF_8));
+    return lines;
+  }
+
+  /**
+   * Returns a module of count copies of the Sub of test.vb in directory, named CopyArray0,
+   * CopyArray1 and so on, and a Dim before them.
+   */
+  static List<String> copyArrays(String directory, int count) throws IOException {
+    List<String> sub = copyArray(directory);
+    List<String> lines = Lists.newArrayList("Dim total As Long");
+    for (int i = 0; i < count; ++i) {
+      lines.add(sub.get(0).replace("CopyArray", "CopyArray" + i));
+      lines.addAll(sub.subList(1, sub.size()));
+    }
+    return lines;
+  }
+
+  /**
+   * Returns the index in a module from copyArrays() of EDITED_LINE in the copy of the Sub
+   * that is number index.
+   */
+  static int lineOf(List<String> module, int index) {
+    int start = module.indexOf(
+        "Sub CopyArray" + index + "(SourceArray, DestArray, startingpoint, numberofvalues)");
+    for (int i = start; start >= 0 && i < module.size(); ++i) {
+      if (module.get(i).trim().equals(EDITED_LINE)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("No Sub CopyArray" + index);
+  }
+}
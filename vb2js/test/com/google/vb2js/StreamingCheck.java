@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Joiner;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Checks that VbaJsConverter.convert(Reader, Writer) streams: it converts a module of
+ * hundreds of MB that is never in memory, made up by a Reader as it is read, of copies of
+ * the Sub of test/test.vb named CopyArray0, CopyArray1 and so on, into a Writer that keeps
+ * only the Sub being written and checks it against the Sub converted alone. Run with a heap
+ * much smaller than the module (the check target gives it -Xmx32m), it runs out of memory
+ * if the converter holds on to the module or to what it wrote. Takes the directory of
+ * test.vb and the size of the module in MB as arguments; exits with an exception if a
+ * check fails.
+ */
+public final class StreamingCheck {
+
+  /** The name of the Sub in the templates, replaced by the name of each copy */
+  private static final String NAME = "CopyArrayN";
+
+  private StreamingCheck() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : "test";
+    long size = (args.length > 1 ? Long.parseLong(args[1]) : 256) << 20;
+    List<String> sub = SampleModules.copyArray(directory);
+    sub.set(0, sub.get(0).replace("CopyArray", NAME));
+    String text = Joiner.on('\n').join(sub) + '\n';
+    String first = "Dim total As Long\n";
+
+    ModuleReader in = new ModuleReader(first, text, size);
+    CheckingWriter out = new CheckingWriter(streamed(first + text), streamed(text));
+    long start = System.nanoTime();
+    VbaJsConverter.convert(in, out);
+    long time = System.nanoTime() - start;
+    if (in.copies != out.copies || in.copies == 0) {
+      throw new AssertionError("Read " + in.copies + " Subs but wrote " + out.copies);
+    }
+    System.out.printf("StreamingCheck: %d MB, %d Subs, in %.1f s, to %d MB of JavaScript,"
+        + " with at most %d MB of heap%n", in.length >> 20, in.copies, time / 1e9,
+        out.length >> 20, Runtime.getRuntime().maxMemory() >> 20);
+  }
+
+  private static String streamed(String text) throws Exception {
+    StringWriter out = new StringWriter();
+    VbaJsConverter.convert(new StringReader(text), out);
+    return out.toString();
+  }
+
+  /**
+   * Makes up first and then copies of text, with the name of each copy in place of NAME,
+   * until there are size characters or more.
+   */
+  private static final class ModuleReader extends Reader {
+    private final String text;
+    private final long size;
+    private String copy;
+    private int position;
+    private long length;
+    private int copies;
+
+    private ModuleReader(String first, String text, long size) {
+      this.text = text;
+      this.size = size;
+      this.copy = first;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int count) {
+      if (position == copy.length()) {
+        if (length >= size) {
+          return -1;
+        }
+        copy = text.replace(NAME, "CopyArray" + copies++);
+        position = 0;
+      }
+      int n = Math.min(count, copy.length() - position);
+      copy.getChars(position, position + n, buffer, offset);
+      position += n;
+      length += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Counts what is written, and checks what is written between flushes, which
+   * convert(Reader, Writer) does after each Sub: the first time against first, then
+   * against text with the name of the next copy in place of NAME.
+   */
+  private static final class CheckingWriter extends Writer {
+    private final String first;
+    private final String text;
+    private final StringBuilder written = new StringBuilder();
+    private long length;
+    private int copies;
+
+    private CheckingWriter(String first, String text) {
+      this.first = first.replace(NAME, "CopyArray0");
+      this.text = text;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int count) {
+      written.append(buffer, offset, count);
+      length += count;
+    }
+
+    @Override
+    public void flush() {
+      if (written.length() == 0) {
+        return;
+      }
+      String expected = copies == 0 ? first : text.replace(NAME, "CopyArray" + copies);
+      if (!expected.contentEquals(written)) {
+        throw new AssertionError("Sub " + copies + " was written as:\n" + written
+            + "\ninstead of:\n" + expected);
+      }
+      ++copies;
+      written.setLength(0);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vb2js;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Checks that a line is lexed once however often its tokens are looked at: peeking at a
+ * token again and again lexes it the first time only, and converting the Sub of
+ * test/test.vb twice lexes exactly as many tokens the second time, with each looked at
+ * again several times without lexing. Prints the counts. Takes the directory of test.vb
+ * as an argument; exits with an exception if a check fails.
+ */
+public final class TokenBufferCheck {
+
+  private TokenBufferCheck() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    checkPeeks("If x(1) > 2 Then y = \"a b\" & z ' a comment");
+    checkPeeks("Dim lngDestLength As Long, lngCnt As Long");
+
+    String directory = args.length > 0 ? args[0] : "test";
+    List<String> module = Lists.newArrayList(
+        "Sub CopyArray(SourceArray, DestArray, startingpoint, numberofvalues)");
+    module.addAll(Files.readAllLines(Paths.get(directory, "test.vb"), StandardCharsets.UTF_8));
+    ConverterEngine engine = new ConverterEngine();
+    engine.convert(module);
+    long lexed = engine.getTokensLexed();
+    long reused = engine.getTokensReused();
+    Preconditions.checkState(lexed > 0 && reused > lexed,
+        "test.vb: %s tokens lexed, %s looked at again", lexed, reused);
+    engine.convert(module);
+    Preconditions.checkState(engine.getTokensLexed() == 2 * lexed
+        && engine.getTokensReused() == 2 * reused,
+        "Converting test.vb again lexed %s tokens and looked at %s again, not %s and %s",
+        engine.getTokensLexed() - lexed, engine.getTokensReused() - reused, lexed, reused);
+    System.out.printf("TokenBufferCheck: test.vb lexes %d tokens and looks at them %d times"
+        + " more without lexing%n", lexed, reused);
+  }
+
+  /**
+   * Peeks at each token of line three times before taking it, and checks that each was
+   * lexed once.
+   */
+  private static void checkPeeks(String line) {
+    Line parsed = new Line().parseLine(line);
+    long tokens = 0;
+    while (true) {
+      ++tokens;
+      for (int i = 0; i < 3; ++i) {
+        parsed.peek();
+      }
+      if (parsed.getToken(true).isEmpty()) {
+        break;
+      }
+    }
+    Preconditions.checkState(parsed.getLexCount() == tokens,
+        "%s: %s tokens lexed %s times", line, tokens, parsed.getLexCount());
+    Preconditions.checkState(parsed.getReuseCount() == 3 * tokens,
+        "%s: %s tokens found already lexed %s times", line, tokens, parsed.getReuseCount());
+  }
+}
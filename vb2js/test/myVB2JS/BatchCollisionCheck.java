@@ -0,0 +1,137 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: BatchCollisionCheck.java
+ * Date and Time: Oct 18, 2026 6:40:12 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import com.google.vb2js.VbaJsConverter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Checks that --batch does not let two files write the same JavaScript: with
+ * Mod.bas and Mod.cls in one directory, converted in place and into an output
+ * directory, one of them fails with "output collides with" the other, the run
+ * exits with 1, and Mod.js is what the other converts to. A file named twice,
+ * in a list file and under a directory, is still converted once and is no
+ * collision. Exits with an exception if a check fails.
+ *
+ * @author raliclo
+ */
+public class BatchCollisionCheck {
+
+    private static final String MODULE = "Sub Fill()\n  x = 1\nEnd Sub\n";
+    private static final String CLASS = "Function Twice(n)\n  Twice = n * 2\nEnd Function\n";
+    private static final String OTHER = "Dim total As Long\n";
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("BatchCollisionCheck");
+        try {
+            Path sources = directory.resolve("src");
+            Files.createDirectories(sources);
+            write(sources.resolve("Mod.bas"), MODULE);
+            write(sources.resolve("Mod.cls"), CLASS);
+            write(sources.resolve("Other.bas"), OTHER);
+
+            checkCollision(sources, sources.toString());
+            Path output = directory.resolve("out");
+            checkCollision(output, "--out", output.toString(), sources.toString());
+
+            Files.delete(sources.resolve("Mod.cls"));
+            Path list = directory.resolve("list.txt");
+            write(list, sources.resolve("Mod.bas") + "\n" + sources.resolve("Other.bas") + "\n");
+            String printed = run(0, "--out", output.toString(), "--list", list.toString(),
+                    sources.toString());
+            check(printed.contains("Converted 2 files"),
+                    "A file named twice was not converted once:\n" + printed);
+        } finally {
+            delete(directory);
+        }
+        System.out.println("BatchCollisionCheck: Mod.bas and Mod.cls, in place and with --out");
+    }
+
+    /**
+     * Converts Mod.bas, Mod.cls and Other.bas with args, and checks that one of
+     * the first two fails and the other is written to Mod.js in output.
+     */
+    private static void checkCollision(Path output, String... args) throws IOException {
+        String printed = run(1, args);
+        check(printed.contains("Converted 2 files") && printed.contains("1 files failed:"),
+                "Expected two files converted and one failed:\n" + printed);
+        int collision = printed.indexOf(": output collides with ");
+        check(collision >= 0, "No collision reported:\n" + printed);
+        String failed = printed.substring(printed.lastIndexOf('\n', collision) + 1, collision);
+        String written = failed.trim().endsWith("Mod.bas") ? CLASS : MODULE;
+        check(read(output.resolve("Mod.js")).equals(VbaJsConverter.convert(written)),
+                "Mod.js is not what the file that did not fail converts to");
+        check(read(output.resolve("Other.js")).equals(VbaJsConverter.convert(OTHER)),
+                "Other.js was not converted");
+    }
+
+    private static String run(int expectedStatus, String... args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int status = BatchConversion.run(args, new PrintStream(bytes, true, "UTF-8"));
+        String printed = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        check(status == expectedStatus, "--batch " + Arrays.toString(args) + " exited with "
+                + status + " instead of " + expectedStatus + ":\n" + printed);
+        return printed;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void delete(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                    throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: ConversionCacheCheck.java
+ * Date and Time: Oct 18, 2026 8:02:17 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.vb2js.ConverterEngine;
+import com.google.vb2js.Diagnostic;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Checks ConversionCache: that an entry put is found again, by the same cache
+ * and by another opened on the same directory later; that other options, or
+ * a converter with other class files, miss; that close() removes the entries
+ * used longest ago until the cache is down to FILL_AFTER_EVICTION of its size,
+ * and stale temporary files, and leaves everything else in the directory
+ * alone; that an entry cut short, emptied or written over with something
+ * else is a miss; and that threads of two caches putting the same key at once
+ * leave one whole entry and no temporary files. Exits with an exception if a
+ * check fails.
+ *
+ * @author raliclo
+ */
+public class ConversionCacheCheck {
+
+    private static final String OPTIONS = "charset=UTF-8";
+
+    /** ConversionCache.FILL_AFTER_EVICTION */
+    private static final double FILL_AFTER_EVICTION = 0.9;
+
+    private static final ConverterEngine ENGINE = new ConverterEngine();
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("ConversionCacheCheck");
+        try {
+            checkHits(directory.resolve("hits"));
+            checkMisses(directory.resolve("misses"), directory.resolve("classes"));
+            checkEviction(directory.resolve("eviction"));
+            checkDamagedEntries(directory.resolve("damaged"));
+            checkConcurrentPuts(directory.resolve("concurrent"));
+        } finally {
+            delete(directory);
+        }
+        System.out.println("ConversionCacheCheck: hits, misses, eviction, damaged entries"
+                + " and concurrent puts");
+    }
+
+    private static void checkHits(Path directory) throws IOException {
+        ConversionCache cache = new ConversionCache(directory, 1 << 20, OPTIONS);
+        byte[] bytes = module(0);
+        String key = cache.key(bytes);
+        check(cache.get(key) == null && cache.getMisses() == 1, "An empty cache hit");
+        List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+        String jsCode = convert(bytes, diagnostics);
+        check(!diagnostics.isEmpty(), "The module has no errors to keep");
+        cache.put(key, jsCode, diagnostics);
+        checkHit(cache, key, jsCode, diagnostics.size());
+        check(cache.getBytesWritten() == Files.size(entry(directory, key)),
+                "Bytes written are not the size of the entry");
+
+        ConversionCache again = new ConversionCache(directory, 1 << 20, OPTIONS);
+        check(again.key(bytes).equals(key), "The same bytes have another key in a new run");
+        checkHit(again, key, jsCode, diagnostics.size());
+        check(again.close() == 0, "close() evicted from a cache within its size");
+        checkHit(again, key, jsCode, diagnostics.size());
+    }
+
+    /**
+     * Keys of other bytes, other options and another converter all differ.
+     * The converter's class files are copied to classes, where one more class
+     * is then added, and ConversionCache is loaded from the copy each time.
+     */
+    private static void checkMisses(Path directory, Path classes) throws Exception {
+        ConversionCache cache = new ConversionCache(directory, 1 << 20, OPTIONS);
+        String key = cache.key(module(0));
+        check(!cache.key(module(1)).equals(key), "Other bytes have the same key");
+        ConversionCache latin1 = new ConversionCache(directory, 1 << 20, "charset=ISO-8859-1");
+        check(!latin1.key(module(0)).equals(key), "Other options give the same key");
+        latin1.put(latin1.key(module(0)), "x", new ArrayList<Diagnostic>());
+        check(cache.get(key) == null, "An entry for other options was found");
+
+        Path location = location(ConverterEngine.class);
+        if (!Files.isDirectory(location)) {
+            System.out.println("ConversionCacheCheck: the converter is in " + location
+                    + ", not a directory of classes; not checking that a new one misses");
+            return;
+        }
+        copy(location, classes);
+        check(keyFrom(classes, directory, module(0)).equals(key),
+                "The same class files somewhere else give another key");
+        Files.write(classes.resolve("com/google/vb2js/Added.class"), new byte[] {1, 2, 3});
+        check(!keyFrom(classes, directory, module(0)).equals(key),
+                "A converter with another class file gives the same key");
+    }
+
+    /**
+     * Returns the key of bytes from a ConversionCache loaded, with the
+     * converter, from classes.
+     */
+    private static String keyFrom(Path classes, Path directory, byte[] bytes)
+            throws Exception {
+        URL[] urls = {classes.toUri().toURL(), location(Lists.class).toUri().toURL()};
+        try (URLClassLoader loader = new URLClassLoader(urls, null)) {
+            Class<?> type = loader.loadClass(ConversionCache.class.getName());
+            Constructor<?> constructor =
+                    type.getDeclaredConstructor(Path.class, long.class, String.class);
+            constructor.setAccessible(true);
+            Object cache = constructor.newInstance(directory, 1L << 20, OPTIONS);
+            Method key = type.getDeclaredMethod("key", byte[].class);
+            key.setAccessible(true);
+            return (String) key.invoke(cache, bytes);
+        }
+    }
+
+    /**
+     * Fills a cache to twice its size with entries used a minute apart, among
+     * files that aren't entries, and closes it.
+     */
+    private static void checkEviction(Path directory) throws IOException {
+        ConversionCache writer = new ConversionCache(directory, Long.MAX_VALUE, OPTIONS);
+        long now = System.currentTimeMillis();
+        List<Path> entries = new ArrayList<Path>();
+        List<Long> sizes = new ArrayList<Long>();
+        long entryBytes = 0;
+        for (int i = 0; i < 40; ++i) {
+            byte[] bytes = module(i);
+            String key = writer.key(bytes);
+            writer.put(key, convert(bytes, new ArrayList<Diagnostic>()),
+                    new ArrayList<Diagnostic>());
+            Path entry = entry(directory, key);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(now - (40 - i) * 60000L));
+            entries.add(entry);
+            sizes.add(Files.size(entry));
+            entryBytes += Files.size(entry);
+        }
+
+        // Not entries: named as one but holding something else, and used
+        // before all of them; in a subdirectory of the wrong name; of the
+        // wrong name in a subdirectory of the right one; and temporary
+        // files, one left a day ago and one being written.
+        String lookalikeName = Strings.repeat("f", 64);
+        Path lookalike = directory.resolve("ff").resolve(lookalikeName);
+        Files.createDirectories(lookalike.getParent());
+        Files.write(lookalike, new byte[1000]);
+        Files.setLastModifiedTime(lookalike, FileTime.fromMillis(now - 3600000L));
+        Path subdirectory = entries.get(0).getParent();
+        List<Path> foreign = Arrays.asList(lookalike, directory.resolve("README"),
+                directory.resolve("zz").resolve(lookalikeName),
+                subdirectory.resolve("notes.txt"),
+                subdirectory.resolve(lookalikeName.toUpperCase()));
+        for (Path file : foreign.subList(1, foreign.size())) {
+            Files.createDirectories(file.getParent());
+            Files.write(file, new byte[100000]);
+        }
+        Path key = entries.get(0).getFileName();
+        Path stale = subdirectory.resolve(key + ".00ab.1.tmp");
+        Path fresh = subdirectory.resolve(key + ".00ab.2.tmp");
+        Files.write(stale, new byte[10]);
+        Files.write(fresh, new byte[10]);
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(now - 25 * 3600000L));
+
+        long maxBytes = (entryBytes + Files.size(lookalike)) / 2;
+        ConversionCache cache = new ConversionCache(directory, maxBytes, OPTIONS);
+        int evicted = cache.close();
+
+        long target = (long) (maxBytes * FILL_AFTER_EVICTION);
+        long total = entryBytes + Files.size(lookalike);
+        int expected = 0;
+        while (total > target) {
+            total -= sizes.get(expected++);
+        }
+        check(expected > 0 && expected < entries.size(), "Not a cache to trim");
+        check(evicted == expected, "close() evicted " + evicted + " entries instead of "
+                + expected);
+        for (int i = 0; i < entries.size(); ++i) {
+            check(Files.exists(entries.get(i)) == i >= expected, "Entry " + i + ", oldest"
+                    + " first, was " + (i < expected ? "kept" : "evicted"));
+        }
+        for (Path file : foreign) {
+            check(Files.exists(file), "close() removed " + file);
+        }
+        check(!Files.exists(stale), "close() left a temporary file of a day ago");
+        check(Files.exists(fresh), "close() removed a temporary file being written");
+        check(cache.close() == 0, "close() evicted more from a cache it had trimmed");
+    }
+
+    private static void checkDamagedEntries(Path directory) throws IOException {
+        ConversionCache cache = new ConversionCache(directory, 1 << 20, OPTIONS);
+        byte[] bytes = module(0);
+        String key = cache.key(bytes);
+        String jsCode = convert(bytes, new ArrayList<Diagnostic>());
+        cache.put(key, jsCode, new ArrayList<Diagnostic>());
+        Path entry = entry(directory, key);
+        byte[] whole = Files.readAllBytes(entry);
+        ByteArrayOutputStream otherMagic = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(otherMagic))) {
+            out.writeInt(0x12345678);
+            Protocol.writeString(out, jsCode);
+            out.writeInt(0);
+        }
+        List<byte[]> damaged = Arrays.asList(
+                Arrays.copyOf(whole, whole.length / 2),
+                Arrays.copyOf(whole, 3),
+                new byte[0],
+                "not deflated at all".getBytes(StandardCharsets.UTF_8),
+                otherMagic.toByteArray());
+        for (int i = 0; i < damaged.size(); ++i) {
+            Files.write(entry, damaged.get(i));
+            long misses = cache.getMisses();
+            check(cache.get(key) == null && cache.getMisses() == misses + 1,
+                    "Damaged entry " + i + " was not a miss");
+        }
+        cache.put(key, jsCode, new ArrayList<Diagnostic>());
+        checkHit(cache, key, jsCode, 0);
+    }
+
+    /**
+     * Eight threads of two caches, as of two processes, put one key at once,
+     * while eight more read it.
+     */
+    private static void checkConcurrentPuts(final Path directory) throws Exception {
+        final ConversionCache[] caches = {
+            new ConversionCache(directory, 1 << 20, OPTIONS),
+            new ConversionCache(directory, 1 << 20, OPTIONS)
+        };
+        byte[] bytes = module(0);
+        final String key = caches[0].key(bytes);
+        final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+        final String jsCode = convert(bytes, diagnostics);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        try {
+            for (int t = 0; t < 16; ++t) {
+                final ConversionCache cache = caches[t % 2];
+                final boolean isWriter = t < 8;
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws InterruptedException {
+                        start.await();
+                        for (int n = 0; n < 50; ++n) {
+                            if (isWriter) {
+                                cache.put(key, jsCode, diagnostics);
+                            } else {
+                                ConversionCache.Result result = cache.get(key);
+                                if (result != null && (!result.jsCode.equals(jsCode)
+                                        || result.diagnosticCount != diagnostics.size())) {
+                                    return "Read part of an entry being written";
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                check(result.get() == null, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        checkHit(caches[1], key, jsCode, diagnostics.size());
+        String[] left = entry(directory, key).getParent().toFile().list();
+        check(left.length == 1, "Left in the cache: " + Arrays.toString(left));
+    }
+
+    private static void checkHit(ConversionCache cache, String key, String jsCode,
+            int diagnosticCount) {
+        long hits = cache.getHits();
+        ConversionCache.Result result = cache.get(key);
+        check(result != null && cache.getHits() == hits + 1, "Missed an entry put");
+        check(result.jsCode.equals(jsCode) && result.diagnosticCount == diagnosticCount,
+                "An entry came back otherwise than it was put");
+    }
+
+    /** A module, different for each n, with an error in it */
+    private static byte[] module(int n) {
+        StringBuilder module = new StringBuilder("Sub Module" + n + "()\n");
+        for (int i = 0; i < 20; ++i) {
+            module.append("  x").append(i).append(" = ").append(n * i).append('\n');
+        }
+        module.append("  y = \"abc\nEnd Sub\n");
+        return module.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String convert(byte[] bytes, List<Diagnostic> diagnostics) {
+        return ENGINE.convert(Arrays.asList(new String(bytes, StandardCharsets.UTF_8)
+                .split("\n")), diagnostics);
+    }
+
+    private static Path entry(Path directory, String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static Path location(Class<?> type) throws Exception {
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static void copy(final Path from, final Path to) throws IOException {
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                    throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                Files.copy(file, to.resolve(from.relativize(file).toString()),
+                        StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void delete(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                    throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: DaemonBenchmark.java
+ * Date and Time: Oct 18, 2026 7:25:40 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import com.google.vb2js.VbaJsConverter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times converting test/test.vb cold, by starting a JVM to run myVB2JS on it,
+ * against asking a warm daemon for it: by starting a JVM to run --client, and
+ * over a connection already open, as a tool that keeps one would. The daemon
+ * runs in a JVM of its own, as it would in use. Prints the median and the
+ * best of each way, the time a JVM takes to start and exit doing nothing, and
+ * the 99th percentile of the round trips. Takes the directory of test.vb, the
+ * number of JVMs started each way and the number of round trips as arguments.
+ *
+ * @author raliclo
+ */
+public class DaemonBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String directory = args.length > 0 ? args[0] : "test";
+        int starts = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        Path file = Paths.get(directory, "test.vb").toAbsolutePath();
+        String vbaCode = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        String expected = VbaJsConverter.convert(vbaCode);
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath = System.getProperty("java.class.path");
+        int port;
+        try (ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = free.getLocalPort();
+        }
+        File output = File.createTempFile("DaemonBenchmark", ".txt");
+        Process daemon = new ProcessBuilder(java, "-cp", classPath, "myVB2JS.myVB2JS",
+                "--daemon", "--port", Integer.toString(port)).redirectErrorStream(true).start();
+        try {
+            BufferedReader daemonOutput = new BufferedReader(
+                    new InputStreamReader(daemon.getInputStream(), StandardCharsets.UTF_8));
+            String listening = daemonOutput.readLine();
+            if (listening == null || !listening.startsWith("Listening on")) {
+                throw new AssertionError("The daemon did not start: " + listening);
+            }
+
+            long[] bare = time(starts, output, java, "-version");
+            long[] cold = time(starts, output, java, "-cp", classPath, "myVB2JS.myVB2JS",
+                    file.toString());
+            long[] client = time(starts, output, java, "-cp", classPath, "myVB2JS.myVB2JS",
+                    "--client", "--port", Integer.toString(port), file.toString());
+            String printed = new String(Files.readAllBytes(output.toPath()),
+                    StandardCharsets.UTF_8);
+            if (!printed.equals(expected)) {
+                throw new AssertionError("The client printed:\n" + printed
+                        + "\ninstead of:\n" + expected);
+            }
+            long[] warm = roundTrips(port, vbaCode, expected, roundTrips);
+
+            System.out.printf("DaemonBenchmark: %s, %d JVMs started each way, %d round trips%n",
+                    file.getFileName(), starts, roundTrips);
+            System.out.printf("  cold, java myVB2JS FILE:             %8.2f ms median,"
+                    + " %8.2f ms best%n", median(cold) / 1e6, cold[0] / 1e6);
+            System.out.printf("  warm daemon, java myVB2JS --client:  %8.2f ms median,"
+                    + " %8.2f ms best%n", median(client) / 1e6, client[0] / 1e6);
+            System.out.printf("  a JVM doing nothing, java -version:  %8.2f ms median,"
+                    + " %8.2f ms best%n", median(bare) / 1e6, bare[0] / 1e6);
+            System.out.printf("  warm daemon, on an open connection:  %8.3f ms median,"
+                    + " %8.3f ms p99%n", median(warm) / 1e6,
+                    warm[warm.length * 99 / 100] / 1e6);
+        } finally {
+            daemon.destroy();
+            Files.delete(output.toPath());
+        }
+    }
+
+    /**
+     * Runs command count times, one after the other, with what it prints
+     * written to output, and returns how long each run took, sorted.
+     */
+    private static long[] time(int count, File output, String... command)
+            throws IOException, InterruptedException {
+        long[] times = new long[count];
+        for (int i = 0; i < count; ++i) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(output)
+                    .redirectErrorStream(true)
+                    .start();
+            int status = process.waitFor();
+            times[i] = System.nanoTime() - start;
+            if (status != 0) {
+                throw new AssertionError(Arrays.toString(command) + " exited with " + status
+                        + ":\n" + new String(Files.readAllBytes(output.toPath()),
+                                StandardCharsets.UTF_8));
+            }
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * Sends vbaCode to the daemon count times over one connection, and returns
+     * how long each reply took, sorted.
+     */
+    private static long[] roundTrips(int port, String vbaCode, String expected, int count)
+            throws IOException {
+        long[] times = new long[count];
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            for (int i = 0; i < count; ++i) {
+                long start = System.nanoTime();
+                Protocol.writeString(out, vbaCode);
+                out.flush();
+                if (in.readByte() != Protocol.OK) {
+                    throw new AssertionError("The daemon failed: " + Protocol.readString(in));
+                }
+                String jsCode = Protocol.readString(in);
+                List<String> messages = new ArrayList<String>();
+                for (int n = in.readInt(); n > 0; --n) {
+                    messages.add(in.readInt() + ": " + Protocol.readString(in));
+                    Protocol.readString(in);
+                }
+                times[i] = System.nanoTime() - start;
+                if (!jsCode.equals(expected) || !messages.isEmpty()) {
+                    throw new AssertionError("The daemon answered otherwise than convert():\n"
+                            + jsCode + messages);
+                }
+            }
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static long median(long[] sorted) {
+        return sorted[sorted.length / 2];
+    }
+}
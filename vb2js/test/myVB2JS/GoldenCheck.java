@@ -0,0 +1,68 @@
+/*
+ * Info: Name=Lo,WeiShun
+ * Author: raliclo
+ * Filename: GoldenCheck.java
+ * Date and Time: Oct 18, 2026 4:12:08 PM
+ * Project Name: myvb2js
+ */
+ /*
+ * Copyright 2016 raliclo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package myVB2JS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Converts test/test.vb the way the README shows, and checks that what is
+ * printed is test/result.txt. Run from the project directory, as "ant check"
+ * does; exits with an exception if the output differs.
+ *
+ * @author raliclo
+ */
+public class GoldenCheck {
+
+    public static void main(String[] args) throws IOException {
+        String directory = args.length > 0 ? args[0] : "test";
+        String expected = new String(Files.readAllBytes(Paths.get(directory, "result.txt")),
+                StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes, true, "UTF-8"));
+        try {
+            myVB2JS.main(new String[] {Paths.get(directory, "test.vb").toString()});
+        } finally {
+            System.setOut(out);
+        }
+        String actual = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+
+        String[] expectedLines = expected.split("\r?\n", -1);
+        String[] actualLines = actual.split("\r?\n", -1);
+        for (int i = 0; i < Math.max(expectedLines.length, actualLines.length); ++i) {
+            String want = i < expectedLines.length ? expectedLines[i] : "(end of output)";
+            String got = i < actualLines.length ? actualLines[i] : "(end of output)";
+            if (!want.equals(got)) {
+                throw new AssertionError("result.txt differs at line " + (i + 1)
+                        + ":\nexpected: " + want + "\nactual:   " + got);
+            }
+        }
+        System.out.println("GoldenCheck: test.vb converts to result.txt");
+    }
+}